@@ -1,17 +1,107 @@
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import javax.swing.border.TitledBorder;
-import javax.swing.table.DefaultTableModel;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.DefaultTableCellRenderer;
 import java.awt.*;
 import java.awt.event.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.Optional;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongSupplier;
+import java.util.function.LongToIntFunction;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
 
 /**
  * A complete, standalone Library Management System in a single Java file.
- * This application uses Java Swing for the GUI and Object Serialization for data persistence.
+ * This application uses Java Swing for the GUI and a compact binary file format for data persistence,
+ * with every change also appended to a write-ahead journal so nothing is lost between saves.
  *
  * To run:
  * 1. Save this code as LibraryManagementSystem.java
@@ -21,15 +111,63 @@ import java.util.Optional;
 public class LibraryManagementSystem extends JFrame {
 
     // --- Data Storage ---
-    // Using static lists to be accessible by all static inner classes.
-    private static ArrayList<Book> books = new ArrayList<>();
-    private static ArrayList<Member> members = new ArrayList<>();
-    private static ArrayList<IssueRecord> issueRecords = new ArrayList<>();
+    // Using static stores to be accessible by all static inner classes.
+    private static final BookRepository books = new BookRepository();
+    private static final MemberRepository members = new MemberRepository();
+    private static final IssueRepository issueRecords = new IssueRepository();
+    // The open loans by due date, for finding the overdue ones; see OverdueTracker
+    private static final OverdueTracker overdue = new OverdueTracker();
+    // Members waiting for books, changed together with the loans (under the same lock)
+    private static final HoldRegistry holds = new HoldRegistry();
+    // Late fines per member, kept up to date as loans are returned; see FineEngine
+    private static final FineEngine fines = FineEngine.fromSystemProperties(issueRecords);
+    // Completes once loadData()'s background pass over the loan history has charged the fines and counted the stats
+    private static CompletableFuture<Void> historyTallied = CompletableFuture.completedFuture(null);
+    // False for one-shot commands (export, report) that exit without reading the running fines or the stats
+    private static boolean tallyHistory = true;
+    // The figures on the home panel, kept up to date as loans go out; see LibraryStats
+    private static final LibraryStats stats = LibraryStats.fromSystemProperties(books, members, issueRecords);
+    // Monthly circulation reports, with the tallies of past months kept between runs
+    private static final CirculationReports reports = new CirculationReports(books, members, issueRecords);
 
     // --- File Paths for Persistence ---
-    private static final String BOOKS_FILE = "books.ser";
-    private static final String MEMBERS_FILE = "members.ser";
-    private static final String ISSUES_FILE = "issues.ser";
+    private static final String BOOKS_FILE = "books.dat";
+    private static final String MEMBERS_FILE = "members.dat";
+    private static final String ISSUES_FILE = "issues.dat";
+    private static final String HOLDS_FILE = "holds.dat";
+    private static final String HISTORY_FILE = "history.dat"; // Closed loans, memory-mapped
+    // Java-serialized files from older versions, migrated to the files above on first load
+    private static final String LEGACY_BOOKS_FILE = "books.ser";
+    private static final String LEGACY_MEMBERS_FILE = "members.ser";
+    private static final String LEGACY_ISSUES_FILE = "issues.ser";
+    private static final String JOURNAL_FILE = "library.journal";
+
+    // Once the journal grows past this, "Save Data" folds it into a fresh set of .dat files
+    private static final long CHECKPOINT_THRESHOLD = 16L * 1024 * 1024;
+
+    // Every change is appended here as it happens; opened by loadData()
+    private static Journal journal;
+
+    // Writes the journal and checkpoints to disk off the EDT
+    private static final PersistenceService persistence = new PersistenceService();
+
+    // True when running without the GUI: as the kiosk server (see runServer) or a command-line import
+    private static boolean headlessMode;
+
+    // Every change goes through here, from any thread
+    private static final LibraryService service = new LibraryService();
+
+    // Latency and counts for every operation; see Metrics
+    private static final Metrics metrics = new Metrics();
+
+    // Every change is announced here, so views and the journal can react to it
+    private static final EventBus events = new EventBus();
+
+    // --- Search Indexes (for the typeahead fields) ---
+    private static final SearchIndex<Book> bookSearch =
+            new SearchIndex<>(b -> new String[]{b.getTitle(), b.getAuthor(), b.getPublisher(), b.getId()});
+    private static final SearchIndex<Member> memberSearch =
+            new SearchIndex<>(m -> new String[]{m.getName(), m.getEmail(), m.getId()});
 
     // --- GUI Components ---
     private final CardLayout cardLayout = new CardLayout();
@@ -41,6 +179,27 @@ public class LibraryManagementSystem extends JFrame {
 
     // --- Main Entry Point ---
     public static void main(String[] args) {
+        // "--server [port]" runs the kiosk HTTP API instead of the GUI
+        if (args.length > 0 && args[0].equals("--server")) {
+            runServer(args.length > 1 ? parsePort(args[1]) : CirculationServer.DEFAULT_PORT);
+            return;
+        }
+        // "--import <file>" bulk-loads a catalog file (see CatalogImporter) and exits
+        if (args.length > 1 && args[0].equals("--import")) {
+            runImport(Paths.get(args[1]));
+            return;
+        }
+        // "--export books|members|loans|fines <file> [from [to]]" writes CSV/JSON Lines (see DataExporter) and exits
+        if (args.length > 2 && args[0].equals("--export")) {
+            runExport(args);
+            return;
+        }
+        // "--report <yyyy-MM> [yyyy-MM]" prints the circulation report for those months (see CirculationReports) and exits
+        if (args.length > 1 && args[0].equals("--report")) {
+            runReport(args);
+            return;
+        }
+
         // Set Nimbus Look and Feel for a modern UI
         try {
             UIManager.setLookAndFeel("javax.swing.plaf.nimbus.NimbusLookAndFeel");
@@ -48,11 +207,162 @@ public class LibraryManagementSystem extends JFrame {
             e.printStackTrace();
         }
 
-        // Load data from files at startup
+        // Load data from files in the background, so the window can come up straight away
+        CompletableFuture<Void> loaded = new CompletableFuture<>();
+        Thread loader = new Thread(() -> {
+            try {
+                loadData();
+                loaded.complete(null);
+            } catch (Throwable e) {
+                loaded.completeExceptionally(e);
+            }
+            startMetricsEndpoint();
+        }, "loader");
+        loader.start();
+
+        // Run the GUI creation on the Event Dispatch Thread; it stays behind a loading screen until the data is in
+        SwingUtilities.invokeLater(() -> {
+            LibraryManagementSystem frame = new LibraryManagementSystem();
+            frame.setVisible(true);
+            frame.getGlassPane().requestFocusInWindow();
+            loaded.whenComplete((done, error) -> SwingUtilities.invokeLater(() -> {
+                if (error != null) {
+                    error.printStackTrace();
+                    JOptionPane.showMessageDialog(frame, "Error loading data: " + error + "\nThe application will now exit.",
+                            "Load Error", JOptionPane.ERROR_MESSAGE);
+                    System.exit(1);
+                }
+                frame.loadingFinished();
+            }));
+        });
+    }
+
+    /**
+     * "-Dlms.metrics.port=<port>" serves /metrics on localhost while the GUI runs.
+     */
+    private static void startMetricsEndpoint() {
+        Integer metricsPort = Integer.getInteger("lms.metrics.port");
+        if (metricsPort != null) {
+            try {
+                metrics.startEndpoint(metricsPort);
+            } catch (IOException e) {
+                System.err.println("Could not serve metrics on port " + metricsPort + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Parses the port given to --server, exiting with a usage message if it isn't one.
+     */
+    private static int parsePort(String text) {
+        try {
+            int port = Integer.parseInt(text);
+            if (port >= 0 && port <= 65535) {
+                return port;
+            }
+        } catch (NumberFormatException e) {
+            // Falls through to the usage message
+        }
+        System.err.println("Usage: --server [port], where port is a number from 0 to 65535, not \"" + text + "\"");
+        System.exit(1);
+        return -1;
+    }
+
+    /**
+     * Loads the data and serves it over HTTP until the process is stopped (e.g. Ctrl+C),
+     * then flushes the journal.
+     */
+    private static void runServer(int port) {
+        headlessMode = true;
+        loadData();
+        historyTallied.join(); // There is no loading screen to show, so don't answer with fines half counted
+        try {
+            CirculationServer server = CirculationServer.start(port);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.stop();
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "server-shutdown"));
+            System.out.println("Circulation server listening on http://localhost:" + port + "/");
+        } catch (IOException e) {
+            System.err.println("Could not start the server on port " + port + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Imports a catalog file, prints the report, and exits once everything imported is saved.
+     */
+    private static void runImport(Path file) {
+        headlessMode = true;
         loadData();
+        try {
+            CatalogImporter.Report report = CatalogImporter.importFile(file);
+            report.getRejected().forEach(System.out::println);
+            System.out.println(report.summary());
+            saveData().join();
+            journal.close();
+        } catch (IOException | CompletionException e) {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            System.err.println("Import failed: " + cause.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Exports one dataset. For loans, optional from/to dates (yyyy-MM-dd, both inclusive, local time)
+     * limit the export to loans issued on those days; for fines, the to date gives the day to charge up to.
+     */
+    private static void runExport(String[] args) {
+        headlessMode = true;
+        tallyHistory = false;
+        try {
+            DataExporter.Dataset dataset;
+            try {
+                dataset = DataExporter.Dataset.valueOf(args[1].toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown dataset \"" + args[1] + "\"; expected books, members, loans or fines");
+            }
+            Path file = Paths.get(args[2]);
+            long from = args.length > 3 ? startOfDay(LocalDate.parse(args[3])) : Long.MIN_VALUE;
+            long to = args.length > 4 ? startOfDay(LocalDate.parse(args[4]).plusDays(1)) : Long.MAX_VALUE;
+            loadData();
+            long start = System.nanoTime();
+            long rows = DataExporter.export(dataset, file, from, to);
+            System.out.printf("Exported %,d rows to %s in %.1f s.%n", rows, file, (System.nanoTime() - start) / 1e9);
+            journal.close();
+        } catch (IOException | IllegalArgumentException | DateTimeException e) {
+            System.err.println("Export failed: " + e.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Prints the circulation report for one month, or for a run of months if an end month is given.
+     */
+    private static void runReport(String[] args) {
+        headlessMode = true;
+        tallyHistory = false;
+        try {
+            YearMonth from = CirculationReports.parseMonth(args[1]);
+            YearMonth to = args.length > 2 ? CirculationReports.parseMonth(args[2]) : from;
+            loadData();
+            System.out.print(reports.report(from, to).format(20));
+            journal.close();
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Report failed: " + e.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
 
-        // Run the GUI creation on the Event Dispatch Thread
-        SwingUtilities.invokeLater(() -> new LibraryManagementSystem().setVisible(true));
+    private static long startOfDay(LocalDate day) {
+        return day.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
 
     // --- Main Frame Constructor ---
@@ -67,6 +377,9 @@ public class LibraryManagementSystem extends JFrame {
         addWindowListener(new WindowAdapter() {
             @Override
             public void windowClosing(WindowEvent e) {
+                if (getGlassPane().isVisible()) {
+                    System.exit(0); // Still loading: nothing has been changed, and data files are only ever replaced atomically
+                }
                 handleExit();
             }
         });
@@ -95,11 +408,25 @@ public class LibraryManagementSystem extends JFrame {
         // Add action buttons
         navPanel.add(Box.createVerticalGlue()); // Push buttons below to the bottom
         JButton saveBtn = createNavButton("Save Data");
-        saveBtn.addActionListener(e -> {
-            saveData();
-            JOptionPane.showMessageDialog(this, "Data saved successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
-        });
+        saveBtn.addActionListener(e -> saveData().whenComplete((done, error) -> {
+            if (error != null) {
+                SwingUtilities.invokeLater(() -> showSaveError(error));
+            }
+        }));
         navPanel.add(saveBtn);
+        navPanel.add(Box.createVerticalStrut(5));
+
+        // Saving runs in the background; this shows how far it has got
+        JProgressBar saveProgress = new JProgressBar(0, 100);
+        saveProgress.setStringPainted(true);
+        saveProgress.setString("");
+        saveProgress.setMaximumSize(new Dimension(150, 20));
+        saveProgress.setAlignmentX(Component.CENTER_ALIGNMENT);
+        persistence.addProgressListener((percent, message) -> {
+            saveProgress.setValue(percent);
+            saveProgress.setString(message);
+        });
+        navPanel.add(saveProgress);
         navPanel.add(Box.createVerticalStrut(10));
 
         JButton exitBtn = createNavButton("Exit");
@@ -123,10 +450,62 @@ public class LibraryManagementSystem extends JFrame {
         mainPanel.add(issueReturnPanel, "Issue/Return");
 
         add(mainPanel, BorderLayout.CENTER);
+
+        // --- 4. Loading Screen (lifted by loadingFinished) ---
+        setGlassPane(createLoadingPane());
+        getGlassPane().setVisible(true);
     }
 
     // --- Helper Methods ---
 
+    /**
+     * A translucent screen over the window saying the data is loading. It swallows clicks and keys,
+     * while the tables behind it fill in as each file is read.
+     */
+    private JComponent createLoadingPane() {
+        JPanel pane = new JPanel(new GridBagLayout()) {
+            @Override
+            protected void paintComponent(Graphics g) {
+                g.setColor(new Color(255, 255, 255, 180));
+                g.fillRect(0, 0, getWidth(), getHeight());
+            }
+        };
+        pane.setOpaque(false);
+
+        JPanel box = new JPanel(new BorderLayout(0, 10));
+        box.setBorder(new EmptyBorder(20, 30, 20, 30));
+        JLabel label = new JLabel("Loading library data...", JLabel.CENTER);
+        label.setFont(new Font("Arial", Font.BOLD, 16));
+        JProgressBar progress = new JProgressBar();
+        progress.setIndeterminate(true);
+        box.add(label, BorderLayout.NORTH);
+        box.add(progress, BorderLayout.CENTER);
+        pane.add(box);
+
+        pane.addMouseListener(new MouseAdapter() {});
+        pane.addMouseMotionListener(new MouseMotionAdapter() {});
+        pane.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) { e.consume(); }
+
+            @Override
+            public void keyTyped(KeyEvent e) { e.consume(); }
+        });
+        pane.setFocusable(true);
+        pane.setFocusTraversalKeysEnabled(false); // Keep Tab from moving focus out from under it
+        return pane;
+    }
+
+    /**
+     * Lifts the loading screen once loadData() is done and brings the views that were filled at
+     * construction up to date.
+     */
+    private void loadingFinished() {
+        welcomePanel.refreshStats();
+        issueReturnPanel.refreshPanelData();
+        getGlassPane().setVisible(false);
+    }
+
     /**
      * Creates a styled navigation button.
      */
@@ -158,22 +537,36 @@ public class LibraryManagementSystem extends JFrame {
     }
 
     /**
-     * Handles the exit operation, prompting user to save data.
+     * Handles the exit operation. Changes are already in the journal, so this only flushes it.
+     * The window is disabled while the save finishes in the background, then the application exits.
      */
     private void handleExit() {
         int choice = JOptionPane.showConfirmDialog(this,
-                "Do you want to save your changes before exiting?",
+                "Are you sure you want to exit?",
                 "Confirm Exit",
-                JOptionPane.YES_NO_CANCEL_OPTION,
+                JOptionPane.YES_NO_OPTION,
                 JOptionPane.QUESTION_MESSAGE);
 
         if (choice == JOptionPane.YES_OPTION) {
-            saveData();
-            System.exit(0);
-        } else if (choice == JOptionPane.NO_OPTION) {
-            System.exit(0);
+            setEnabled(false);
+            saveData().whenComplete((done, error) -> SwingUtilities.invokeLater(() -> {
+                if (error != null) {
+                    showSaveError(error);
+                }
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                System.exit(0);
+            }));
         }
-        // If CANCEL, do nothing and stay in the app.
+        // If NO, do nothing and stay in the app.
+    }
+
+    private void showSaveError(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        JOptionPane.showMessageDialog(this, "Error saving data: " + cause.getMessage(), "Save Error", JOptionPane.ERROR_MESSAGE);
     }
 
     // =================================================================================
@@ -181,24 +574,50 @@ public class LibraryManagementSystem extends JFrame {
     // =================================================================================
 
     /**
-     * Represents a Book. Implements Serializable for data persistence.
+     * Represents a Book: a title and its physical copies. Each copy has a barcode and sits in a slot;
+     * a bitset marks the slots whose copy is on the shelf, so a copy is taken or put back in O(1)
+     * and the counts are kept alongside rather than worked out from the copies.
+     * Implements Serializable for data persistence.
      */
     static class Book implements Serializable {
         private static final long serialVersionUID = 1L; // For serialization
+        // Barcodes are unique across the library, and across servers with different -Dlms.node numbers
+        private static final IssueIdGenerator barcodes = new IssueIdGenerator(Integer.getInteger("lms.node", 0));
+
         private final String id;
-        private String title;
-        private String author;
-        private String publisher;
-        private int quantity; // Total quantity owned
-        private int issued; // Number of copies currently issued
+        private volatile String title;
+        private volatile String author;
+        private volatile String publisher;
+        private volatile int quantity; // Total quantity owned, i.e. the number of copies
+        private volatile int issued; // Number of copies off the shelf: issued, or set aside for a member's hold
+        // The copies by slot, and which slots are on the shelf. Guarded by 'this'; rebuilt by readObject()
+        private transient ArrayList<Copy> copies;
+        private transient BitSet shelf;
 
         public Book(String id, String title, String author, String publisher, int quantity) {
+            this(id, title, author, publisher, newBarcodes(quantity));
+        }
+
+        // Used to restore a book exactly as it was, e.g. when loading from disk. Every copy starts on the shelf
+        Book(String id, String title, String author, String publisher, long[] barcodes) {
             this.id = id;
             this.title = title;
             this.author = author;
             this.publisher = publisher;
-            this.quantity = quantity;
-            this.issued = 0; // Initially, 0 are issued
+            setCopies(barcodes);
+        }
+
+        static long[] newBarcodes(int count) {
+            long[] fresh = new long[count];
+            for (int i = 0; i < count; i++) {
+                fresh[i] = barcodes.next();
+            }
+            return fresh;
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            setCopies(newBarcodes(quantity)); // The .ser format never had copies; loading recounts what is issued
         }
 
         // Getters
@@ -216,30 +635,158 @@ public class LibraryManagementSystem extends JFrame {
             return quantity - issued;
         }
 
+        /**
+         * Returns the copies, in slot order.
+         */
+        public synchronized List<Copy> getCopies() {
+            return new ArrayList<>(copies);
+        }
+
+        synchronized void forEachCopy(Consumer<Copy> action) {
+            copies.forEach(action);
+        }
+
+        public synchronized long[] getBarcodes() {
+            long[] all = new long[copies.size()];
+            for (int slot = 0; slot < all.length; slot++) {
+                all[slot] = copies.get(slot).getBarcode();
+            }
+            return all;
+        }
+
         // Setters
         public void setTitle(String title) { this.title = title; }
         public void setAuthor(String author) { this.author = author; }
         public void setPublisher(String publisher) { this.publisher = publisher; }
-        public void setQuantity(int quantity) { this.quantity = quantity; }
 
         /**
-         * Call when a book is issued. Returns false if no copies are available.
+         * Sets the total quantity, adding copies with new barcodes or taking copies off the shelf.
+         * Returns false, leaving it unchanged, if there aren't enough copies on the shelf to remove.
          */
-        public boolean issueBook() {
-            if (getAvailableQuantity() > 0) {
-                this.issued++;
-                return true;
+        public synchronized boolean setQuantity(int quantity) {
+            if (copies.size() - quantity > shelf.cardinality()) {
+                return false;
+            }
+            while (copies.size() < quantity) {
+                Copy copy = new Copy(barcodes.next(), this, copies.size());
+                copies.add(copy);
+                shelf.set(copy.slot);
+            }
+            while (copies.size() > quantity) {
+                removeSlot(shelf.previousSetBit(copies.size() - 1));
+            }
+            this.quantity = copies.size();
+            return true;
+        }
+
+        /**
+         * Drops the copy in the given slot, moving the last copy into it so the slots stay packed.
+         */
+        private void removeSlot(int slot) {
+            int lastSlot = copies.size() - 1;
+            Copy removed = copies.get(slot);
+            Copy last = copies.remove(lastSlot);
+            boolean lastOnShelf = shelf.get(lastSlot);
+            shelf.clear(lastSlot);
+            if (slot != lastSlot) {
+                copies.set(slot, last);
+                last.slot = slot;
+                shelf.set(slot, lastOnShelf);
+            }
+            removed.setStatus(Copy.Status.WITHDRAWN);
+        }
+
+        /**
+         * Takes any copy off the shelf for a loan. Returns null if no copies are available.
+         */
+        public synchronized Copy issueBook() {
+            int slot = shelf.nextSetBit(0);
+            return slot < 0 ? null : take(slot, Copy.Status.ON_LOAN);
+        }
+
+        /**
+         * Takes the given copy off the shelf for a loan, in O(1). Returns false if it isn't on the shelf.
+         */
+        public synchronized boolean issueBook(Copy copy) {
+            if (!isCurrent(copy) || !shelf.get(copy.slot)) {
+                return false;
+            }
+            take(copy.slot, Copy.Status.ON_LOAN);
+            return true;
+        }
+
+        /**
+         * Takes any copy off the shelf to set aside for a hold. Returns null if no copies are available.
+         */
+        public synchronized Copy setAsideCopy() {
+            int slot = shelf.nextSetBit(0);
+            return slot < 0 ? null : take(slot, Copy.Status.ON_HOLD);
+        }
+
+        /**
+         * Takes the given copy off the shelf to set aside for a hold. Returns false if it isn't on the shelf.
+         */
+        public synchronized boolean setAsideCopy(Copy copy) {
+            if (!isCurrent(copy) || !shelf.get(copy.slot)) {
+                return false;
             }
-            return false;
+            take(copy.slot, Copy.Status.ON_HOLD);
+            return true;
+        }
+
+        private Copy take(int slot, Copy.Status status) {
+            shelf.clear(slot);
+            issued++;
+            Copy copy = copies.get(slot);
+            copy.setStatus(status);
+            return copy;
+        }
+
+        /**
+         * Moves a copy that is already off the shelf to a new status, e.g. from on loan to set aside
+         * for a hold, or from set aside to on loan when it is collected.
+         */
+        public synchronized void moveOffShelf(Copy copy, Copy.Status status) {
+            if (isCurrent(copy) && !shelf.get(copy.slot)) {
+                copy.setStatus(status);
+            }
+        }
+
+        /**
+         * Puts a copy back on the shelf, in O(1). Does nothing if it is already there or was withdrawn.
+         */
+        public synchronized void returnBook(Copy copy) {
+            if (isCurrent(copy) && !shelf.get(copy.slot)) {
+                shelf.set(copy.slot);
+                issued--;
+                copy.setStatus(Copy.Status.AVAILABLE);
+            }
+        }
+
+        private boolean isCurrent(Copy copy) {
+            return copy != null && copy.getBook() == this && copy.slot < copies.size() && copies.get(copy.slot) == copy;
         }
 
         /**
-         * Call when a book is returned.
+         * Replaces the copies with ones carrying the given barcodes, all on the shelf. Used while
+         * loading, before the loans and holds are matched up with their copies again.
          */
-        public void returnBook() {
-            if (this.issued > 0) {
-                this.issued--;
+        synchronized void setCopies(long[] barcodes) {
+            copies = new ArrayList<>(barcodes.length);
+            shelf = new BitSet(barcodes.length);
+            for (long barcode : barcodes) {
+                copies.add(new Copy(barcode, this, copies.size()));
             }
+            shelf.set(0, barcodes.length);
+            quantity = barcodes.length;
+            issued = 0;
+        }
+
+        /**
+         * Returns an independent copy, e.g. for a snapshot that is saved in the background.
+         */
+        Book copy() {
+            return new Book(id, title, author, publisher, getBarcodes());
         }
 
         @Override
@@ -248,15 +795,75 @@ public class LibraryManagementSystem extends JFrame {
         }
     }
 
+    /**
+     * A book's fields as entered, checked but not yet made into a {@link Book}. Making the book draws a
+     * barcode for every copy, so that is left until it is really being added.
+     */
+    static final class BookDetails {
+        private final String id;
+        private final String title;
+        private final String author;
+        private final String publisher;
+        private final int quantity;
+
+        BookDetails(String id, String title, String author, String publisher, int quantity) {
+            this.id = id;
+            this.title = title;
+            this.author = author;
+            this.publisher = publisher;
+            this.quantity = quantity;
+        }
+
+        public String getId() { return id; }
+        public String getTitle() { return title; }
+        public String getAuthor() { return author; }
+        public String getPublisher() { return publisher; }
+        public int getQuantity() { return quantity; }
+
+        /**
+         * Makes the book, with a new barcode for each copy.
+         */
+        public Book toBook() {
+            return new Book(id, title, author, publisher, quantity);
+        }
+    }
+
+    /**
+     * One physical copy of a book, identified by its barcode. Its slot and status change only while
+     * its book is locked.
+     */
+    static final class Copy {
+        enum Status { AVAILABLE, ON_LOAN, ON_HOLD, WITHDRAWN }
+
+        private final long barcode;
+        private final Book book;
+        int slot; // Position in the book's copies
+        private volatile Status status = Status.AVAILABLE;
+
+        Copy(long barcode, Book book, int slot) {
+            this.barcode = barcode;
+            this.book = book;
+            this.slot = slot;
+        }
+
+        public long getBarcode() { return barcode; }
+        public Book getBook() { return book; }
+        public Status getStatus() { return status; }
+
+        void setStatus(Status status) {
+            this.status = status;
+        }
+    }
+
     /**
      * Represents a Library Member. Implements Serializable.
      */
     static class Member implements Serializable {
         private static final long serialVersionUID = 2L;
         private final String id;
-        private String name;
-        private String email;
-        private String contact;
+        private volatile String name;
+        private volatile String email;
+        private volatile String contact;
 
         public Member(String id, String name, String email, String contact) {
             this.id = id;
@@ -276,6 +883,10 @@ public class LibraryManagementSystem extends JFrame {
         public void setEmail(String email) { this.email = email; }
         public void setContact(String contact) { this.contact = contact; }
 
+        Member copy() {
+            return new Member(id, name, email, contact);
+        }
+
         @Override
         public String toString() {
             return name + " (" + id + ")"; // Used in JComboBox
@@ -287,840 +898,8148 @@ public class LibraryManagementSystem extends JFrame {
      */
     static class IssueRecord implements Serializable {
         private static final long serialVersionUID = 3L;
-        private final String issueId;
-        private final String bookId;
-        private final String memberId;
-        private final Date issueDate;
-        private Date returnDate;
-
-        public IssueRecord(String bookId, String memberId) {
-            this.issueId = "I-" + System.currentTimeMillis(); // Unique ID
+        // The .ser files of older versions stored the issue ID as a String; keep reading that form
+        private static final ObjectStreamField[] serialPersistentFields = {
+                new ObjectStreamField("issueId", String.class),
+                new ObjectStreamField("bookId", String.class),
+                new ObjectStreamField("memberId", String.class),
+                new ObjectStreamField("issueDate", Date.class),
+                new ObjectStreamField("returnDate", Date.class)
+        };
+        // Node number from -Dlms.node, so several servers can issue loans without ID clashes
+        private static final IssueIdGenerator ids = new IssueIdGenerator(Integer.getInteger("lms.node", 0));
+        // How long a loan runs, from -Dlms.loanDays; also given to loans saved before there were due dates
+        static final int LOAN_DAYS = Integer.getInteger("lms.loanDays", 14);
+
+        // Not final only so readObject() can restore them
+        private long issueId;
+        private String bookId;
+        private String memberId;
+        private Date issueDate;
+        private Date dueDate;
+        private volatile Date returnDate;
+        // Barcode of the copy on loan; 0 if not known, e.g. for loans saved before copies had barcodes
+        private volatile long barcode;
+
+        public IssueRecord(String bookId, String memberId, long barcode) {
+            this.issueId = ids.next(); // Unique ID
             this.bookId = bookId;
             this.memberId = memberId;
             this.issueDate = new Date(); // Set to current date/time
+            this.dueDate = defaultDueDate(issueDate);
             this.returnDate = null; // Not returned yet
+            this.barcode = barcode;
+        }
+
+        // Used to restore a record exactly as it was, e.g. when replaying the journal
+        IssueRecord(long issueId, String bookId, String memberId, Date issueDate, Date dueDate, Date returnDate) {
+            this(issueId, bookId, memberId, issueDate, dueDate, returnDate, 0);
+        }
+
+        IssueRecord(long issueId, String bookId, String memberId, Date issueDate, Date dueDate, Date returnDate, long barcode) {
+            this.barcode = barcode;
+            this.issueId = issueId;
+            this.bookId = bookId;
+            this.memberId = memberId;
+            this.issueDate = issueDate;
+            this.dueDate = dueDate;
+            this.returnDate = returnDate;
+        }
+
+        /**
+         * The due date of a loan issued at the given time with the standard loan period.
+         */
+        static Date defaultDueDate(Date issueDate) {
+            return new Date(issueDate.getTime() + TimeUnit.DAYS.toMillis(LOAN_DAYS));
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            ObjectInputStream.GetField fields = in.readFields();
+            issueId = IssueIdGenerator.fromLegacy((String) fields.get("issueId", null));
+            bookId = (String) fields.get("bookId", null);
+            memberId = (String) fields.get("memberId", null);
+            issueDate = (Date) fields.get("issueDate", null);
+            dueDate = defaultDueDate(issueDate); // The .ser format never had due dates
+            returnDate = (Date) fields.get("returnDate", null);
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            ObjectOutputStream.PutField fields = out.putFields();
+            fields.put("issueId", Long.toString(issueId));
+            fields.put("bookId", bookId);
+            fields.put("memberId", memberId);
+            fields.put("issueDate", issueDate);
+            fields.put("returnDate", returnDate);
+            out.writeFields();
         }
 
         // Getters
-        public String getIssueId() { return issueId; }
+        public long getIssueId() { return issueId; }
         public String getBookId() { return bookId; }
         public String getMemberId() { return memberId; }
         public Date getIssueDate() { return issueDate; }
+        public Date getDueDate() { return dueDate; }
         public Date getReturnDate() { return returnDate; }
+        public long getBarcode() { return barcode; }
 
         public boolean isReturned() {
             return returnDate != null;
         }
 
+        /**
+         * True if the loan was still out after its due date at the given time.
+         */
+        public boolean isOverdueAt(long millis) {
+            Date returned = returnDate;
+            long end = returned == null ? millis : Math.min(millis, returned.getTime());
+            return end > dueDate.getTime();
+        }
+
         // Setters
         public void setReturnDate(Date returnDate) {
             this.returnDate = returnDate;
         }
-    }
-
-    // =================================================================================
-    // --- GUI Panels (Static Inner Classes) ---
-    // =================================================================================
 
-    /**
-     * The default panel shown on startup.
-     */
-    static class WelcomePanel extends JPanel {
-        public WelcomePanel() {
-            setLayout(new BorderLayout());
-            JLabel welcomeLabel = new JLabel("Welcome to the Library!", JLabel.CENTER);
-            welcomeLabel.setFont(new Font("Arial", Font.BOLD, 32));
-            add(welcomeLabel, BorderLayout.CENTER);
+        void setBarcode(long barcode) {
+            this.barcode = barcode;
+        }
 
-            // Add some stats
-            JPanel statsPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 50, 20));
-            statsPanel.add(new JLabel("Total Books: " + books.size()));
-            statsPanel.add(new JLabel("Total Members: " + members.size()));
-            statsPanel.add(new JLabel("Books Issued: " + issueRecords.stream().filter(r -> !r.isReturned()).count()));
+        IssueRecord copy() {
+            return new IssueRecord(issueId, bookId, memberId, issueDate, dueDate, returnDate, barcode);
+        }
 
-            add(statsPanel, BorderLayout.SOUTH);
+        /**
+         * Makes sure loans issued from now on get IDs higher than the given one, e.g. the highest loaded.
+         */
+        static void advanceIdsPast(long issueId) {
+            ids.advancePast(issueId);
+        }
 
-            // Add component listener to refresh stats when shown
-            addComponentListener(new ComponentAdapter() {
-                @Override
-                public void componentShown(ComponentEvent e) {
-                    // This is a bit simplistic, but demonstrates the idea
-                    // For a real app, you'd have a more robust way to update stats
-                    statsPanel.removeAll();
-                    statsPanel.add(new JLabel("Total Books: " + books.size()));
-                    statsPanel.add(new JLabel("Total Members: " + members.size()));
-                    statsPanel.add(new JLabel("Books Issued: " + issueRecords.stream().filter(r -> !r.isReturned()).count()));
-                    statsPanel.revalidate();
-                    statsPanel.repaint();
-                }
-            });
+        /**
+         * Returns a copy of this record under another issue ID.
+         */
+        IssueRecord withIssueId(long issueId) {
+            return new IssueRecord(issueId, bookId, memberId, issueDate, dueDate, returnDate, barcode);
         }
     }
 
     /**
-     * Panel for Viewing, Adding, Updating, and Deleting Books.
+     * A member's place in the queue for a book. A hold waits until a copy is free, is then ready for
+     * the member to collect until its expiry date, and ends when they borrow the copy, cancel, or let
+     * it lapse. A copy set aside for a ready hold counts as issued, so nobody else can take it.
      */
-    static class ViewBooksPanel extends JPanel {
-        private final DefaultTableModel tableModel;
-        private final JTable table;
+    static class Hold {
+        enum Status { WAITING, READY, COLLECTED, CANCELLED, EXPIRED }
 
-        public ViewBooksPanel() {
-            setLayout(new BorderLayout(10, 10));
-            setBorder(new EmptyBorder(10, 10, 10, 10));
+        static final int PICKUP_DAYS = Integer.getInteger("lms.holdPickupDays", 3);
+        private static final IssueIdGenerator ids = new IssueIdGenerator(Integer.getInteger("lms.node", 0));
 
-            // --- Table ---
-            String[] columnNames = {"Book ID", "Title", "Author", "Publisher", "Quantity", "Issued", "Available"};
-            tableModel = new DefaultTableModel(columnNames, 0) {
-                // Make cells non-editable
-                @Override
-                public boolean isCellEditable(int row, int column) {
-                    return false;
-                }
-            };
-            table = new JTable(tableModel);
-            table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
-            add(new JScrollPane(table), BorderLayout.CENTER);
+        private final long holdId;
+        private final String bookId;
+        private final String memberId;
+        private final Date placedDate;
+        private volatile Date expiryDate; // Set once a copy is set aside
+        private volatile Status status;
+        private volatile long barcode; // The copy set aside once ready; 0 if not known
+        long sequence; // Arrival order within the book's queue; see HoldQueue
+
+        public Hold(String bookId, String memberId) {
+            this(ids.next(), bookId, memberId, new Date(), null);
+        }
 
-            // --- Button Panel ---
-            JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 10, 10));
+        // Used to restore a hold exactly as it was, e.g. when loading from disk
+        Hold(long holdId, String bookId, String memberId, Date placedDate, Date expiryDate) {
+            this.holdId = holdId;
+            this.bookId = bookId;
+            this.memberId = memberId;
+            this.placedDate = placedDate;
+            this.expiryDate = expiryDate;
+            this.status = expiryDate == null ? Status.WAITING : Status.READY;
+        }
 
-            JButton addBtn = new JButton("Add New Book");
-            addBtn.addActionListener(e -> {
-                AddBookDialog dialog = new AddBookDialog();
-                dialog.setVisible(true);
-                // If book was added, refresh the table
-                if (dialog.isBookAdded()) {
-                    refreshTable();
-                }
-            });
-            buttonPanel.add(addBtn);
+        // Getters
+        public long getHoldId() { return holdId; }
+        public String getBookId() { return bookId; }
+        public String getMemberId() { return memberId; }
+        public Date getPlacedDate() { return placedDate; }
+        public Date getExpiryDate() { return expiryDate; }
+        public Status getStatus() { return status; }
+        public long getBarcode() { return barcode; }
+
+        public boolean isActive() {
+            Status current = status;
+            return current == Status.WAITING || current == Status.READY;
+        }
 
-            JButton updateBtn = new JButton("Update Selected Book");
-            updateBtn.addActionListener(e -> handleUpdateBook());
-            buttonPanel.add(updateBtn);
-
-            JButton deleteBtn = new JButton("Delete Selected Book");
-            deleteBtn.addActionListener(e -> handleDeleteBook());
-            buttonPanel.add(deleteBtn);
+        /**
+         * A copy has been set aside; the member has until the expiry date to collect it.
+         */
+        void setReady(Date expiryDate, long barcode) {
+            this.expiryDate = expiryDate;
+            this.barcode = barcode;
+            this.status = Status.READY;
+        }
 
-            add(buttonPanel, BorderLayout.SOUTH);
+        void setBarcode(long barcode) {
+            this.barcode = barcode;
+        }
 
-            // Refresh table when panel is shown
-            addComponentListener(new ComponentAdapter() {
-                @Override
-                public void componentShown(ComponentEvent e) {
-                    refreshTable();
-                }
-            });
+        void end(Status status) {
+            this.status = status;
         }
 
-        /**
-         * Repopulates the JTable with the latest data from the 'books' list.
-         */
-        public void refreshTable() {
-            // Clear existing rows
-            tableModel.setRowCount(0);
-            // Add new rows from the list
-            for (Book b : books) {
-                tableModel.addRow(new Object[]{
-                        b.getId(),
-                        b.getTitle(),
-                        b.getAuthor(),
-                        b.getPublisher(),
-                        b.getQuantity(),
-                        b.getIssued(),
-                        b.getAvailableQuantity()
-                });
-            }
+        Hold copy() {
+            Hold copy = new Hold(holdId, bookId, memberId, placedDate, expiryDate);
+            copy.barcode = barcode;
+            return copy;
         }
+    }
 
-        private void handleUpdateBook() {
-            int selectedRow = table.getSelectedRow();
-            if (selectedRow == -1) {
-                JOptionPane.showMessageDialog(this, "Please select a book to update.", "No Selection", JOptionPane.WARNING_MESSAGE);
-                return;
+    /**
+     * Hands out issue IDs Snowflake-style: milliseconds since {@link #EPOCH}, a node number and a
+     * sequence within the millisecond, packed into one positive long (41, 10 and 12 bits). IDs from
+     * one generator always increase, and generators with different node numbers never collide.
+     * The last time and sequence live together in one AtomicLong, so taking an ID is a single CAS.
+     * More than 4096 IDs in a millisecond simply carry into the next one instead of waiting, and a
+     * clock that steps backwards is ridden out the same way.
+     */
+    static final class IssueIdGenerator {
+        static final long EPOCH = 1704067200000L; // 2024-01-01T00:00:00Z
+        private static final int NODE_BITS = 10;
+        private static final int SEQUENCE_BITS = 12;
+        static final int MAX_NODE = (1 << NODE_BITS) - 1;
+
+        private final long node;
+        private final AtomicLong last = new AtomicLong(); // (millis since EPOCH << SEQUENCE_BITS) | sequence
+
+        IssueIdGenerator(int node) {
+            if (node < 0 || node > MAX_NODE) {
+                throw new IllegalArgumentException("Node number must be between 0 and " + MAX_NODE + ", not " + node);
             }
+            this.node = node;
+        }
 
-            String bookId = (String) tableModel.getValueAt(selectedRow, 0);
-            // Find the book object
-            Book bookToUpdate = books.stream()
-                    .filter(b -> b.getId().equals(bookId))
-                    .findFirst()
-                    .orElse(null);
-
-            if (bookToUpdate == null) {
-                JOptionPane.showMessageDialog(this, "Error: Could not find selected book.", "Error", JOptionPane.ERROR_MESSAGE);
-                return;
-            }
+        public long next() {
+            long now = (System.currentTimeMillis() - EPOCH) << SEQUENCE_BITS;
+            // A full sequence overflows into the time bits, i.e. borrows the next millisecond
+            long stamp = last.accumulateAndGet(now, (previous, current) -> Math.max(current, previous + 1));
+            long millis = stamp >>> SEQUENCE_BITS;
+            long sequence = stamp & ((1L << SEQUENCE_BITS) - 1);
+            return (millis << (NODE_BITS + SEQUENCE_BITS)) | (node << SEQUENCE_BITS) | sequence;
+        }
 
-            // Open the AddBookDialog, pre-filled with the book's data
-            AddBookDialog dialog = new AddBookDialog(bookToUpdate);
-            dialog.setVisible(true);
+        /**
+         * Makes sure every later ID is higher than the given one, even if the clock has since been set
+         * back or the last run borrowed milliseconds that haven't come round yet.
+         */
+        public void advancePast(long id) {
+            long stamp = ((id >>> (NODE_BITS + SEQUENCE_BITS)) << SEQUENCE_BITS) | (id & ((1L << SEQUENCE_BITS) - 1));
+            last.accumulateAndGet(stamp, Math::max);
+        }
 
-            // If data was updated, refresh
-            if (dialog.isBookAdded()) { // "isBookAdded" flag is used for both add and update
-                refreshTable();
+        /**
+         * Converts an issue ID from older versions, "I-" followed by the issue time in millis, to a
+         * long: the millis themselves. Any ID generated here is far larger (it is the millis since
+         * 2024 shifted left by 22 bits), so old and new IDs never clash.
+         */
+        static long fromLegacy(String issueId) throws IOException {
+            String digits = issueId != null && issueId.startsWith("I-") ? issueId.substring(2) : issueId;
+            try {
+                return Long.parseLong(digits);
+            } catch (NumberFormatException e) {
+                throw new InvalidObjectException("Unrecognised issue ID '" + issueId + "'");
             }
         }
+    }
 
-        private void handleDeleteBook() {
-            int selectedRow = table.getSelectedRow();
-            if (selectedRow == -1) {
-                JOptionPane.showMessageDialog(this, "Please select a book to delete.", "No Selection", JOptionPane.WARNING_MESSAGE);
-                return;
-            }
+    // =================================================================================
+    // --- Domain Events ---
+    // =================================================================================
 
-            String bookId = (String) tableModel.getValueAt(selectedRow, 0);
+    /**
+     * A minimal publish/subscribe bus for domain events. Handlers subscribe to an event class and
+     * are called synchronously, in subscription order, on the thread that publishes. Events may be
+     * published from any thread, so handlers must be thread-safe or use {@link #subscribeOnEdt}.
+     */
+    static final class EventBus {
+        private final Map<Class<?>, List<Consumer<Object>>> handlers = new ConcurrentHashMap<>();
 
-            int confirm = JOptionPane.showConfirmDialog(this,
-                    "Are you sure you want to delete this book? ID: " + bookId,
-                    "Confirm Deletion",
-                    JOptionPane.YES_NO_OPTION,
-                    JOptionPane.WARNING_MESSAGE);
+        @SuppressWarnings("unchecked")
+        public <E> void subscribe(Class<E> type, Consumer<? super E> handler) {
+            handlers.computeIfAbsent(type, k -> new CopyOnWriteArrayList<>()).add((Consumer<Object>) handler);
+        }
 
-            if (confirm == JOptionPane.YES_OPTION) {
-                // Check if book is currently issued
-                boolean isIssued = issueRecords.stream().anyMatch(r -> r.getBookId().equals(bookId) && !r.isReturned());
-                if (isIssued) {
-                    JOptionPane.showMessageDialog(this, "Cannot delete book. It is currently issued to a member.", "Error", JOptionPane.ERROR_MESSAGE);
-                    return;
+        /**
+         * Like {@link #subscribe}, but the handler always runs on the EDT: straight away if the event
+         * is published there, later otherwise. For handlers that touch Swing components.
+         */
+        public <E> void subscribeOnEdt(Class<E> type, Consumer<? super E> handler) {
+            subscribe(type, event -> {
+                if (SwingUtilities.isEventDispatchThread()) {
+                    handler.accept(event);
+                } else {
+                    SwingUtilities.invokeLater(() -> handler.accept(event));
                 }
+            });
+        }
 
-                // Remove the book
-                books.removeIf(b -> b.getId().equals(bookId));
-                refreshTable(); // Refresh table to show removal
-                JOptionPane.showMessageDialog(this, "Book deleted successfully.", "Success", JOptionPane.INFORMATION_MESSAGE);
+        /**
+         * Calls every handler subscribed to the event's class. A handler that throws is logged and
+         * skipped, so the rest still hear about the event.
+         */
+        public void publish(Object event) {
+            List<Consumer<Object>> subscribed = handlers.get(event.getClass());
+            if (subscribed != null) {
+                for (Consumer<Object> handler : subscribed) {
+                    try {
+                        handler.accept(event);
+                    } catch (RuntimeException e) {
+                        System.err.println("Event handler failed on " + event.getClass().getSimpleName() + ":");
+                        e.printStackTrace();
+                    }
+                }
             }
         }
     }
 
     /**
-     * Panel for Viewing, Adding, Updating, and Deleting Members.
+     * What happened to a book or member in a BookChanged or MemberChanged event.
      */
-    static class ViewMembersPanel extends JPanel {
-        private final DefaultTableModel tableModel;
-        private final JTable table;
-
-        public ViewMembersPanel() {
-            setLayout(new BorderLayout(10, 10));
-            setBorder(new EmptyBorder(10, 10, 10, 10));
-
-            // --- Table ---
-            String[] columnNames = {"Member ID", "Name", "Email", "Contact No."};
-            tableModel = new DefaultTableModel(columnNames, 0) {
-                @Override
-                public boolean isCellEditable(int row, int column) {
-                    return false;
-                }
-            };
-            table = new JTable(tableModel);
-            table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
-            add(new JScrollPane(table), BorderLayout.CENTER);
+    enum ChangeType { ADDED, UPDATED, DELETED }
 
-            // --- Button Panel ---
-            JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 10, 10));
+    /**
+     * A copy of a book was issued. The book and record reflect the state after the issue.
+     * Batched if it is part of a batch, which is followed by a {@link LoansBatched} event.
+     */
+    static final class BookIssued {
+        private final IssueRecord record;
+        private final Book book;
+        private final boolean batched;
+
+        BookIssued(IssueRecord record, Book book, boolean batched) {
+            this.record = record;
+            this.book = book;
+            this.batched = batched;
+        }
 
-            JButton addBtn = new JButton("Add New Member");
-            addBtn.addActionListener(e -> {
-                AddMemberDialog dialog = new AddMemberDialog();
-                dialog.setVisible(true);
-                if (dialog.isMemberAdded()) {
-                    refreshTable();
-                }
-            });
-            buttonPanel.add(addBtn);
+        public IssueRecord getRecord() { return record; }
+        public Book getBook() { return book; }
+        public boolean isBatched() { return batched; }
+    }
 
-            JButton updateBtn = new JButton("Update Selected Member");
-            updateBtn.addActionListener(e -> handleUpdateMember());
-            buttonPanel.add(updateBtn);
+    /**
+     * An issued copy came back. The book is null if it has since been deleted.
+     * Batched if it is part of a batch, which is followed by a {@link LoansBatched} event.
+     */
+    static final class BookReturned {
+        private final IssueRecord record;
+        private final Book book;
+        private final boolean batched;
+
+        BookReturned(IssueRecord record, Book book, boolean batched) {
+            this.record = record;
+            this.book = book;
+            this.batched = batched;
+        }
 
-            JButton deleteBtn = new JButton("Delete Selected Member");
-            deleteBtn.addActionListener(e -> handleDeleteMember());
-            buttonPanel.add(deleteBtn);
+        public IssueRecord getRecord() { return record; }
+        public Book getBook() { return book; }
+        public boolean isBatched() { return batched; }
+    }
 
-            add(buttonPanel, BorderLayout.SOUTH);
+    /**
+     * A batch of loans was issued or returned in one go. Published once the batch's own
+     * BookIssued or BookReturned events are out, so a view can skip those and redraw just once.
+     */
+    static final class LoansBatched {
+        private final List<IssueRecord> issued;
+        private final List<IssueRecord> returned;
 
-            // Refresh table when panel is shown
-            addComponentListener(new ComponentAdapter() {
-                @Override
-                public void componentShown(ComponentEvent e) {
-                    refreshTable();
-                }
-            });
+        LoansBatched(List<IssueRecord> issued, List<IssueRecord> returned) {
+            this.issued = issued;
+            this.returned = returned;
         }
 
-        /**
-         * Repopulates the JTable with the latest data from the 'members' list.
-         */
-        public void refreshTable() {
-            tableModel.setRowCount(0);
-            for (Member m : members) {
-                tableModel.addRow(new Object[]{
-                        m.getId(),
-                        m.getName(),
-                        m.getEmail(),
-                        m.getContact()
-                });
-            }
-        }
+        public List<IssueRecord> getIssued() { return issued; }
+        public List<IssueRecord> getReturned() { return returned; }
+    }
 
-        private void handleUpdateMember() {
-            int selectedRow = table.getSelectedRow();
-            if (selectedRow == -1) {
-                JOptionPane.showMessageDialog(this, "Please select a member to update.", "No Selection", JOptionPane.WARNING_MESSAGE);
-                return;
-            }
+    /**
+     * An open loan went past its due date. Published once per loan, when the overdue tracker's
+     * timer gets to it (or at once for a loan issued already overdue).
+     */
+    static final class LoanOverdue {
+        private final IssueRecord record;
 
-            String memberId = (String) tableModel.getValueAt(selectedRow, 0);
-            Member memberToUpdate = members.stream()
-                    .filter(m -> m.getId().equals(memberId))
-                    .findFirst()
-                    .orElse(null);
+        LoanOverdue(IssueRecord record) {
+            this.record = record;
+        }
 
-            if (memberToUpdate == null) {
-                JOptionPane.showMessageDialog(this, "Error: Could not find selected member.", "Error", JOptionPane.ERROR_MESSAGE);
-                return;
-            }
+        public IssueRecord getRecord() { return record; }
+    }
 
-            AddMemberDialog dialog = new AddMemberDialog(memberToUpdate);
-            dialog.setVisible(true);
+    /**
+     * A hold was placed, became ready for collection, or ended. {@code status} is the hold's status
+     * as of this event; the hold itself may have moved on by the time an EDT handler sees it.
+     */
+    static final class HoldChanged {
+        private final Hold hold;
+        private final Hold.Status status;
 
-            if (dialog.isMemberAdded()) {
-                refreshTable();
-            }
+        HoldChanged(Hold hold) {
+            this.hold = hold;
+            this.status = hold.getStatus();
         }
 
-        private void handleDeleteMember() {
-            int selectedRow = table.getSelectedRow();
-            if (selectedRow == -1) {
-                JOptionPane.showMessageDialog(this, "Please select a member to delete.", "No Selection", JOptionPane.WARNING_MESSAGE);
-                return;
-            }
-
-            String memberId = (String) tableModel.getValueAt(selectedRow, 0);
-
-            int confirm = JOptionPane.showConfirmDialog(this,
-                    "Are you sure you want to delete this member? ID: " + memberId,
-                    "Confirm Deletion",
-                    JOptionPane.YES_NO_OPTION,
-                    JOptionPane.WARNING_MESSAGE);
+        public Hold getHold() { return hold; }
+        public Hold.Status getStatus() { return status; }
+    }
 
-            if (confirm == JOptionPane.YES_OPTION) {
-                // Check if member has outstanding books
-                boolean hasBooks = issueRecords.stream().anyMatch(r -> r.getMemberId().equals(memberId) && !r.isReturned());
-                if (hasBooks) {
-                    JOptionPane.showMessageDialog(this, "Cannot delete member. They have books currently issued.", "Error", JOptionPane.ERROR_MESSAGE);
-                    return;
-                }
+    /**
+     * A book was added, edited or deleted.
+     */
+    static final class BookChanged {
+        private final Book book;
+        private final ChangeType type;
 
-                members.removeIf(m -> m.getId().equals(memberId));
-                refreshTable();
-                JOptionPane.showMessageDialog(this, "Member deleted successfully.", "Success", JOptionPane.INFORMATION_MESSAGE);
-            }
+        BookChanged(Book book, ChangeType type) {
+            this.book = book;
+            this.type = type;
         }
+
+        public Book getBook() { return book; }
+        public ChangeType getType() { return type; }
     }
 
     /**
-     * Panel for Issuing books to members and handling returns.
+     * A member was added, edited or deleted.
      */
-    static class IssueReturnPanel extends JPanel {
-        private final JComboBox<Book> bookComboBox;
-        private final JComboBox<Member> memberComboBox;
-        private final DefaultTableModel issueTableModel;
-        private final JTable issueTable;
+    static final class MemberChanged {
+        private final Member member;
+        private final ChangeType type;
 
-        public IssueReturnPanel() {
-            setLayout(new GridLayout(2, 1, 10, 10));
-            setBorder(new EmptyBorder(10, 10, 10, 10));
+        MemberChanged(Member member, ChangeType type) {
+            this.member = member;
+            this.type = type;
+        }
 
-            // --- 1. Issue Book Panel ---
-            JPanel issuePanel = new JPanel(new GridBagLayout());
-            issuePanel.setBorder(new TitledBorder("Issue New Book"));
+        public Member getMember() { return member; }
+        public ChangeType getType() { return type; }
+    }
 
-            GridBagConstraints gbc = new GridBagConstraints();
-            gbc.insets = new Insets(5, 5, 5, 5);
-            gbc.fill = GridBagConstraints.HORIZONTAL;
+    // =================================================================================
+    // --- Repositories (Hash-Indexed Stores) ---
+    // =================================================================================
 
-            // Row 0: Select Book
-            gbc.gridx = 0; gbc.gridy = 0;
-            issuePanel.add(new JLabel("Select Book:"), gbc);
-            gbc.gridx = 1; gbc.gridy = 0; gbc.weightx = 1.0;
-            bookComboBox = new JComboBox<>();
-            issuePanel.add(bookComboBox, gbc);
+    /**
+     * An ordered store of entities with a hash index on their ID.
+     * IDs are compared case-insensitively, matching the duplicate check the dialogs always used.
+     * Removal moves the last entity into the freed slot, so get/exists/remove by ID are all O(1).
+     * All methods lock the store, so it can be used from any thread.
+     */
+    abstract static class Repository<T> implements Iterable<T> {
+        /**
+         * Notified of row-level changes, e.g. by a table model showing the store.
+         */
+        interface Listener {
+            void rowInserted(int row);
+            void rowUpdated(int row);
+            void rowDeleted(int row);
+            void contentsChanged();
+        }
 
-            // Row 1: Select Member
-            gbc.gridx = 0; gbc.gridy = 1; gbc.weightx = 0;
-            issuePanel.add(new JLabel("Select Member:"), gbc);
-            gbc.gridx = 1; gbc.gridy = 1; gbc.weightx = 1.0;
-            memberComboBox = new JComboBox<>();
-            issuePanel.add(memberComboBox, gbc);
+        private final ArrayList<T> items = new ArrayList<>();
+        private final HashMap<String, Integer> index = new HashMap<>(); // normalized ID -> position in items
+        private final ArrayList<Listener> listeners = new ArrayList<>(); // Called while holding the lock
 
-            // Row 2: Issue Button
-            gbc.gridx = 1; gbc.gridy = 2; gbc.weightx = 0;
-            gbc.fill = GridBagConstraints.NONE; gbc.anchor = GridBagConstraints.CENTER;
-            JButton issueButton = new JButton("Issue Book");
-            issueButton.addActionListener(e -> handleIssueBook());
-            issuePanel.add(issueButton, gbc);
+        /**
+         * Returns the ID of the given entity.
+         */
+        protected abstract String idOf(T item);
 
-            add(issuePanel);
+        /**
+         * Normalizes an ID into its index key.
+         */
+        static String normalize(String id) {
+            return id.trim().toLowerCase(Locale.ROOT);
+        }
 
-            // --- 2. Return Book Panel (Active Issues) ---
-            JPanel returnPanel = new JPanel(new BorderLayout(10, 10));
-            returnPanel.setBorder(new TitledBorder("Return Book (View Active Issues)"));
+        public synchronized T get(String id) {
+            Integer position = index.get(normalize(id));
+            return position == null ? null : items.get(position);
+        }
 
-            String[] columnNames = {"Issue ID", "Book Title", "Member Name", "Issue Date"};
-            issueTableModel = new DefaultTableModel(columnNames, 0) {
-                @Override
-                public boolean isCellEditable(int row, int column) {
-                    return false;
-                }
-            };
-            issueTable = new JTable(issueTableModel);
-            issueTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
-            returnPanel.add(new JScrollPane(issueTable), BorderLayout.CENTER);
+        public synchronized boolean exists(String id) {
+            return index.containsKey(normalize(id));
+        }
 
-            JButton returnButton = new JButton("Return Selected Book");
-            returnButton.addActionListener(e -> handleReturnBook());
-            returnPanel.add(returnButton, BorderLayout.SOUTH);
+        /**
+         * Returns the entity at the given row, in the order the tables show them, or null if there is
+         * no such row any more (another thread may shrink the store before a table catches up).
+         */
+        public synchronized T getAt(int row) {
+            return row < items.size() ? items.get(row) : null;
+        }
 
-            add(returnPanel);
+        /**
+         * Returns the row of the entity with the given ID, or -1 if there is none.
+         */
+        public synchronized int indexOf(String id) {
+            Integer position = index.get(normalize(id));
+            return position == null ? -1 : position;
+        }
 
-            // Add listener to refresh data when panel is shown
-            addComponentListener(new ComponentAdapter() {
-                @Override
-                public void componentShown(ComponentEvent e) {
-                    refreshPanelData();
-                }
-            });
+        public synchronized void addListener(Listener listener) {
+            listeners.add(listener);
         }
 
         /**
-         * Refreshes both the ComboBoxes and the outstanding issues table.
+         * Adds an entity. Returns false (and adds nothing) if its ID is already taken.
          */
-        public void refreshPanelData() {
-            // Refresh Book ComboBox
-            bookComboBox.removeAllItems();
-            books.stream()
-                    .filter(b -> b.getAvailableQuantity() > 0) // Only show books that are available
-                    .forEach(bookComboBox::addItem);
-
-            // Refresh Member ComboBox
-            memberComboBox.removeAllItems();
-            members.forEach(memberComboBox::addItem);
-
-            // Refresh Active Issues Table
-            issueTableModel.setRowCount(0);
-            for (IssueRecord record : issueRecords) {
-                if (!record.isReturned()) {
-                    // Find book and member names from their IDs
-                    String bookTitle = books.stream()
-                            .filter(b -> b.getId().equals(record.getBookId()))
-                            .map(Book::getTitle)
-                            .findFirst()
-                            .orElse("N/A");
-                    String memberName = members.stream()
-                            .filter(m -> m.getId().equals(record.getMemberId()))
-                            .map(Member::getName)
-                            .findFirst()
-                            .orElse("N/A");
-
-                    issueTableModel.addRow(new Object[]{
-                            record.getIssueId(),
-                            bookTitle,
-                            memberName,
-                            record.getIssueDate().toString()
-                    });
-                }
+        public synchronized boolean add(T item) {
+            String key = normalize(idOf(item));
+            if (index.containsKey(key)) {
+                return false;
             }
+            index.put(key, items.size());
+            items.add(item);
+            listeners.forEach(l -> l.rowInserted(items.size() - 1));
+            return true;
         }
 
-        private void handleIssueBook() {
-            Book selectedBook = (Book) bookComboBox.getSelectedItem();
-            Member selectedMember = (Member) memberComboBox.getSelectedItem();
-
-            if (selectedBook == null || selectedMember == null) {
-                JOptionPane.showMessageDialog(this, "Please select both a book and a member.", "Error", JOptionPane.WARNING_MESSAGE);
-                return;
+        /**
+         * Announces that an entity's fields were changed in place, so views can redraw its row.
+         */
+        public synchronized void update(T item) {
+            int row = indexOf(idOf(item));
+            if (row != -1) {
+                listeners.forEach(l -> l.rowUpdated(row));
             }
+        }
 
-            // 1. Update book availability
-            if (selectedBook.issueBook()) {
-                // 2. Create new issue record
-                IssueRecord newRecord = new IssueRecord(selectedBook.getId(), selectedMember.getId());
-                issueRecords.add(newRecord);
-
-                // 3. Refresh this panel
-                refreshPanelData();
-                JOptionPane.showMessageDialog(this, "Book issued successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
-            } else {
-                JOptionPane.showMessageDialog(this, "Error: No available copies of this book.", "Error", JOptionPane.ERROR_MESSAGE);
+        /**
+         * Removes the entity with the given ID. Returns the removed entity, or null if there was none.
+         */
+        public synchronized T remove(String id) {
+            Integer position = index.remove(normalize(id));
+            if (position == null) {
+                return null;
             }
+            T removed = items.get(position);
+            int lastRow = items.size() - 1;
+            T last = items.remove(lastRow);
+            listeners.forEach(l -> l.rowDeleted(lastRow));
+            if (last != removed) {
+                // Fill the hole with the last entity instead of shifting everything down
+                items.set(position, last);
+                index.put(normalize(idOf(last)), position);
+                listeners.forEach(l -> l.rowUpdated(position));
+            }
+            return removed;
         }
 
-        private void handleReturnBook() {
-            int selectedRow = issueTable.getSelectedRow();
-            if (selectedRow == -1) {
-                JOptionPane.showMessageDialog(this, "Please select an issued book to return.", "No Selection", JOptionPane.WARNING_MESSAGE);
-                return;
+        /**
+         * Replaces the whole contents, e.g. after loading from disk. An entity whose ID is already taken
+         * by an earlier one is left out; those left out are returned, so the caller can report them.
+         */
+        public synchronized List<T> replaceAll(Collection<T> loaded) {
+            items.clear();
+            index.clear();
+            List<T> dropped = new ArrayList<>();
+            for (T item : loaded) {
+                String key = normalize(idOf(item));
+                if (!index.containsKey(key)) {
+                    index.put(key, items.size());
+                    items.add(item);
+                } else {
+                    dropped.add(item);
+                }
             }
+            listeners.forEach(Listener::contentsChanged);
+            return dropped;
+        }
 
-            String issueId = (String) issueTableModel.getValueAt(selectedRow, 0);
-
-            // Find the IssueRecord
-            Optional<IssueRecord> recordOpt = issueRecords.stream()
-                    .filter(r -> r.getIssueId().equals(issueId))
-                    .findFirst();
+        public synchronized void clear() {
+            items.clear();
+            index.clear();
+            listeners.forEach(Listener::contentsChanged);
+        }
 
-            if (recordOpt.isPresent()) {
-                IssueRecord record = recordOpt.get();
+        public synchronized int size() { return items.size(); }
 
-                // 1. Mark as returned
-                record.setReturnDate(new Date());
+        /**
+         * Returns a copy of the contents, in row order.
+         */
+        public synchronized ArrayList<T> toList() {
+            return new ArrayList<>(items);
+        }
 
-                // 2. Update book availability
-                books.stream()
-                        .filter(b -> b.getId().equals(record.getBookId()))
-                        .findFirst()
-                        .ifPresent(Book::returnBook); // Tell the book it was returned
+        /**
+         * Streams a copy of the contents, so it is unaffected by changes made while it is consumed.
+         */
+        public Stream<T> stream() {
+            return toList().stream();
+        }
 
-                // 3. Refresh panel
-                refreshPanelData();
-                JOptionPane.showMessageDialog(this, "Book returned successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
-            } else {
-                JOptionPane.showMessageDialog(this, "Error: Could not find issue record.", "Error", JOptionPane.ERROR_MESSAGE);
-            }
+        @Override
+        public Iterator<T> iterator() {
+            return toList().iterator();
         }
     }
 
-    // =================================================================================
-    // --- GUI Dialogs (Static Inner Classes) ---
+    /**
+     * The book catalog, indexed by book ID, with every copy indexed by barcode.
+     */
+    static class BookRepository extends Repository<Book> {
+        private final LongHashMap<Copy> byBarcode = new LongHashMap<>();
+
+        @Override
+        protected String idOf(Book book) { return book.getId(); }
+
+        /**
+         * Returns the copy with the given barcode, or null if no book in the catalog has it.
+         */
+        public synchronized Copy copy(long barcode) {
+            return byBarcode.get(barcode);
+        }
+
+        /**
+         * Returns the number of copies of every book in the catalog, in O(1).
+         */
+        public synchronized int copyCount() {
+            return byBarcode.size();
+        }
+
+        @Override
+        public synchronized boolean add(Book book) {
+            if (!super.add(book)) {
+                return false;
+            }
+            index(book);
+            return true;
+        }
+
+        @Override
+        public synchronized Book remove(String id) {
+            Book removed = super.remove(id);
+            if (removed != null) {
+                unindex(removed.getBarcodes());
+            }
+            return removed;
+        }
+
+        @Override
+        public synchronized List<Book> replaceAll(Collection<Book> loaded) {
+            List<Book> dropped = super.replaceAll(loaded);
+            byBarcode.clear();
+            for (Book book : toList()) {
+                index(book);
+            }
+            return dropped;
+        }
+
+        @Override
+        public synchronized void clear() {
+            super.clear();
+            byBarcode.clear();
+        }
+
+        /**
+         * Changes the number of copies of a book, keeping the barcode index in step.
+         * Returns false, changing nothing, if the book has too few copies on the shelf to remove.
+         */
+        public synchronized boolean setQuantity(Book book, int quantity) {
+            long[] before = book.getBarcodes();
+            if (!book.setQuantity(quantity)) {
+                return false;
+            }
+            unindex(before);
+            index(book);
+            return true;
+        }
+
+        /**
+         * Replaces the copies of a book with ones carrying the given barcodes, all on the shelf.
+         */
+        public synchronized void setCopies(Book book, long[] barcodes) {
+            unindex(book.getBarcodes());
+            book.setCopies(barcodes);
+            index(book);
+        }
+
+        private void index(Book book) {
+            book.forEachCopy(copy -> byBarcode.put(copy.getBarcode(), copy));
+        }
+
+        private void unindex(long[] barcodes) {
+            for (long barcode : barcodes) {
+                byBarcode.remove(barcode);
+            }
+        }
+    }
+
+    /**
+     * The member register, indexed by member ID.
+     */
+    static class MemberRepository extends Repository<Member> {
+        @Override
+        protected String idOf(Member member) { return member.getId(); }
+    }
+
+    /**
+     * An in-memory inverted index from word tokens to entities, for typeahead search.
+     * Tokens are also kept in a sorted map, so every token starting with a typed prefix is one range
+     * lookup away; indexing goes through a hash map and touches the sorted map only for new tokens.
+     * The index is updated one entity at a time as things are added, edited and deleted, from
+     * whichever thread made the change.
+     */
+    static final class SearchIndex<T> {
+        private final Function<T, String[]> fields;                              // The text fields that get indexed
+        private final HashMap<String, Posting> postings = new HashMap<>();       // token -> entities containing it
+        private final TreeMap<String, Posting> sortedPostings = new TreeMap<>(); // The same, sorted by token
+        private final HashMap<T, String[]> tokensOf = new HashMap<>();           // entity -> its tokens, for removal
+
+        /**
+         * The entities containing one token, unordered, in a plain array: a reference per entry rather
+         * than a hash set node, so a catalog of hundreds of thousands of titles indexes quickly and
+         * without much garbage. Removal scans the array, which is cheap next to the edit that causes it.
+         */
+        private static final class Posting {
+            final String token;
+            Object[] items = new Object[2];
+            int size;
+
+            Posting(String token) {
+                this.token = token;
+            }
+
+            void add(Object item) {
+                if (size == items.length) {
+                    items = Arrays.copyOf(items, size * 2);
+                }
+                items[size++] = item;
+            }
+
+            boolean remove(Object item) {
+                for (int i = 0; i < size; i++) {
+                    if (items[i] == item) {
+                        items[i] = items[--size]; // Order doesn't matter, so fill the hole from the end
+                        items[size] = null;
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }
+
+        SearchIndex(Function<T, String[]> fields) {
+            this.fields = fields;
+        }
+
+        /**
+         * Indexes an entity. It must not be in the index already; {@link #apply} takes care of that.
+         */
+        public synchronized void add(T item) {
+            index(item, tokenize(fields.apply(item)));
+        }
+
+        private void index(T item, String[] tokens) {
+            for (int i = 0; i < tokens.length; i++) {
+                Posting posting = postings.get(tokens[i]);
+                if (posting == null) {
+                    posting = new Posting(tokens[i]);
+                    postings.put(posting.token, posting);
+                    sortedPostings.put(posting.token, posting);
+                }
+                tokens[i] = posting.token; // Share one String per distinct token across all entities
+                posting.add(item);
+            }
+            tokensOf.put(item, tokens);
+        }
+
+        public synchronized void remove(T item) {
+            String[] tokens = tokensOf.remove(item);
+            if (tokens == null) {
+                return;
+            }
+            for (String token : tokens) {
+                Posting posting = postings.get(token);
+                if (posting != null && posting.remove(item) && posting.size == 0) {
+                    postings.remove(token);
+                    sortedPostings.remove(token);
+                }
+            }
+        }
+
+        /**
+         * Applies an add/edit/delete to the index.
+         */
+        public synchronized void apply(T item, ChangeType type) {
+            if (type != ChangeType.ADDED) {
+                remove(item);
+            }
+            if (type != ChangeType.DELETED) {
+                add(item);
+            }
+        }
+
+        public void rebuild(Iterable<T> items) {
+            ArrayList<T> all = new ArrayList<>();
+            items.forEach(all::add); // Read the source before locking the index, never while holding it
+            // Tokenizing is most of the work and touches nothing shared, so it is split over the fork-join pool
+            String[][] tokens = all.parallelStream().map(item -> tokenize(fields.apply(item))).toArray(String[][]::new);
+            synchronized (this) {
+                postings.clear();
+                sortedPostings.clear();
+                tokensOf.clear();
+                for (int i = 0; i < tokens.length; i++) {
+                    index(all.get(i), tokens[i]);
+                }
+            }
+        }
+
+        /**
+         * Returns up to {@code limit} entities passing {@code filter} where every word of the query
+         * is a prefix of one of the entity's tokens. Candidates come from the prefix range of the
+         * longest query word, which is usually the most selective, and the search stops as soon as
+         * enough matches are found.
+         */
+        public synchronized List<T> search(String query, int limit, Predicate<? super T> filter) {
+            String[] terms = tokenize(new String[]{query});
+            if (terms.length == 0) {
+                return Collections.emptyList();
+            }
+            String driver = terms[0];
+            for (String term : terms) {
+                if (term.length() > driver.length()) {
+                    driver = term;
+                }
+            }
+
+            LinkedHashSet<T> results = new LinkedHashSet<>();
+            NavigableMap<String, Posting> range = sortedPostings.subMap(driver, true, driver + Character.MAX_VALUE, false);
+            for (Posting posting : range.values()) {
+                for (int i = 0; i < posting.size; i++) {
+                    @SuppressWarnings("unchecked")
+                    T item = (T) posting.items[i];
+                    if (!results.contains(item) && filter.test(item) && matchesAll(tokensOf.get(item), terms)) {
+                        results.add(item);
+                        if (results.size() >= limit) {
+                            return new ArrayList<>(results);
+                        }
+                    }
+                }
+            }
+            return new ArrayList<>(results);
+        }
+
+        private static boolean matchesAll(String[] tokens, String[] terms) {
+            for (String term : terms) {
+                boolean found = false;
+                for (String token : tokens) {
+                    if (token.startsWith(term)) {
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Splits text into distinct lower-case tokens at every character that isn't a letter or digit.
+         */
+        static String[] tokenize(String[] texts) {
+            ArrayList<String> tokens = new ArrayList<>(); // A handful per entity, so a list beats a set
+            for (String text : texts) {
+                if (text == null) {
+                    continue;
+                }
+                String lower = text.toLowerCase(Locale.ROOT);
+                int start = -1;
+                for (int i = 0; i <= lower.length(); i++) {
+                    boolean wordChar = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+                    if (wordChar && start == -1) {
+                        start = i;
+                    } else if (!wordChar && start != -1) {
+                        String token = lower.substring(start, i);
+                        if (!tokens.contains(token)) {
+                            tokens.add(token);
+                        }
+                        start = -1;
+                    }
+                }
+            }
+            return tokens.toArray(new String[0]);
+        }
+    }
+
+    /**
+     * A hash map from primitive long keys to values, using open addressing with linear probing.
+     * Keys aren't boxed and an entry is two array slots rather than a node object, so a large
+     * index costs a fraction of a {@code HashMap<Long, V>}. Not thread-safe; values must not be null.
+     */
+    static final class LongHashMap<V> {
+        private long[] keys = new long[16];
+        private Object[] values = new Object[16]; // A null value marks an empty slot
+        private int size;
+
+        public int size() {
+            return size;
+        }
+
+        @SuppressWarnings("unchecked")
+        public V get(long key) {
+            int mask = keys.length - 1;
+            for (int slot = slotOf(key, mask); values[slot] != null; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return (V) values[slot];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Maps the key to the value, returning the value it replaced, if any.
+         */
+        @SuppressWarnings("unchecked")
+        public V put(long key, V value) {
+            if (value == null) {
+                throw new NullPointerException("LongHashMap values must not be null");
+            }
+            if ((size + 1) * 4 > keys.length * 3) {
+                resize(keys.length * 2); // Keep the load factor under 3/4
+            }
+            int mask = keys.length - 1;
+            int slot = slotOf(key, mask);
+            while (values[slot] != null) {
+                if (keys[slot] == key) {
+                    V previous = (V) values[slot];
+                    values[slot] = value;
+                    return previous;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+            size++;
+            return null;
+        }
+
+        /**
+         * Removes the key, returning its value, or null if it wasn't there.
+         */
+        @SuppressWarnings("unchecked")
+        public V remove(long key) {
+            int mask = keys.length - 1;
+            int slot = slotOf(key, mask);
+            while (values[slot] != null && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            V removed = (V) values[slot];
+            if (removed == null) {
+                return null;
+            }
+            // Shift later entries of the same probe run back, so no tombstones are needed
+            int hole = slot;
+            for (int next = (hole + 1) & mask; values[next] != null; next = (next + 1) & mask) {
+                int home = slotOf(keys[next], mask);
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    keys[hole] = keys[next];
+                    values[hole] = values[next];
+                    hole = next;
+                }
+            }
+            values[hole] = null;
+            size--;
+            return removed;
+        }
+
+        public void clear() {
+            keys = new long[16];
+            values = new Object[16];
+            size = 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        public void forEachValue(Consumer<? super V> action) {
+            for (Object value : values) {
+                if (value != null) {
+                    action.accept((V) value);
+                }
+            }
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new long[capacity];
+            values = new Object[capacity];
+            int mask = capacity - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != null) {
+                    int slot = slotOf(oldKeys[i], mask);
+                    while (values[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        private static int slotOf(long key, int mask) {
+            long hash = key * 0x9E3779B97F4A7C15L; // Spread IDs whose low bits are mostly zero
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+    }
+
+    /**
+     * The loan history, plus indexes over the loans that are still open.
+     * Open loans are indexed by issue ID, book ID, member ID and copy barcode and kept up to date on every
+     * issue and return, so "is this book out?" and the open-loan count never scan the history.
+     * Only open loans live on the heap: closed ones are archived to a memory-mapped
+     * {@link LoanHistoryFile} and decoded again only when the history is read.
+     * All methods lock the repository, so it can be used from any thread.
+     */
+    static class IssueRepository implements Iterable<IssueRecord> {
+        private final LongHashMap<IssueRecord> openById = new LongHashMap<>();
+        private final HashMap<String, Set<IssueRecord>> openByBook = new HashMap<>();
+        private final HashMap<String, Set<IssueRecord>> openByMember = new HashMap<>();
+        private final LongHashMap<IssueRecord> openByBarcode = new LongHashMap<>(); // Loans whose copy is known
+        private LoanHistoryFile archive;
+        private int rekeyed; // Loans given a new issue ID since the last load
+
+        /**
+         * Attaches the file closed loans are archived to. Must be called before any records are added.
+         */
+        public synchronized void openArchive(String file) throws IOException {
+            archive = LoanHistoryFile.open(file);
+        }
+
+        /**
+         * Adds a record to the history, indexing it if it is still open and archiving it if not.
+         * Returns false, adding nothing, if an open loan already has the record's issue ID.
+         */
+        public synchronized boolean add(IssueRecord record) {
+            if (record.isReturned()) {
+                archive(record);
+                return true;
+            }
+            if (openById.get(record.getIssueId()) != null) {
+                return false;
+            }
+            openById.put(record.getIssueId(), record);
+            openByBook.computeIfAbsent(Repository.normalize(record.getBookId()), k -> new LinkedHashSet<>()).add(record);
+            openByMember.computeIfAbsent(Repository.normalize(record.getMemberId()), k -> new LinkedHashSet<>()).add(record);
+            if (record.getBarcode() != 0) {
+                openByBarcode.put(record.getBarcode(), record);
+            }
+            return true;
+        }
+
+        /**
+         * Adds a loaded or replayed record, moving it to the next free issue ID up if an open loan
+         * already has its own. Loans from before IDs were generated can share one, as their ID was
+         * just the issue time in millis. The move is the same every time the same data is loaded,
+         * so later journal entries for the loan still find it. Returns the record as added.
+         */
+        public synchronized IssueRecord addRekeying(IssueRecord record) {
+            if (add(record)) {
+                return record;
+            }
+            IssueRecord moved = record;
+            do {
+                moved = moved.withIssueId(moved.getIssueId() + 1);
+            } while (!add(moved));
+            rekeyed++;
+            return moved;
+        }
+
+        /**
+         * Returns how many loans {@link #addRekeying} has moved to a new issue ID since the last load.
+         */
+        public synchronized int rekeyedCount() {
+            return rekeyed;
+        }
+
+        /**
+         * Returns the highest issue ID in the history, open or closed; 0 if there are no loans.
+         */
+        public synchronized long maxIssueId() {
+            long[] max = {archive.maxIssueId()};
+            openById.forEachValue(record -> max[0] = Math.max(max[0], record.getIssueId()));
+            return max[0];
+        }
+
+        /**
+         * Records which copy an open loan has, for loans made before copies had barcodes.
+         */
+        public synchronized void setBarcode(IssueRecord record, long barcode) {
+            if (openById.get(record.getIssueId()) != record) {
+                return;
+            }
+            if (record.getBarcode() != 0 && openByBarcode.get(record.getBarcode()) == record) {
+                openByBarcode.remove(record.getBarcode());
+            }
+            record.setBarcode(barcode);
+            openByBarcode.put(barcode, record);
+        }
+
+        /**
+         * Closes the open loan with the given issue ID, if it is still open, and returns it. When
+         * several threads try to return the same loan, exactly one gets it back; the rest get null.
+         */
+        public synchronized IssueRecord close(long issueId, Date returnDate) {
+            IssueRecord record = openById.get(issueId);
+            if (record != null) {
+                markReturned(record, returnDate);
+            }
+            return record;
+        }
+
+        /**
+         * Closes an open loan, drops it from the open-loan indexes and moves it to the archive.
+         */
+        public synchronized void markReturned(IssueRecord record, Date returnDate) {
+            record.setReturnDate(returnDate);
+            openById.remove(record.getIssueId());
+            removeFrom(openByBook, record.getBookId(), record);
+            removeFrom(openByMember, record.getMemberId(), record);
+            if (record.getBarcode() != 0 && openByBarcode.get(record.getBarcode()) == record) {
+                openByBarcode.remove(record.getBarcode());
+            }
+            archive(record);
+        }
+
+        private void archive(IssueRecord record) {
+            try {
+                archive.append(record);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not archive loan " + record.getIssueId(), e);
+            }
+        }
+
+        private static void removeFrom(HashMap<String, Set<IssueRecord>> map, String id, IssueRecord record) {
+            String key = Repository.normalize(id);
+            Set<IssueRecord> open = map.get(key);
+            if (open != null && open.remove(record) && open.isEmpty()) {
+                map.remove(key); // Don't keep an empty set around for every book ever borrowed
+            }
+        }
+
+        /**
+         * Returns the open loan with the given issue ID, or null if there is none.
+         */
+        public synchronized IssueRecord getOpen(long issueId) {
+            return openById.get(issueId);
+        }
+
+        /**
+         * Returns the open loan of the copy with the given barcode, or null if it isn't on loan.
+         */
+        public synchronized IssueRecord getOpenByBarcode(long barcode) {
+            return openByBarcode.get(barcode);
+        }
+
+        public synchronized boolean hasOpenLoansForBook(String bookId) {
+            return openByBook.containsKey(Repository.normalize(bookId));
+        }
+
+        /**
+         * Returns the number of open loans of the given book.
+         */
+        public synchronized int openCountForBook(String bookId) {
+            Set<IssueRecord> open = openByBook.get(Repository.normalize(bookId));
+            return open == null ? 0 : open.size();
+        }
+
+        /**
+         * Returns a copy of the book's open loans.
+         */
+        public synchronized List<IssueRecord> openLoansForBook(String bookId) {
+            Set<IssueRecord> open = openByBook.get(Repository.normalize(bookId));
+            return open == null ? Collections.emptyList() : new ArrayList<>(open);
+        }
+
+        public synchronized boolean hasOpenLoansForMember(String memberId) {
+            return openByMember.containsKey(Repository.normalize(memberId));
+        }
+
+        /**
+         * Returns a copy of the member's open loans.
+         */
+        public synchronized List<IssueRecord> openLoansForMember(String memberId) {
+            Set<IssueRecord> open = openByMember.get(Repository.normalize(memberId));
+            return open == null ? Collections.emptyList() : new ArrayList<>(open);
+        }
+
+        /**
+         * Returns the number of loans not yet returned, in O(1).
+         */
+        public synchronized int openCount() {
+            return openById.size();
+        }
+
+        /**
+         * Returns the number of members with at least one loan out, in O(1).
+         */
+        public synchronized int borrowerCount() {
+            return openByMember.size();
+        }
+
+        /**
+         * Returns a copy of the open loans, oldest first. Issue IDs increase over time, so this is ID order.
+         */
+        public synchronized ArrayList<IssueRecord> openLoans() {
+            ArrayList<IssueRecord> open = new ArrayList<>(openById.size());
+            openById.forEachValue(open::add);
+            open.sort(Comparator.comparingLong(IssueRecord::getIssueId));
+            return open;
+        }
+
+        /**
+         * Replaces the whole history after loading from disk. The archive is first cut back to the
+         * length it had when {@code records} were checkpointed, undoing anything archived later
+         * (journal replay archives those loans again). Closed records in {@code records} are archived.
+         */
+        public synchronized void load(Collection<IssueRecord> records, long archivedCount) throws IOException {
+            archive.truncate(archivedCount);
+            openById.clear();
+            openByBook.clear();
+            openByMember.clear();
+            openByBarcode.clear();
+            rekeyed = 0;
+            records.forEach(this::addRekeying);
+        }
+
+        /**
+         * Forgets everything, including the archive.
+         */
+        public void clear() {
+            try {
+                load(Collections.emptyList(), 0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // Can't happen: truncating to 0 always succeeds
+            }
+        }
+
+        /**
+         * Returns copies of the records that belong in a checkpoint: the open loans. The closed ones
+         * are already in the archive (see {@link #forceArchive()}).
+         */
+        public synchronized ArrayList<IssueRecord> checkpointRecords() {
+            ArrayList<IssueRecord> records = new ArrayList<>(openById.size());
+            openById.forEachValue(record -> records.add(record.copy()));
+            return records;
+        }
+
+        /**
+         * Flushes the archive to disk. Safe to call from any thread.
+         */
+        public void forceArchive() {
+            archive.force();
+        }
+
+        /**
+         * Returns the number of records in the archive.
+         */
+        public long archivedCount() {
+            return archive.size();
+        }
+
+        public synchronized long size() {
+            return archive.size() + openById.size();
+        }
+
+        /**
+         * Streams the history as it is now: archived loans (decoded as they are reached), then open loans.
+         */
+        public Stream<IssueRecord> stream() {
+            return streamIssuedBetween(Long.MIN_VALUE, Long.MAX_VALUE);
+        }
+
+        /**
+         * Streams the loans issued in [fromMillis, toMillis), in the same order as {@link #stream()}.
+         * A loan is returned after it is issued, so archived loans returned before {@code fromMillis}
+         * aren't looked at; the rest outside the range are skipped by their issue date alone, without being decoded.
+         */
+        public synchronized Stream<IssueRecord> streamIssuedBetween(long fromMillis, long toMillis) {
+            ArrayList<IssueRecord> onHeap = new ArrayList<>();
+            for (IssueRecord record : openLoans()) {
+                if (issuedBetween(record.getIssueDate().getTime(), fromMillis, toMillis)) onHeap.add(record);
+            }
+            LoanHistoryFile history = archive;
+            return Stream.concat(LongStream.range(history.firstReturnedFrom(fromMillis), history.size())
+                    .filter(index -> issuedBetween(history.issueMillis(index), fromMillis, toMillis))
+                    .mapToObj(history::get), onHeap.stream());
+        }
+
+        private static boolean issuedBetween(long issueMillis, long fromMillis, long toMillis) {
+            return issueMillis >= fromMillis && issueMillis < toMillis;
+        }
+
+        /**
+         * Reads one archived loan into a partial result, decoding only the fields it needs.
+         */
+        interface ArchivedFold<A> {
+            void accept(A result, LoanHistoryFile history, long index);
+        }
+
+        /**
+         * The history as it stood at one moment: how long the archive was, and copies of the loans kept
+         * on the heap. A fold over a cut gives the same answer however many loans come and go meanwhile.
+         */
+        static final class Cut {
+            private final LoanHistoryFile archive;
+            private final long archived;
+            private final ArrayList<IssueRecord> onHeap;
+
+            private Cut(LoanHistoryFile archive, long archived, ArrayList<IssueRecord> onHeap) {
+                this.archive = archive;
+                this.archived = archived;
+                this.onHeap = onHeap;
+            }
+        }
+
+        /**
+         * Takes a cut of the history as it is now. Copying the open loans is O(open loans).
+         */
+        public synchronized Cut cut() {
+            return new Cut(archive, archive.size(), checkpointRecords());
+        }
+
+        /**
+         * Folds the whole history into one result in a single pass. The archive is split across the
+         * common pool, each part folded into its own {@code supplier} result by {@code archived} and the
+         * parts merged by {@code merge}; open loans are then folded in by {@code onHeap}.
+         */
+        public <A> A fold(Supplier<A> supplier, ArchivedFold<A> archived, BiConsumer<A, IssueRecord> onHeap,
+                          BiConsumer<A, A> merge) {
+            return fold(cut(), Long.MIN_VALUE, supplier, archived, onHeap, merge);
+        }
+
+        /**
+         * Like {@link #fold(Supplier, ArchivedFold, BiConsumer, BiConsumer)}, but over the history as it
+         * stood at the cut, leaving out archived loans returned before {@code returnedFrom}. Those are
+         * found by binary search rather than read. Open loans are all folded in.
+         */
+        public <A> A fold(Cut cut, long returnedFrom, Supplier<A> supplier, ArchivedFold<A> archived,
+                          BiConsumer<A, IssueRecord> onHeap, BiConsumer<A, A> merge) {
+            LoanHistoryFile history = cut.archive;
+            long first = Math.min(history.firstReturnedFrom(returnedFrom), cut.archived);
+            A result = LongStream.range(first, cut.archived).parallel()
+                    .collect(supplier, (partial, index) -> archived.accept(partial, history, index), merge);
+            for (IssueRecord record : cut.onHeap) {
+                onHeap.accept(result, record);
+            }
+            return result;
+        }
+
+        /**
+         * Adds up {@code charge.applyAsLong(dueMillis, returnMillis)} by normalized member ID over the
+         * whole history, leaving out members whose total is 0. Loans still out are passed
+         * {@code Long.MAX_VALUE} as their return time. A loan's member ID is only decoded if its charge
+         * isn't 0.
+         */
+        public Map<String, Long> chargesByMember(LongBinaryOperator charge) {
+            return chargesByMember(cut(), charge);
+        }
+
+        /**
+         * Like {@link #chargesByMember(LongBinaryOperator)}, over the history as it stood at the cut.
+         */
+        public Map<String, Long> chargesByMember(Cut cut, LongBinaryOperator charge) {
+            HashMap<String, Long> totals = fold(cut, Long.MIN_VALUE, HashMap::new, (partial, history, index) -> {
+                long amount = charge.applyAsLong(history.dueMillis(index), history.returnMillis(index));
+                if (amount != 0) {
+                    partial.merge(Repository.normalize(history.memberId(index)), amount, Long::sum);
+                }
+            }, (partial, record) -> {
+                long amount = charge.applyAsLong(record.getDueDate().getTime(),
+                        record.isReturned() ? record.getReturnDate().getTime() : Long.MAX_VALUE);
+                if (amount != 0) {
+                    partial.merge(Repository.normalize(record.getMemberId()), amount, Long::sum);
+                }
+            }, IssueRepository::mergeTotals);
+            totals.values().removeIf(amount -> amount == 0);
+            return totals;
+        }
+
+        /**
+         * Counts the loans in the cut issued in [fromMillis, toMillis). A loan is returned after it is
+         * issued, so only the archive's tail from the first loan returned at {@code fromMillis} is read.
+         */
+        public long countIssuedBetween(Cut cut, long fromMillis, long toMillis) {
+            return fold(cut, fromMillis, () -> new long[1], (count, history, index) -> {
+                if (issuedBetween(history.issueMillis(index), fromMillis, toMillis)) count[0]++;
+            }, (count, record) -> {
+                if (issuedBetween(record.getIssueDate().getTime(), fromMillis, toMillis)) count[0]++;
+            }, (left, right) -> left[0] += right[0])[0];
+        }
+
+        /**
+         * Counts the loans of each book over the whole history, by normalized book ID. Only the book ID
+         * of each archived loan is decoded.
+         */
+        public Map<String, Long> loansByBook() {
+            return loansByBook(cut());
+        }
+
+        /**
+         * Like {@link #loansByBook()}, over the history as it stood at the cut.
+         */
+        public Map<String, Long> loansByBook(Cut cut) {
+            return fold(cut, Long.MIN_VALUE, HashMap::new,
+                    (partial, history, index) -> partial.merge(Repository.normalize(history.bookId(index)), 1L, Long::sum),
+                    (partial, record) -> partial.merge(Repository.normalize(record.getBookId()), 1L, Long::sum),
+                    IssueRepository::mergeTotals);
+        }
+
+        static void mergeTotals(Map<String, Long> into, Map<String, Long> from) {
+            from.forEach((key, amount) -> into.merge(key, amount, Long::sum));
+        }
+
+        @Override
+        public Iterator<IssueRecord> iterator() {
+            return stream().iterator();
+        }
+    }
+
+    // =================================================================================
+    // --- Operational Metrics ---
+    // =================================================================================
+
+    /**
+     * A latency histogram in the spirit of HdrHistogram: values fall into log-linear buckets, 64 per
+     * power of two, so every recorded value is kept to within about 1.6% across the whole range of a long.
+     * Recording only increments counters, so it allocates nothing and never blocks.
+     */
+    static final class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 7;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int HALF = SUB_BUCKETS / 2;
+
+        private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * HALF);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        public void record(long nanos) {
+            if (nanos < 0) nanos = 0; // nanoTime is monotonic, but be safe
+            counts.incrementAndGet(indexOf(nanos));
+            count.increment();
+            totalNanos.add(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        // Values below SUB_BUCKETS get a bucket each; above that, the top SUB_BUCKET_BITS bits pick the bucket
+        static int indexOf(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return shift * HALF + (int) (value >>> shift);
+        }
+
+        /** The largest value that lands in the given bucket. */
+        static long highestValueAt(int index) {
+            if (index < SUB_BUCKETS) return index;
+            int shift = index / HALF - 1;
+            long subBucket = index - (long) shift * HALF;
+            return ((subBucket + 1) << shift) - 1;
+        }
+
+        public long getCount() { return count.sum(); }
+        public long getTotalNanos() { return totalNanos.sum(); }
+        public long getMaxNanos() { return maxNanos.get(); }
+
+        public long getMeanNanos() {
+            long n = count.sum();
+            return n == 0 ? 0 : totalNanos.sum() / n;
+        }
+
+        /**
+         * Returns the values at the given percentiles (0-100) from one pass over the buckets,
+         * each rounded up to the top of its bucket but never above the largest value recorded.
+         */
+        public long[] valuesAt(double... percentiles) {
+            long[] snapshot = new long[counts.length()];
+            long total = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            long[] values = new long[percentiles.length];
+            if (total == 0) return values;
+            long max = maxNanos.get();
+            for (int p = 0; p < percentiles.length; p++) {
+                long rank = Math.max(1, (long) Math.ceil(percentiles[p] / 100 * total));
+                long seen = 0;
+                int i = 0;
+                while (i < snapshot.length - 1 && (seen += snapshot[i]) < rank) i++;
+                values[p] = Math.min(highestValueAt(i), max);
+            }
+            return values;
+        }
+    }
+
+    /**
+     * How long one kind of operation takes, and how often the library refuses it
+     * (a rule was broken or the disk failed).
+     */
+    static final class OperationStats {
+        private final String name;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder refused = new LongAdder();
+
+        OperationStats(String name) {
+            this.name = name;
+        }
+
+        /** Records an operation that began at startNanos (from System.nanoTime()). */
+        public void record(long startNanos, boolean succeeded) {
+            latency.record(System.nanoTime() - startNanos);
+            if (!succeeded) refused.increment();
+        }
+
+        public String getName() { return name; }
+        public LatencyHistogram getLatency() { return latency; }
+        public long getRefused() { return refused.sum(); }
+    }
+
+    /**
+     * Latency and counts for every change and for saving and loading, plus the size of each store.
+     * Readable over JMX as {@value #OBJECT_NAME}, and as Prometheus-style text at /metrics
+     * (on the circulation server, or on the port given by -Dlms.metrics.port for the desktop app).
+     */
+    static final class Metrics {
+        static final String OBJECT_NAME = "LibraryManagementSystem:type=Metrics";
+        private static final double[] QUANTILES = {50, 90, 99, 99.9};
+        private static final String[] QUANTILE_LABELS = {"0.5", "0.9", "0.99", "0.999"};
+
+        private final Map<String, OperationStats> operations = new LinkedHashMap<>();
+        private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+
+        final OperationStats issue = operation("issue");
+        final OperationStats returnLoan = operation("return");
+        final OperationStats issueBatch = operation("issueBatch");
+        final OperationStats returnBatch = operation("returnBatch");
+        final OperationStats placeHold = operation("placeHold");
+        final OperationStats cancelHold = operation("cancelHold");
+        final OperationStats expireHolds = operation("expireHolds");
+        final OperationStats addBook = operation("addBook");
+        final OperationStats importBatch = operation("importBatch");
+        final OperationStats updateBook = operation("updateBook");
+        final OperationStats deleteBook = operation("deleteBook");
+        final OperationStats addMember = operation("addMember");
+        final OperationStats updateMember = operation("updateMember");
+        final OperationStats deleteMember = operation("deleteMember");
+        final OperationStats journalFlush = operation("journalFlush");
+        final OperationStats save = operation("save");
+        final OperationStats checkpoint = operation("checkpoint");
+        final OperationStats load = operation("load");
+
+        Metrics() {
+            // Read lazily: the stores are set up after this, and the journal only once loadData() runs
+            gauges.put("books", () -> books.size());
+            gauges.put("members", () -> members.size());
+            gauges.put("openLoans", () -> issueRecords.openCount());
+            gauges.put("overdueLoans", () -> overdue.overdueCount());
+            gauges.put("holds", () -> holds.size());
+            gauges.put("loansToday", () -> stats.loansToday());
+            gauges.put("loanHistory", () -> issueRecords.size());
+            gauges.put("journalBytes", () -> journal == null ? 0 : journal.size());
+        }
+
+        private OperationStats operation(String name) {
+            OperationStats stats = new OperationStats(name);
+            operations.put(name, stats);
+            return stats;
+        }
+
+        /**
+         * Renders every metric in the Prometheus text format, with latencies in seconds.
+         */
+        public String toText() {
+            StringBuilder text = new StringBuilder(8192);
+            text.append("# HELP lms_operation_seconds Time taken by each library operation.\n");
+            text.append("# TYPE lms_operation_seconds summary\n");
+            for (OperationStats op : operations.values()) {
+                LatencyHistogram latency = op.getLatency();
+                long[] values = latency.valuesAt(QUANTILES);
+                for (int i = 0; i < QUANTILES.length; i++) {
+                    text.append("lms_operation_seconds{op=\"").append(op.getName()).append("\",quantile=\"")
+                            .append(QUANTILE_LABELS[i]).append("\"} ").append(values[i] / 1e9).append('\n');
+                }
+                text.append("lms_operation_seconds_sum{op=\"").append(op.getName()).append("\"} ")
+                        .append(latency.getTotalNanos() / 1e9).append('\n');
+                text.append("lms_operation_seconds_count{op=\"").append(op.getName()).append("\"} ")
+                        .append(latency.getCount()).append('\n');
+            }
+            text.append("# HELP lms_operation_seconds_max Slowest run of each library operation.\n");
+            text.append("# TYPE lms_operation_seconds_max gauge\n");
+            for (OperationStats op : operations.values()) {
+                text.append("lms_operation_seconds_max{op=\"").append(op.getName()).append("\"} ")
+                        .append(op.getLatency().getMaxNanos() / 1e9).append('\n');
+            }
+            text.append("# HELP lms_operation_refused_total Operations refused or failed.\n");
+            text.append("# TYPE lms_operation_refused_total counter\n");
+            for (OperationStats op : operations.values()) {
+                text.append("lms_operation_refused_total{op=\"").append(op.getName()).append("\"} ")
+                        .append(op.getRefused()).append('\n');
+            }
+            gauges.forEach((name, gauge) -> {
+                String metric = "lms_" + snakeCase(name);
+                text.append("# TYPE ").append(metric).append(" gauge\n");
+                text.append(metric).append(' ').append(gauge.getAsLong()).append('\n');
+            });
+            return text.toString();
+        }
+
+        private static String snakeCase(String name) {
+            StringBuilder snake = new StringBuilder(name.length() + 4);
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                if (Character.isUpperCase(c)) snake.append('_').append(Character.toLowerCase(c));
+                else snake.append(c);
+            }
+            return snake.toString();
+        }
+
+        /**
+         * Serves {@link #toText()}; mounted at /metrics.
+         */
+        void serve(HttpExchange exchange) throws IOException {
+            try (exchange) {
+                byte[] body = toText().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+        }
+
+        /**
+         * Serves just /metrics on the loopback interface, for when the circulation server isn't running.
+         */
+        void startEndpoint(int port) throws IOException {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", this::serve);
+            server.start();
+            System.out.println("Metrics available at http://localhost:" + port + "/metrics");
+        }
+
+        /**
+         * Publishes the metrics to the platform MBean server, for JConsole, VisualVM and JMX exporters.
+         */
+        void registerMBean() {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName(OBJECT_NAME);
+                if (!server.isRegistered(name)) {
+                    server.registerMBean(new MetricsMBean(this), name);
+                }
+            } catch (JMException e) {
+                System.err.println("Could not register metrics with JMX: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Exposes {@link Metrics} as read-only long attributes: for each operation, &lt;op&gt;Count,
+     * &lt;op&gt;Refused, &lt;op&gt;MeanMicros, &lt;op&gt;P50Micros, &lt;op&gt;P99Micros, &lt;op&gt;P999Micros
+     * and &lt;op&gt;MaxMicros; then one attribute per store size.
+     */
+    static final class MetricsMBean implements DynamicMBean {
+        private final Map<String, LongSupplier> attributes = new LinkedHashMap<>();
+        private final MBeanInfo info;
+
+        MetricsMBean(Metrics metrics) {
+            for (OperationStats op : metrics.operations.values()) {
+                LatencyHistogram latency = op.getLatency();
+                String name = op.getName();
+                attributes.put(name + "Count", latency::getCount);
+                attributes.put(name + "Refused", op::getRefused);
+                attributes.put(name + "MeanMicros", () -> latency.getMeanNanos() / 1000);
+                attributes.put(name + "P50Micros", () -> latency.valuesAt(50)[0] / 1000);
+                attributes.put(name + "P99Micros", () -> latency.valuesAt(99)[0] / 1000);
+                attributes.put(name + "P999Micros", () -> latency.valuesAt(99.9)[0] / 1000);
+                attributes.put(name + "MaxMicros", () -> latency.getMaxNanos() / 1000);
+            }
+            attributes.putAll(metrics.gauges);
+
+            MBeanAttributeInfo[] infos = new MBeanAttributeInfo[attributes.size()];
+            int i = 0;
+            for (String name : attributes.keySet()) {
+                infos[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+            }
+            info = new MBeanInfo(MetricsMBean.class.getName(), "Library operation metrics", infos, null, null, null);
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            LongSupplier value = attributes.get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value.getAsLong();
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                LongSupplier value = attributes.get(name);
+                if (value != null) list.add(new Attribute(name, value.getAsLong()));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList(); // Nothing is writable
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            return info;
+        }
+    }
+
+    // =================================================================================
+    // --- Overdue Loans ---
+    // =================================================================================
+
+    /**
+     * Keeps the open loans ordered by due date, so the overdue ones are found without scanning the
+     * loan history. Loans due before a cursor, {@code sweptUntil}, are the overdue ones; a timer wakes
+     * up as the next loan falls due, moves the cursor up to the present and announces each loan it
+     * passes with a {@link LoanOverdue} event. Listing the overdue loans is O(overdue), counting them
+     * O(1), and issuing or returning a loan O(log n).
+     */
+    static final class OverdueTracker {
+        private static final Comparator<IssueRecord> BY_DUE_DATE = Comparator
+                .comparingLong((IssueRecord record) -> record.getDueDate().getTime())
+                .thenComparingLong(IssueRecord::getIssueId);
+        // The timer re-checks at least this often, so a changed system clock is caught up with
+        private static final long MAX_SLEEP_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+        private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "overdue-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // All guarded by 'this'
+        private final TreeSet<IssueRecord> open = new TreeSet<>(BY_DUE_DATE);
+        private volatile long sweptUntil; // Loans due before this have been found overdue
+        private int overdueCount;
+        private ScheduledFuture<?> wakeUp;
+        private long wakeUpAt = Long.MAX_VALUE;
+
+        /**
+         * Starts tracking the given open loans, e.g. after loading. Those already overdue count as
+         * overdue straight away, without an event.
+         */
+        public synchronized void rebuild(Collection<IssueRecord> openLoans) {
+            open.clear();
+            open.addAll(openLoans);
+            sweptUntil = System.currentTimeMillis();
+            overdueCount = open.headSet(probe(sweptUntil)).size();
+            scheduleNext();
+        }
+
+        /**
+         * Tracks a newly issued loan. One that is overdue already (e.g. backdated) is announced at once.
+         */
+        public synchronized void add(IssueRecord record) {
+            open.add(record);
+            long due = record.getDueDate().getTime();
+            if (due < sweptUntil) {
+                overdueCount++;
+                events.publish(new LoanOverdue(record));
+            } else if (due + 1 < wakeUpAt) {
+                scheduleNext();
+            }
+        }
+
+        /**
+         * Stops tracking a loan once it is returned. A wake-up it was waiting for is left to find nothing.
+         */
+        public synchronized void remove(IssueRecord record) {
+            if (open.remove(record) && record.getDueDate().getTime() < sweptUntil) {
+                overdueCount--;
+            }
+        }
+
+        /**
+         * The overdue loans, most overdue first.
+         */
+        public synchronized List<IssueRecord> overdueLoans() {
+            return new ArrayList<>(open.headSet(probe(sweptUntil)));
+        }
+
+        public synchronized int overdueCount() {
+            return overdueCount;
+        }
+
+        /**
+         * True if the loan is open and has been found overdue. Doesn't lock, so views can call it per cell.
+         */
+        public boolean isOverdue(IssueRecord record) {
+            return !record.isReturned() && record.getDueDate().getTime() < sweptUntil;
+        }
+
+        /**
+         * Moves the cursor up to now and announces every loan that fell due in between. Runs on the
+         * timer thread, holding the loan registry's lock first, as changes to loans do.
+         */
+        private void sweep() {
+            synchronized (issueRecords) {
+                synchronized (this) {
+                    long now = System.currentTimeMillis();
+                    if (now > sweptUntil) {
+                        ArrayList<IssueRecord> fellDue = new ArrayList<>(open.subSet(probe(sweptUntil), probe(now)));
+                        sweptUntil = now;
+                        overdueCount += fellDue.size();
+                        for (IssueRecord record : fellDue) {
+                            events.publish(new LoanOverdue(record));
+                        }
+                    }
+                    wakeUp = null;
+                    wakeUpAt = Long.MAX_VALUE;
+                    scheduleNext();
+                }
+            }
+        }
+
+        /**
+         * Sets the timer for just after the earliest loan that isn't overdue yet falls due.
+         */
+        private void scheduleNext() {
+            IssueRecord next = open.ceiling(probe(sweptUntil));
+            long at = next == null ? Long.MAX_VALUE : next.getDueDate().getTime() + 1; // Overdue once past the due time
+            if (at == wakeUpAt) {
+                return;
+            }
+            if (wakeUp != null) {
+                wakeUp.cancel(false);
+                wakeUp = null;
+            }
+            wakeUpAt = at;
+            if (at != Long.MAX_VALUE) {
+                long delay = Math.min(Math.max(0, at - System.currentTimeMillis()), MAX_SLEEP_MILLIS);
+                wakeUp = timer.schedule(this::sweep, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * A stand-in that sorts before every loan due at the given time, for range lookups.
+         */
+        private static IssueRecord probe(long dueMillis) {
+            return new IssueRecord(Long.MIN_VALUE, null, null, null, new Date(dueMillis), null);
+        }
+    }
+
+    // =================================================================================
+    // --- Late Fines ---
+    // =================================================================================
+
+    /**
+     * Works out late fines from the loan history: a daily rate for every day (or part of a day) a loan
+     * is kept past its due date and a grace period, capped per loan. Amounts are in cents.
+     * <p>
+     * In batch mode ({@link #accruedByMember}) the whole history is charged in one parallel pass.
+     * Archived loans are charged from their due and return dates alone, and the member ID is only decoded
+     * for loans that were returned late. In incremental mode the fines for returned loans are kept per
+     * member and topped up as each loan comes back, so {@link #accrued} only adds what the member's
+     * loans still out have run up.
+     * <p>
+     * Payments and waivers aren't recorded, so these are the fines a member has accrued over all their
+     * loans, not what they still owe.
+     */
+    static final class FineEngine {
+        private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+        private final IssueRepository loans;
+        private final long centsPerDay;
+        private final int graceDays;
+        private final long capCents; // Per loan; 0 for no cap
+        // Fines for returned loans, by normalized member ID; members with none are left out
+        private final ConcurrentHashMap<String, Long> returnedFines = new ConcurrentHashMap<>();
+
+        FineEngine(IssueRepository loans, long centsPerDay, int graceDays, long capCents) {
+            this.loans = loans;
+            this.centsPerDay = centsPerDay;
+            this.graceDays = graceDays;
+            this.capCents = capCents;
+        }
+
+        /**
+         * An engine configured by {@code -Dlms.fine.centsPerDay} (25), {@code -Dlms.fine.graceDays} (0)
+         * and {@code -Dlms.fine.capCents} (1000, or 0 for no cap).
+         */
+        static FineEngine fromSystemProperties(IssueRepository loans) {
+            return new FineEngine(loans, Long.getLong("lms.fine.centsPerDay", 25),
+                    Integer.getInteger("lms.fine.graceDays", 0), Long.getLong("lms.fine.capCents", 1000));
+        }
+
+        /**
+         * The fine for a loan due at {@code dueMillis} and kept until {@code untilMillis}.
+         */
+        public long fine(long dueMillis, long untilMillis) {
+            long chargedDays = (untilMillis - dueMillis + DAY_MILLIS - 1) / DAY_MILLIS - graceDays;
+            if (chargedDays <= 0) {
+                return 0;
+            }
+            long fine = chargedDays * centsPerDay;
+            return capCents > 0 ? Math.min(fine, capCents) : fine;
+        }
+
+        /**
+         * The fine a loan has run up by the given time.
+         */
+        public long fine(IssueRecord record, long asOfMillis) {
+            long until = record.isReturned() ? Math.min(record.getReturnDate().getTime(), asOfMillis) : asOfMillis;
+            return fine(record.getDueDate().getTime(), until);
+        }
+
+        /**
+         * Batch mode: every member's fines accrued by the given time, by normalized member ID.
+         * Members with none are left out.
+         */
+        public Map<String, Long> accruedByMember(long asOfMillis) {
+            return loans.chargesByMember((dueMillis, returnMillis) -> fine(dueMillis, Math.min(returnMillis, asOfMillis)));
+        }
+
+        /**
+         * Starts incremental mode by charging every loan returned by the time of the cut, on top of what
+         * {@link #returned} has charged since. {@link #returned} must be called for each loan returned
+         * after the cut was taken, whether before this runs, while it does, or after.
+         */
+        public void rebuild(IssueRepository.Cut history) {
+            Map<String, Long> charged = loans.chargesByMember(history, (dueMillis, returnMillis) ->
+                    returnMillis == Long.MAX_VALUE ? 0 : fine(dueMillis, returnMillis));
+            charged.forEach((memberId, fine) -> returnedFines.merge(memberId, fine, Long::sum));
+        }
+
+        /**
+         * Incremental mode: adds a just-returned loan's fine to its member's total.
+         */
+        public void returned(IssueRecord record) {
+            long fine = fine(record.getDueDate().getTime(), record.getReturnDate().getTime());
+            if (fine > 0) {
+                returnedFines.merge(Repository.normalize(record.getMemberId()), fine, Long::sum);
+            }
+        }
+
+        /**
+         * A member's fines accrued so far: those charged for returned loans plus what the loans still
+         * out have run up.
+         */
+        public long accrued(String memberId) {
+            long now = System.currentTimeMillis();
+            long accrued = returnedFines.getOrDefault(Repository.normalize(memberId), 0L);
+            for (IssueRecord record : loans.openLoansForMember(memberId)) {
+                accrued += fine(record, now);
+            }
+            return accrued;
+        }
+
+        /**
+         * Formats an amount in cents as e.g. "12.50".
+         */
+        static String format(long cents) {
+            return String.format(Locale.ROOT, "%d.%02d", cents / 100, cents % 100);
+        }
+    }
+
+    // =================================================================================
+    // --- Dashboard Statistics ---
+    // =================================================================================
+
+    /**
+     * Approximate counts of string keys in a fixed amount of memory: {@code DEPTH} rows of counters, a
+     * key adding to one counter per row, and its estimate being the smallest of those. Estimates are
+     * never low, and high by at most about {@code 2/width} of the total added with 98% confidence.
+     * The row positions come from two hashes of the key (h1 + row * h2). Not thread-safe.
+     */
+    static final class CountMinSketch {
+        private static final int DEPTH = 4;
+
+        private final long[] counts;
+        private final int mask;
+
+        /**
+         * A sketch {@code width} counters wide, rounded up to a power of two.
+         */
+        CountMinSketch(int width) {
+            int rounded = Integer.highestOneBit(Math.max(2, width - 1)) << 1;
+            this.counts = new long[DEPTH * rounded];
+            this.mask = rounded - 1;
+        }
+
+        /**
+         * Adds {@code amount} to the key's count and returns its new estimate.
+         */
+        public long add(String key, long amount) {
+            int h1 = key.hashCode();
+            int h2 = secondHash(key);
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                int slot = row * (mask + 1) + ((h1 + row * h2) & mask);
+                counts[slot] += amount;
+                estimate = Math.min(estimate, counts[slot]);
+            }
+            return estimate;
+        }
+
+        public long estimate(String key) {
+            int h1 = key.hashCode();
+            int h2 = secondHash(key);
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                estimate = Math.min(estimate, counts[row * (mask + 1) + ((h1 + row * h2) & mask)]);
+            }
+            return estimate;
+        }
+
+        public void clear() {
+            Arrays.fill(counts, 0);
+        }
+
+        // FNV-1a, forced odd so the rows never all land on the same counter
+        private static int secondHash(String key) {
+            int hash = 0x811C9DC5;
+            for (int i = 0; i < key.length(); i++) {
+                hash = (hash ^ key.charAt(i)) * 0x01000193;
+            }
+            return hash | 1;
+        }
+    }
+
+    /**
+     * The figures on the home panel, each readable in O(1). Titles, copies, copies out, members and
+     * members with loans out are counts the stores keep anyway; loans issued today and the most borrowed
+     * titles are kept here, updated by {@link #issued} as each loan goes out and counted once from the
+     * history before that by {@link #rebuild}, which may finish later (see {@link #isCounted}).
+     * <p>
+     * Loan counts per book go into a {@link CountMinSketch}, so the memory used doesn't grow with the
+     * catalog; the few books with the highest estimates are kept alongside, ordered by count, and a book
+     * whose estimate passes the lowest of them takes its place.
+     */
+    static final class LibraryStats {
+        private final BookRepository books;
+        private final MemberRepository members;
+        private final IssueRepository loans;
+        private final int topSize;
+
+        private final CountMinSketch borrowed = new CountMinSketch(1 << 14);
+        // The most borrowed books, by normalized book ID, and the same entries lowest count first
+        private final HashMap<String, Long> top = new HashMap<>();
+        private final TreeSet<Map.Entry<String, Long>> topByCount = new TreeSet<>(
+                Map.Entry.<String, Long>comparingByValue().thenComparing(Map.Entry.comparingByKey()));
+        private long loansToday;
+        private long todayStart;
+        private long tomorrowStart;
+        private boolean counted; // Whether rebuild() has added the history yet
+
+        LibraryStats(BookRepository books, MemberRepository members, IssueRepository loans, int topSize) {
+            this.books = books;
+            this.members = members;
+            this.loans = loans;
+            this.topSize = topSize;
+        }
+
+        /**
+         * Stats over the given stores, listing the number of most borrowed titles set by
+         * {@code -Dlms.stats.topTitles} (10).
+         */
+        static LibraryStats fromSystemProperties(BookRepository books, MemberRepository members, IssueRepository loans) {
+            return new LibraryStats(books, members, loans, Math.max(1, Integer.getInteger("lms.stats.topTitles", 10)));
+        }
+
+        public int titles() { return books.size(); }
+        public int copies() { return books.copyCount(); }
+        public int copiesOut() { return loans.openCount(); }
+        public int members() { return members.size(); }
+        public int activeMembers() { return loans.borrowerCount(); }
+
+        /**
+         * The number of loans issued since midnight (local time).
+         */
+        public synchronized long loansToday() {
+            rollDay(System.currentTimeMillis());
+            return loansToday;
+        }
+
+        /**
+         * Whether the loans in the history have been counted; until then only those issued since are.
+         */
+        public synchronized boolean isCounted() {
+            return counted;
+        }
+
+        /**
+         * Counts every book's loans in the cut (see {@link IssueRepository#loansByBook}) and today's
+         * loans, on top of what {@link #issued} has counted since. {@link #issued} must be called for
+         * each loan issued after the cut was taken, whether before this runs, while it does, or after.
+         */
+        public void rebuild(IssueRepository.Cut history) {
+            // Read the loans before taking this lock: issued() is called with the loans locked
+            Map<String, Long> counts = loans.loansByBook(history);
+            LocalDate today = LocalDate.now();
+            long from = startOfDay(today);
+            long issuedToday = loans.countIssuedBetween(history, from, startOfDay(today.plusDays(1)));
+            synchronized (this) {
+                counts.forEach((bookId, count) -> offer(bookId, borrowed.add(bookId, count)));
+                rollDay(System.currentTimeMillis());
+                if (todayStart == from) {
+                    loansToday += issuedToday; // Unless the day has turned since, and none of them are today's
+                }
+                counted = true;
+            }
+        }
+
+        /**
+         * Counts a just-issued loan.
+         */
+        public synchronized void issued(IssueRecord record) {
+            rollDay(System.currentTimeMillis());
+            long issuedMillis = record.getIssueDate().getTime();
+            if (issuedMillis >= todayStart && issuedMillis < tomorrowStart) {
+                loansToday++;
+            }
+            String bookId = Repository.normalize(record.getBookId());
+            offer(bookId, borrowed.add(bookId, 1));
+        }
+
+        /**
+         * The most borrowed books still in the catalog with their (estimated) loan counts, most first.
+         */
+        public List<Map.Entry<Book, Long>> topTitles() {
+            ArrayList<Map.Entry<String, Long>> ranked;
+            synchronized (this) {
+                ranked = new ArrayList<>(topByCount.descendingSet());
+            }
+            ArrayList<Map.Entry<Book, Long>> titles = new ArrayList<>(ranked.size());
+            for (Map.Entry<String, Long> entry : ranked) {
+                Book book = books.get(entry.getKey());
+                if (book != null) {
+                    titles.add(Map.entry(book, entry.getValue()));
+                }
+            }
+            return titles;
+        }
+
+        private void offer(String bookId, long count) {
+            Long previous = top.get(bookId);
+            if (previous != null) {
+                topByCount.remove(Map.entry(bookId, previous));
+            } else if (top.size() >= topSize) {
+                Map.Entry<String, Long> lowest = topByCount.first();
+                if (lowest.getValue() >= count) {
+                    return;
+                }
+                topByCount.pollFirst();
+                top.remove(lowest.getKey());
+            }
+            top.put(bookId, count);
+            topByCount.add(Map.entry(bookId, count));
+        }
+
+        private void rollDay(long now) {
+            if (now >= tomorrowStart) {
+                LocalDate today = LocalDate.now();
+                todayStart = startOfDay(today);
+                tomorrowStart = startOfDay(today.plusDays(1));
+                loansToday = 0;
+            }
+        }
+    }
+
+    // =================================================================================
+    // --- Holds ---
+    // =================================================================================
+
+    /**
+     * The members waiting for one book, first come first served. Joining the back and leaving from
+     * the front are O(1) (amortized). A hold that leaves from the middle, e.g. cancelled, is only
+     * marked in a Fenwick tree indexed by arrival order and skipped once the front reaches it, so
+     * leaving from the middle and finding anyone's position are O(log n). The tree covers arrivals
+     * from the current front onwards and is rebuilt, twice as big as needed, when it fills up.
+     */
+    static final class HoldQueue {
+        private final ArrayDeque<Hold> arrivals = new ArrayDeque<>(); // Includes holds that have left but aren't at the front yet
+        private int[] left = new int[17]; // Fenwick tree (1-based) counting holds that left early, by sequence - base
+        private long base;         // Sequence of the tree's first slot
+        private long nextSequence;
+        private int size;          // Holds still waiting
+
+        public int size() { return size; }
+
+        public void add(Hold hold) {
+            if (nextSequence - base == left.length - 1) {
+                reindex();
+            }
+            hold.sequence = nextSequence++;
+            arrivals.addLast(hold);
+            size++;
+        }
+
+        /**
+         * Returns the hold at the front without removing it, or null if nobody is waiting.
+         */
+        public Hold peek() {
+            Hold front;
+            while ((front = arrivals.peekFirst()) != null && front.getStatus() != Hold.Status.WAITING) {
+                arrivals.pollFirst(); // Left early; the tree stops covering it once base moves past
+            }
+            return front;
+        }
+
+        /**
+         * Takes a hold out of the queue. Call after its status has moved on from WAITING.
+         */
+        public void remove(Hold hold) {
+            size--;
+            if (arrivals.peekFirst() == hold) {
+                arrivals.pollFirst();
+            } else {
+                for (int i = (int) (hold.sequence - base) + 1; i < left.length; i += i & -i) {
+                    left[i]++;
+                }
+            }
+        }
+
+        /**
+         * Returns a waiting hold's 1-based position in the queue.
+         */
+        public int position(Hold hold) {
+            Hold front = peek();
+            return (int) (hold.sequence - front.sequence) - (leftBefore(hold.sequence) - leftBefore(front.sequence)) + 1;
+        }
+
+        /**
+         * The number of holds that left early with a sequence below the given one.
+         */
+        private int leftBefore(long sequence) {
+            int count = 0;
+            for (int i = (int) (sequence - base); i > 0; i -= i & -i) {
+                count += left[i];
+            }
+            return count;
+        }
+
+        /**
+         * Starts the tree at the current front, with room for twice the holds still queued, and
+         * re-marks the ones in between that left early. O(n), but each rebuild leaves room for at least
+         * n more arrivals, so it costs O(1) per arrival.
+         */
+        private void reindex() {
+            Hold front = peek();
+            base = front == null ? nextSequence : front.sequence;
+            int capacity = 16;
+            while (capacity < 2 * (nextSequence - base)) {
+                capacity <<= 1;
+            }
+            left = new int[capacity + 1];
+            for (Hold hold : arrivals) {
+                if (hold.getStatus() != Hold.Status.WAITING) {
+                    left[(int) (hold.sequence - base) + 1]++;
+                }
+            }
+            for (int i = 1; i < left.length; i++) { // Linear-time Fenwick build
+                int parent = i + (i & -i);
+                if (parent < left.length) {
+                    left[parent] += left[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Every active hold: a {@link HoldQueue} per book for those waiting, and the ready ones ordered by
+     * expiry date so lapsed holds are found without a scan. Changed by the library service while it
+     * holds the loan registry's lock; the methods lock as well, so reads are safe from any thread.
+     */
+    static final class HoldRegistry {
+        private static final Comparator<Hold> BY_EXPIRY = Comparator
+                .comparingLong((Hold hold) -> hold.getExpiryDate().getTime())
+                .thenComparingLong(Hold::getHoldId);
+
+        private final LongHashMap<Hold> byId = new LongHashMap<>();
+        private final HashMap<String, HoldQueue> waiting = new HashMap<>();     // By normalized book ID
+        private final HashMap<String, Integer> readyCounts = new HashMap<>();   // By normalized book ID
+        private final HashMap<String, Set<Hold>> byMember = new HashMap<>();   // By normalized member ID
+        private final TreeSet<Hold> readyByExpiry = new TreeSet<>(BY_EXPIRY);
+
+        /**
+         * Adds a new or restored hold: at the back of its book's queue if waiting, or among the ready ones.
+         */
+        public synchronized void add(Hold hold) {
+            byId.put(hold.getHoldId(), hold);
+            byMember.computeIfAbsent(Repository.normalize(hold.getMemberId()), k -> new LinkedHashSet<>()).add(hold);
+            if (hold.getStatus() == Hold.Status.READY) {
+                addReady(hold);
+            } else {
+                waiting.computeIfAbsent(Repository.normalize(hold.getBookId()), k -> new HoldQueue()).add(hold);
+            }
+        }
+
+        /**
+         * Returns the active hold with the given ID, or null if there is none.
+         */
+        public synchronized Hold get(long holdId) {
+            return byId.get(holdId);
+        }
+
+        /**
+         * Returns the first hold waiting for the book, or null if nobody is.
+         */
+        public synchronized Hold nextWaiting(String bookId) {
+            HoldQueue queue = waiting.get(Repository.normalize(bookId));
+            return queue == null ? null : queue.peek();
+        }
+
+        /**
+         * Moves a waiting hold to ready, with a copy set aside until the given date.
+         */
+        public synchronized void setReady(Hold hold, Date expiryDate, long barcode) {
+            hold.setReady(expiryDate, barcode);
+            leaveQueue(hold);
+            addReady(hold);
+        }
+
+        /**
+         * Ends an active hold with the given status.
+         */
+        public synchronized void end(Hold hold, Hold.Status status) {
+            Hold.Status previous = hold.getStatus();
+            hold.end(status);
+            if (previous == Hold.Status.READY) {
+                readyByExpiry.remove(hold);
+                readyCounts.merge(Repository.normalize(hold.getBookId()), -1, (a, b) -> a + b == 0 ? null : a + b);
+            } else {
+                leaveQueue(hold);
+            }
+            byId.remove(hold.getHoldId());
+            String member = Repository.normalize(hold.getMemberId());
+            Set<Hold> holds = byMember.get(member);
+            if (holds != null && holds.remove(hold) && holds.isEmpty()) {
+                byMember.remove(member);
+            }
+        }
+
+        private void addReady(Hold hold) {
+            readyByExpiry.add(hold);
+            readyCounts.merge(Repository.normalize(hold.getBookId()), 1, Integer::sum);
+        }
+
+        private void leaveQueue(Hold hold) {
+            String book = Repository.normalize(hold.getBookId());
+            HoldQueue queue = waiting.get(book);
+            queue.remove(hold);
+            if (queue.size() == 0) {
+                waiting.remove(book); // Don't keep an empty queue around for every book ever held
+            }
+        }
+
+        /**
+         * Returns the member's active hold on the book, or null if they have none.
+         */
+        public synchronized Hold find(String bookId, String memberId) {
+            Set<Hold> holds = byMember.get(Repository.normalize(memberId));
+            if (holds != null) {
+                String book = Repository.normalize(bookId);
+                for (Hold hold : holds) {
+                    if (Repository.normalize(hold.getBookId()).equals(book)) {
+                        return hold;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Returns a waiting hold's 1-based place in its book's queue, or 0 if it is ready.
+         */
+        public synchronized int position(Hold hold) {
+            if (hold.getStatus() != Hold.Status.WAITING) {
+                return 0;
+            }
+            return waiting.get(Repository.normalize(hold.getBookId())).position(hold);
+        }
+
+        public synchronized int waitingCount(String bookId) {
+            HoldQueue queue = waiting.get(Repository.normalize(bookId));
+            return queue == null ? 0 : queue.size();
+        }
+
+        /**
+         * Returns the number of copies of the book set aside for members to collect.
+         */
+        public synchronized int readyCount(String bookId) {
+            return readyCounts.getOrDefault(Repository.normalize(bookId), 0);
+        }
+
+        public synchronized boolean hasHoldsForBook(String bookId) {
+            String book = Repository.normalize(bookId);
+            return waiting.containsKey(book) || readyCounts.containsKey(book);
+        }
+
+        public synchronized boolean hasHoldsForMember(String memberId) {
+            return byMember.containsKey(Repository.normalize(memberId));
+        }
+
+        /**
+         * Returns the ready holds whose copy has waited past its expiry date, soonest expired first.
+         */
+        public synchronized List<Hold> expiredBy(long millis) {
+            return new ArrayList<>(readyByExpiry.headSet(new Hold(Long.MAX_VALUE, null, null, null, new Date(millis))));
+        }
+
+        /**
+         * Returns the ready holds, soonest to expire first.
+         */
+        public synchronized List<Hold> ready() {
+            return new ArrayList<>(readyByExpiry);
+        }
+
+        public synchronized int size() {
+            return byId.size();
+        }
+
+        /**
+         * Returns the active holds, oldest first. Hold IDs increase over time, so this is ID order,
+         * and also the order each book's queue was joined in.
+         */
+        public synchronized ArrayList<Hold> all() {
+            ArrayList<Hold> all = new ArrayList<>(byId.size());
+            byId.forEachValue(all::add);
+            all.sort(Comparator.comparingLong(Hold::getHoldId));
+            return all;
+        }
+
+        /**
+         * Returns copies of the active holds, oldest first, for a checkpoint.
+         */
+        public synchronized ArrayList<Hold> checkpointRecords() {
+            ArrayList<Hold> copies = all();
+            copies.replaceAll(Hold::copy);
+            return copies;
+        }
+
+        /**
+         * Replaces every hold after loading from disk. Waiting holds must come in the order they were placed.
+         */
+        public synchronized void load(Collection<Hold> holds) {
+            byId.clear();
+            waiting.clear();
+            readyCounts.clear();
+            byMember.clear();
+            readyByExpiry.clear();
+            holds.forEach(this::add);
+        }
+    }
+
+    // =================================================================================
+    // --- Library Service ---
+    // =================================================================================
+
+    /**
+     * A rule the library enforces was broken, e.g. issuing a book with no copies left.
+     * The message is meant for the user.
+     */
+    static class LibraryException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public LibraryException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Every change to the library goes through here, from any thread. Each book guards its own shelf,
+     * a bit set of the copies on it, so a copy is only ever taken off by one thread and a title can
+     * never be over-issued; the loan registry is locked only for the moment a loan or hold is added
+     * or closed. Each change is announced while the store it touched is still locked, so the journal
+     * records changes to any one entity in the order they were made. Changes share a read lock that
+     * a snapshot takes exclusively, so a snapshot never sees half of a change.
+     */
+    static final class LibraryService {
+        private static final long HOLD_SWEEP_MINUTES = 1;
+        // A batch is one journal entry, so it is kept well under the journal's limit on entry size
+        static final int MAX_BATCH = 500;
+
+        /**
+         * Journals a change, then publishes it on the bus. The journal is written directly rather than
+         * as a subscriber, so no failing subscriber can keep a change made in memory out of it.
+         */
+        private static void announce(Object event) {
+            if (journal != null) { // Not open yet while loadData replays it
+                journal.record(event);
+            }
+            events.publish(event);
+        }
+
+        /**
+         * One item of a batch checkout: a book for a member, or with a barcode that particular copy.
+         */
+        static final class Checkout {
+            private final String bookId; // May be null when there is a barcode
+            private final String memberId;
+            private final long barcode;  // 0 for any copy
+
+            Checkout(String bookId, String memberId, long barcode) {
+                this.bookId = bookId;
+                this.memberId = memberId;
+                this.barcode = barcode;
+            }
+
+            /**
+             * A checkout for one token typed or scanned at the desk: a book ID, or failing that a barcode.
+             */
+            static Checkout parse(String token, String memberId) {
+                if (!books.exists(token)) {
+                    try {
+                        return new Checkout(null, memberId, Long.parseLong(token));
+                    } catch (NumberFormatException e) {
+                        // Not a barcode either; checking will say the book doesn't exist
+                    }
+                }
+                return new Checkout(token, memberId, 0);
+            }
+
+            public String getBookId() { return bookId; }
+            public String getMemberId() { return memberId; }
+            public long getBarcode() { return barcode; }
+        }
+
+        /**
+         * What became of a batch: either every item was applied or none was. Holds one entry per
+         * item, in the order given: the error that stopped it (null if it was fine) and, if the batch
+         * was applied, its loan.
+         */
+        static final class BatchResult {
+            private final boolean applied;
+            private final List<String> errors;
+            private final List<IssueRecord> records; // Empty if the batch wasn't applied
+
+            BatchResult(boolean applied, List<String> errors, List<IssueRecord> records) {
+                this.applied = applied;
+                this.errors = errors;
+                this.records = records;
+            }
+
+            public boolean isApplied() { return applied; }
+            public List<String> getErrors() { return errors; }
+            public List<IssueRecord> getRecords() { return records; }
+
+            /**
+             * Describes the refused items, one per line, numbered from 1.
+             */
+            public String describeErrors() {
+                StringBuilder text = new StringBuilder();
+                for (int i = 0; i < errors.size(); i++) {
+                    if (errors.get(i) != null) {
+                        text.append("Item ").append(i + 1).append(": ").append(errors.get(i)).append('\n');
+                    }
+                }
+                return text.toString();
+            }
+        }
+
+        private final ReentrantReadWriteLock changes = new ReentrantReadWriteLock();
+        private final ScheduledExecutorService holdSweeper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "hold-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        /**
+         * Returns the lock that, while held, keeps every change out.
+         */
+        public Lock changesBlocked() {
+            return changes.writeLock();
+        }
+
+        // --- Loans ---
+
+        /**
+         * Issues one copy of a book to a member and returns the new loan.
+         */
+        public IssueRecord issue(String bookId, String memberId) throws LibraryException {
+            return issue(bookId, memberId, 0);
+        }
+
+        /**
+         * Issues the copy with the given barcode to a member, e.g. the one they brought to the desk.
+         */
+        public IssueRecord issueCopy(long barcode, String memberId) throws LibraryException {
+            Copy copy = books.copy(barcode);
+            if (copy == null) {
+                throw new LibraryException("Error: No copy has barcode " + barcode + ".");
+            }
+            return issue(copy.getBook().getId(), memberId, barcode);
+        }
+
+        /**
+         * Issues a copy of a book to a member and returns the new loan: the copy with the given
+         * barcode, or with 0 the one set aside for the member's hold or else any copy on the shelf.
+         */
+        public IssueRecord issue(String bookId, String memberId, long barcode) throws LibraryException {
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            changes.readLock().lock();
+            try {
+                Book book = books.get(bookId);
+                if (book == null) {
+                    throw new LibraryException("Error: Book " + bookId + " does not exist.");
+                }
+                Member member = members.get(memberId);
+                if (member == null) {
+                    throw new LibraryException("Error: Member " + memberId + " does not exist.");
+                }
+                IssueRecord record;
+                synchronized (issueRecords) {
+                    // Deletes check for open loans under the same lock, so neither can have gone since
+                    if (books.get(bookId) != book || members.get(memberId) != member) {
+                        throw new LibraryException("Error: The book or member was just deleted.");
+                    }
+                    Copy wanted = barcode == 0 ? null : books.copy(barcode);
+                    if (barcode != 0 && (wanted == null || wanted.getBook() != book)) {
+                        throw new LibraryException("Error: Copy " + barcode + " is not a copy of this book.");
+                    }
+                    record = issueLocked(book, member, wanted, false);
+                }
+                books.update(book);
+                succeeded = true;
+                return record;
+            } finally {
+                changes.readLock().unlock();
+                metrics.issue.record(start, succeeded);
+            }
+        }
+
+        /**
+         * Issues the wanted copy, or if null the copy set aside for the member's hold or else any copy
+         * on the shelf. Call holding the loan registry's lock.
+         */
+        private IssueRecord issueLocked(Book book, Member member, Copy wanted, boolean batched) throws LibraryException {
+            // A member collecting a copy set aside for them takes that one; anyone else needs one on the shelf
+            Hold hold = holds.find(book.getId(), member.getId());
+            boolean collecting = hold != null && hold.getStatus() == Hold.Status.READY;
+            Copy setAside = collecting ? books.copy(hold.getBarcode()) : null;
+            Copy copy;
+            if (setAside != null && (wanted == null || wanted == setAside)) {
+                copy = setAside;
+                book.moveOffShelf(copy, Copy.Status.ON_LOAN);
+            } else {
+                copy = wanted == null ? book.issueBook() : book.issueBook(wanted) ? wanted : null;
+                if (copy == null) {
+                    throw new LibraryException(wanted == null ? "Error: No available copies of this book."
+                            : "Error: Copy " + wanted.getBarcode() + " is not on the shelf.");
+                }
+            }
+            if (collecting) {
+                holds.end(hold, Hold.Status.COLLECTED);
+                announce(new HoldChanged(hold));
+                if (setAside != null && copy != setAside) {
+                    passOn(book, setAside); // They took another copy from the shelf instead
+                }
+            }
+            IssueRecord record = new IssueRecord(book.getId(), member.getId(), copy.getBarcode());
+            while (!issueRecords.add(record)) {
+                // The ID is already out on loan; never replace that loan, just take the next ID
+                record = new IssueRecord(book.getId(), member.getId(), copy.getBarcode());
+            }
+            announce(new BookIssued(record, book, batched));
+            return record;
+        }
+
+        /**
+         * Closes an open loan and puts the copy back on the shelf, or aside for the first member
+         * waiting for it. Returns the closed loan.
+         */
+        public IssueRecord returnLoan(long issueId) throws LibraryException {
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            changes.readLock().lock();
+            try {
+                IssueRecord record;
+                synchronized (issueRecords) {
+                    record = issueRecords.close(issueId, new Date());
+                    if (record == null) {
+                        throw new LibraryException("Error: Could not find issue record.");
+                    }
+                    returnedLocked(record, false);
+                }
+                Book book = books.get(record.getBookId());
+                if (book != null) {
+                    books.update(book);
+                }
+                succeeded = true;
+                return record;
+            } finally {
+                changes.readLock().unlock();
+                metrics.returnLoan.record(start, succeeded);
+            }
+        }
+
+        /**
+         * Announces a loan just closed and passes its copy on. Call holding the loan registry's lock.
+         */
+        private void returnedLocked(IssueRecord record, boolean batched) {
+            Book book = books.get(record.getBookId());
+            announce(new BookReturned(record, book, batched));
+            if (book != null) {
+                passOn(book, books.copy(record.getBarcode())); // To the first member waiting for it, if any
+            }
+        }
+
+        /**
+         * Closes the open loan of the copy with the given barcode, e.g. one dropped in the returns
+         * box. Returns the closed loan.
+         */
+        public IssueRecord returnCopy(long barcode) throws LibraryException {
+            IssueRecord open = issueRecords.getOpenByBarcode(barcode);
+            if (open == null) {
+                throw new LibraryException("Error: Copy " + barcode + " is not on loan.");
+            }
+            return returnLoan(open.getIssueId());
+        }
+
+        // --- Batches ---
+
+        /**
+         * Issues every item of the batch, or none of them. All the items are checked first, as if
+         * they were issued in turn (copies named by barcode before the rest); if any would fail,
+         * nothing changes and the result says why for each item that would. Otherwise they are all
+         * issued under one acquisition of the locks, as a single journal entry, and views are told
+         * once with a {@link LoansBatched} event.
+         */
+        public BatchResult issueAll(List<Checkout> items) throws LibraryException {
+            checkBatchSize(items.size());
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            changes.readLock().lock();
+            try {
+                ArrayList<IssueRecord> issued = new ArrayList<>(Collections.nCopies(items.size(), null));
+                LinkedHashSet<Book> touched = new LinkedHashSet<>();
+                synchronized (issueRecords) {
+                    // Copies can't be added or withdrawn meanwhile, so what is checked is what gets issued
+                    synchronized (books) {
+                        int[] order = IntStream.range(0, items.size()).boxed()
+                                .sorted(Comparator.comparing(i -> items.get(i).getBarcode() == 0))
+                                .mapToInt(Integer::intValue).toArray();
+                        Book[] bookOf = new Book[items.size()];
+                        Member[] memberOf = new Member[items.size()];
+                        Copy[] wantedOf = new Copy[items.size()];
+                        String[] errors = new String[items.size()];
+                        HashMap<Book, Integer> shelved = new HashMap<>(); // Copies left on each shelf so far
+                        HashSet<Copy> claimed = new HashSet<>();
+                        HashSet<Hold> collected = new HashSet<>();
+                        for (int i : order) {
+                            errors[i] = checkCheckout(items.get(i), i, bookOf, memberOf, wantedOf, shelved, claimed, collected);
+                        }
+                        if (Arrays.stream(errors).anyMatch(Objects::nonNull)) {
+                            return new BatchResult(false, Arrays.asList(errors), Collections.emptyList());
+                        }
+                        journal.beginBatch();
+                        try {
+                            for (int i : order) {
+                                issued.set(i, issueLocked(bookOf[i], memberOf[i], wantedOf[i], true));
+                                touched.add(bookOf[i]);
+                            }
+                        } finally {
+                            journal.endBatch();
+                        }
+                        events.publish(new LoansBatched(issued, Collections.emptyList()));
+                    }
+                }
+                touched.forEach(books::update);
+                succeeded = true;
+                return new BatchResult(true, Collections.nCopies(items.size(), null), issued);
+            } finally {
+                changes.readLock().unlock();
+                metrics.issueBatch.record(start, succeeded);
+            }
+        }
+
+        /**
+         * Looks up one checkout and checks it could be issued after the items checked before it,
+         * whose effects are tallied in the last three arguments. Returns why not, or null if it can.
+         */
+        private String checkCheckout(Checkout item, int i, Book[] bookOf, Member[] memberOf, Copy[] wantedOf,
+                                     HashMap<Book, Integer> shelved, HashSet<Copy> claimed, HashSet<Hold> collected) {
+            Copy wanted = item.getBarcode() == 0 ? null : books.copy(item.getBarcode());
+            if (item.getBarcode() != 0 && wanted == null) {
+                return "No copy has barcode " + item.getBarcode() + ".";
+            }
+            Book book = item.getBookId() != null ? books.get(item.getBookId()) : wanted != null ? wanted.getBook() : null;
+            if (book == null) {
+                return "Book " + item.getBookId() + " does not exist.";
+            }
+            if (wanted != null && wanted.getBook() != book) {
+                return "Copy " + item.getBarcode() + " is not a copy of this book.";
+            }
+            Member member = members.get(item.getMemberId());
+            if (member == null) {
+                return "Member " + item.getMemberId() + " does not exist.";
+            }
+            bookOf[i] = book;
+            memberOf[i] = member;
+            wantedOf[i] = wanted;
+
+            // The same choices issueLocked() makes. A set-aside copy given up for another is assumed
+            // not to come back to the shelf, so this may refuse a batch that would just have worked
+            Hold hold = holds.find(book.getId(), member.getId());
+            boolean collecting = hold != null && hold.getStatus() == Hold.Status.READY && !collected.contains(hold);
+            Copy setAside = collecting ? books.copy(hold.getBarcode()) : null;
+            int shelf = shelved.getOrDefault(book, book.getAvailableQuantity());
+            if (setAside == null || (wanted != null && wanted != setAside)) {
+                if (wanted != null && (wanted.getStatus() != Copy.Status.AVAILABLE || claimed.contains(wanted))) {
+                    return "Copy " + item.getBarcode() + " is not on the shelf.";
+                }
+                if (shelf <= 0) {
+                    return "No available copies of \"" + book.getTitle() + "\" are left for this item.";
+                }
+                shelved.put(book, shelf - 1);
+                if (wanted != null) {
+                    claimed.add(wanted);
+                }
+            }
+            if (collecting) {
+                collected.add(hold);
+            }
+            return null;
+        }
+
+        /**
+         * Returns every loan of the batch, or none of them if any isn't open (or is listed twice).
+         * Like {@link #issueAll}, the returns go to the journal as one entry and to views as one event.
+         */
+        public BatchResult returnAll(List<Long> issueIds) throws LibraryException {
+            checkBatchSize(issueIds.size());
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            changes.readLock().lock();
+            try {
+                ArrayList<IssueRecord> returned = new ArrayList<>(issueIds.size());
+                synchronized (issueRecords) {
+                    String[] errors = new String[issueIds.size()];
+                    HashSet<Long> seen = new HashSet<>();
+                    for (int i = 0; i < issueIds.size(); i++) {
+                        long issueId = issueIds.get(i);
+                        if (!seen.add(issueId)) {
+                            errors[i] = "Issue ID " + issueId + " is listed twice.";
+                        } else if (issueRecords.getOpen(issueId) == null) {
+                            errors[i] = "No open loan with issue ID " + issueId + ".";
+                        }
+                    }
+                    if (Arrays.stream(errors).anyMatch(Objects::nonNull)) {
+                        return new BatchResult(false, Arrays.asList(errors), Collections.emptyList());
+                    }
+                    Date now = new Date();
+                    journal.beginBatch();
+                    try {
+                        for (long issueId : issueIds) {
+                            IssueRecord record = issueRecords.close(issueId, now);
+                            returnedLocked(record, true);
+                            returned.add(record);
+                        }
+                    } finally {
+                        journal.endBatch();
+                    }
+                    events.publish(new LoansBatched(Collections.emptyList(), returned));
+                }
+                returned.stream().map(record -> books.get(record.getBookId())).filter(Objects::nonNull)
+                        .distinct().forEach(books::update);
+                succeeded = true;
+                return new BatchResult(true, Collections.nCopies(issueIds.size(), null), returned);
+            } finally {
+                changes.readLock().unlock();
+                metrics.returnBatch.record(start, succeeded);
+            }
+        }
+
+        private static void checkBatchSize(int size) throws LibraryException {
+            if (size == 0) {
+                throw new LibraryException("Error: The batch is empty.");
+            }
+            if (size > MAX_BATCH) {
+                throw new LibraryException("Error: A batch can hold at most " + MAX_BATCH + " items, not " + size + ".");
+            }
+        }
+
+        // --- Holds ---
+
+        /**
+         * Puts a member in the queue for a book and returns the hold. If a copy is on the shelf, and
+         * nobody is ahead of them, it is set aside for them straight away.
+         */
+        public Hold placeHold(String bookId, String memberId) throws LibraryException {
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            changes.readLock().lock();
+            try {
+                synchronized (issueRecords) {
+                    // Deletes check for holds under the same lock, so neither can go while this runs
+                    Book book = books.get(bookId);
+                    if (book == null) {
+                        throw new LibraryException("Error: Book " + bookId + " does not exist.");
+                    }
+                    Member member = members.get(memberId);
+                    if (member == null) {
+                        throw new LibraryException("Error: Member " + memberId + " does not exist.");
+                    }
+                    if (holds.find(book.getId(), member.getId()) != null) {
+                        throw new LibraryException("Error: " + member.getName() + " already has a hold on this book.");
+                    }
+                    Hold hold = new Hold(book.getId(), member.getId());
+                    holds.add(hold);
+                    announce(new HoldChanged(hold));
+                    allocateShelvedCopies(book);
+                    books.update(book);
+                    succeeded = true;
+                    return hold;
+                }
+            } finally {
+                changes.readLock().unlock();
+                metrics.placeHold.record(start, succeeded);
+            }
+        }
+
+        /**
+         * Takes a member out of the queue. A copy set aside for them passes to whoever is next.
+         */
+        public Hold cancelHold(long holdId) throws LibraryException {
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            changes.readLock().lock();
+            try {
+                synchronized (issueRecords) {
+                    Hold hold = holds.get(holdId);
+                    if (hold == null) {
+                        throw new LibraryException("Error: Could not find the hold.");
+                    }
+                    endHold(hold, Hold.Status.CANCELLED);
+                    succeeded = true;
+                    return hold;
+                }
+            } finally {
+                changes.readLock().unlock();
+                metrics.cancelHold.record(start, succeeded);
+            }
+        }
+
+        /**
+         * Ends every ready hold whose copy wasn't collected in time, passing each copy on to the next
+         * member waiting (or back to the shelf). Returns the number of holds expired.
+         */
+        public int expireHolds() {
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            changes.readLock().lock();
+            try {
+                synchronized (issueRecords) {
+                    List<Hold> expired = holds.expiredBy(System.currentTimeMillis());
+                    for (Hold hold : expired) {
+                        endHold(hold, Hold.Status.EXPIRED);
+                    }
+                    succeeded = true;
+                    return expired.size();
+                }
+            } finally {
+                changes.readLock().unlock();
+                metrics.expireHolds.record(start, succeeded);
+            }
+        }
+
+        /**
+         * Runs {@link #expireHolds} every {@link #HOLD_SWEEP_MINUTES} minutes from now on, starting straight away.
+         */
+        public void startHoldSweeper() {
+            holdSweeper.scheduleWithFixedDelay(() -> {
+                try {
+                    expireHolds();
+                } catch (RuntimeException e) {
+                    e.printStackTrace(); // Keep sweeping; an exception would cancel the schedule
+                }
+            }, 0, HOLD_SWEEP_MINUTES, TimeUnit.MINUTES);
+        }
+
+        /**
+         * Ends an active hold. If a copy was set aside for it, that copy is passed on. Call holding the loan registry's lock.
+         */
+        private void endHold(Hold hold, Hold.Status status) {
+            boolean wasReady = hold.getStatus() == Hold.Status.READY;
+            holds.end(hold, status);
+            announce(new HoldChanged(hold));
+            Book book = books.get(hold.getBookId());
+            if (wasReady && book != null) {
+                passOn(book, books.copy(hold.getBarcode()));
+                books.update(book);
+            }
+        }
+
+        /**
+         * A copy of the book has come back, or a set-aside copy was given up: sets it aside for the
+         * next member waiting, or puts it back on the shelf. Does nothing if there is no copy, so a
+         * loan closed without one never sets anything aside. Call holding the loan registry's lock.
+         */
+        private void passOn(Book book, Copy copy) {
+            if (copy == null) {
+                return; // It never had a copy of its own, e.g. a loan made when there were more loans than copies
+            }
+            Hold next = holds.nextWaiting(book.getId());
+            if (next == null) {
+                book.returnBook(copy);
+            } else {
+                book.moveOffShelf(copy, Copy.Status.ON_HOLD);
+                setAside(next, copy);
+            }
+        }
+
+        /**
+         * Sets copies on the shelf aside for members waiting, e.g. after a hold is placed on a book
+         * that has copies or more copies were added. Call holding the loan registry's lock.
+         */
+        private void allocateShelvedCopies(Book book) {
+            Hold next;
+            Copy copy;
+            while ((next = holds.nextWaiting(book.getId())) != null && (copy = book.setAsideCopy()) != null) {
+                setAside(next, copy);
+            }
+        }
+
+        private void setAside(Hold hold, Copy copy) {
+            long expiry = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(Hold.PICKUP_DAYS);
+            holds.setReady(hold, new Date(expiry), copy.getBarcode());
+            announce(new HoldChanged(hold));
+        }
+
+        /**
+         * Refuses a new book or member ID too long for the loan history to archive its loans.
+         */
+        static void checkIdLength(String kind, String id) throws LibraryException {
+            if (!LoanHistoryFile.fitsId(id)) {
+                throw new LibraryException(kind + " ID can be at most " + LoanHistoryFile.MAX_ID_BYTES
+                        + " characters long (fewer with accented letters or symbols).");
+            }
+        }
+
+        // --- Books ---
+
+        public void addBook(Book book) throws LibraryException {
+            checkIdLength("Book", book.getId());
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            changes.readLock().lock();
+            try {
+                synchronized (books) {
+                    if (!books.add(book)) {
+                        throw new LibraryException("Book ID already exists.");
+                    }
+                    announce(new BookChanged(book, ChangeType.ADDED));
+                }
+                succeeded = true;
+            } finally {
+                changes.readLock().unlock();
+                metrics.addBook.record(start, succeeded);
+            }
+        }
+
+        /**
+         * Adds a batch of books under one acquisition of the locks, announcing each as it goes.
+         * Returns the positions in the batch of the books refused because their ID was already taken.
+         * Each book is only made once its ID is known to be free, so refused ones use up no barcodes.
+         */
+        public BitSet addBooks(List<BookDetails> batch) {
+            BitSet refused = new BitSet(batch.size());
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            changes.readLock().lock();
+            try {
+                synchronized (books) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        BookDetails details = batch.get(i);
+                        if (books.get(details.getId()) != null) {
+                            refused.set(i);
+                            continue;
+                        }
+                        Book book = details.toBook();
+                        books.add(book);
+                        announce(new BookChanged(book, ChangeType.ADDED));
+                    }
+                }
+                succeeded = true;
+            } finally {
+                changes.readLock().unlock();
+                metrics.importBatch.record(start, succeeded);
+            }
+            return refused;
+        }
+
+        public void updateBook(Book book, String title, String author, String publisher, int quantity) throws LibraryException {
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            changes.readLock().lock();
+            try {
+                synchronized (books) {
+                    // Checked atomically, since copies may be issued while this runs
+                    if (!books.setQuantity(book, quantity)) {
+                        throw new LibraryException("Quantity cannot be set lower than the number of currently issued books (" + book.getIssued() + ").");
+                    }
+                    book.setTitle(title);
+                    book.setAuthor(author);
+                    book.setPublisher(publisher);
+                    books.update(book);
+                    announce(new BookChanged(book, ChangeType.UPDATED));
+                }
+                // Copies added while members are waiting go to them
+                if (holds.hasHoldsForBook(book.getId())) {
+                    synchronized (issueRecords) {
+                        allocateShelvedCopies(book);
+                    }
+                    books.update(book);
+                }
+                succeeded = true;
+            } finally {
+                changes.readLock().unlock();
+                metrics.updateBook.record(start, succeeded);
+            }
+        }
+
+        public Book deleteBook(String bookId) throws LibraryException {
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            changes.readLock().lock();
+            try {
+                synchronized (issueRecords) {
+                    if (issueRecords.hasOpenLoansForBook(bookId)) {
+                        throw new LibraryException("Cannot delete book. It is currently issued to a member.");
+                    }
+                    if (holds.hasHoldsForBook(bookId)) {
+                        throw new LibraryException("Cannot delete book. Members have holds on it.");
+                    }
+                    synchronized (books) {
+                        Book removed = books.remove(bookId);
+                        if (removed == null) {
+                            throw new LibraryException("Book " + bookId + " does not exist.");
+                        }
+                        announce(new BookChanged(removed, ChangeType.DELETED));
+                        succeeded = true;
+                        return removed;
+                    }
+                }
+            } finally {
+                changes.readLock().unlock();
+                metrics.deleteBook.record(start, succeeded);
+            }
+        }
+
+        // --- Members ---
+
+        public void addMember(Member member) throws LibraryException {
+            checkIdLength("Member", member.getId());
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            changes.readLock().lock();
+            try {
+                synchronized (members) {
+                    if (!members.add(member)) {
+                        throw new LibraryException("Member ID already exists.");
+                    }
+                    announce(new MemberChanged(member, ChangeType.ADDED));
+                }
+                succeeded = true;
+            } finally {
+                changes.readLock().unlock();
+                metrics.addMember.record(start, succeeded);
+            }
+        }
+
+        public void updateMember(Member member, String name, String email, String contact) {
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            changes.readLock().lock();
+            try {
+                synchronized (members) {
+                    member.setName(name);
+                    member.setEmail(email);
+                    member.setContact(contact);
+                    members.update(member);
+                    announce(new MemberChanged(member, ChangeType.UPDATED));
+                }
+                succeeded = true;
+            } finally {
+                changes.readLock().unlock();
+                metrics.updateMember.record(start, succeeded);
+            }
+        }
+
+        public Member deleteMember(String memberId) throws LibraryException {
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            changes.readLock().lock();
+            try {
+                synchronized (issueRecords) {
+                    if (issueRecords.hasOpenLoansForMember(memberId)) {
+                        throw new LibraryException("Cannot delete member. They have books currently issued.");
+                    }
+                    if (holds.hasHoldsForMember(memberId)) {
+                        throw new LibraryException("Cannot delete member. They have books on hold.");
+                    }
+                    synchronized (members) {
+                        Member removed = members.remove(memberId);
+                        if (removed == null) {
+                            throw new LibraryException("Member " + memberId + " does not exist.");
+                        }
+                        announce(new MemberChanged(removed, ChangeType.DELETED));
+                        succeeded = true;
+                        return removed;
+                    }
+                }
+            } finally {
+                changes.readLock().unlock();
+                metrics.deleteMember.record(start, succeeded);
+            }
+        }
+    }
+
+    // =================================================================================
+    // --- GUI Panels (Static Inner Classes) ---
+    // =================================================================================
+
+    /**
+     * A read-only table model that reads cells straight from a repository by row index.
+     * Nothing is copied per row, and only the rows a change touches are redrawn.
+     */
+    static class RepositoryTableModel<T> extends AbstractTableModel implements Repository.Listener {
+        private static final long serialVersionUID = 1L;
+        private final transient Repository<T> repository;
+        private final String[] columnNames;
+        private final transient BiFunction<T, Integer, Object> cellValue; // (entity, column) -> value
+        private final AtomicBoolean refreshPending = new AtomicBoolean();
+
+        public RepositoryTableModel(Repository<T> repository, String[] columnNames, BiFunction<T, Integer, Object> cellValue) {
+            this.repository = repository;
+            this.columnNames = columnNames;
+            this.cellValue = cellValue;
+            repository.addListener(this);
+        }
+
+        @Override
+        public int getRowCount() { return repository.size(); }
+
+        @Override
+        public int getColumnCount() { return columnNames.length; }
+
+        @Override
+        public String getColumnName(int column) { return columnNames[column]; }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            T item = repository.getAt(row);
+            return item == null ? null : cellValue.apply(item, column);
+        }
+
+        // Changes made on the EDT are passed on row by row. Changes from other threads arrive while
+        // the store is locked, and their row numbers may be stale by the time the EDT gets to them,
+        // so they are collapsed into one full refresh instead.
+
+        @Override
+        public void rowInserted(int row) {
+            if (SwingUtilities.isEventDispatchThread()) fireTableRowsInserted(row, row);
+            else refreshLater();
+        }
+
+        @Override
+        public void rowUpdated(int row) {
+            if (SwingUtilities.isEventDispatchThread()) fireTableRowsUpdated(row, row);
+            else refreshLater();
+        }
+
+        @Override
+        public void rowDeleted(int row) {
+            if (SwingUtilities.isEventDispatchThread()) fireTableRowsDeleted(row, row);
+            else refreshLater();
+        }
+
+        @Override
+        public void contentsChanged() {
+            if (SwingUtilities.isEventDispatchThread()) fireTableDataChanged();
+            else refreshLater();
+        }
+
+        private void refreshLater() {
+            if (refreshPending.compareAndSet(false, true)) {
+                SwingUtilities.invokeLater(() -> {
+                    refreshPending.set(false);
+                    fireTableDataChanged();
+                });
+            }
+        }
+    }
+
+    /**
+     * A list with O(1) add, remove and contains, for view models that change one entry at a time.
+     * Removal moves the last entry into the freed slot, so entries don't keep their original order.
+     */
+    static final class IndexedList<T> {
+        private final ArrayList<T> items = new ArrayList<>();
+        private final HashMap<T, Integer> positions = new HashMap<>();
+
+        public int size() { return items.size(); }
+
+        public T get(int row) { return items.get(row); }
+
+        public boolean contains(T item) { return positions.containsKey(item); }
+
+        public int indexOf(T item) {
+            Integer row = positions.get(item);
+            return row == null ? -1 : row;
+        }
+
+        /**
+         * Appends an item. Returns its row, or -1 if it was already in the list.
+         */
+        public int add(T item) {
+            if (positions.containsKey(item)) {
+                return -1;
+            }
+            positions.put(item, items.size());
+            items.add(item);
+            return items.size() - 1;
+        }
+
+        /**
+         * Removes an item. Returns the row it occupied, which now holds the former last item
+         * unless it was the last one itself, or -1 if it wasn't in the list.
+         */
+        public int remove(T item) {
+            Integer row = positions.remove(item);
+            if (row == null) {
+                return -1;
+            }
+            T last = items.remove(items.size() - 1);
+            if (last != item) {
+                items.set(row, last);
+                positions.put(last, row);
+            }
+            return row;
+        }
+
+        public void clear() {
+            items.clear();
+            positions.clear();
+        }
+    }
+
+    /**
+     * A text field that suggests matching entries from a {@link SearchIndex} as the user types.
+     * The arrow keys move through the suggestions; Enter or a click picks one.
+     */
+    static class TypeaheadField<T> extends JTextField {
+        private static final long serialVersionUID = 1L;
+        private static final int MAX_SUGGESTIONS = 20;
+
+        private final transient SearchIndex<T> index;
+        private final transient Predicate<? super T> filter;
+        private final DefaultListModel<T> suggestions = new DefaultListModel<>();
+        private final JList<T> suggestionList = new JList<>(suggestions);
+        private final JPopupMenu popup = new JPopupMenu();
+        private transient T selected;
+        private boolean settingText; // True while the field's text is set to a picked entry
+
+        public TypeaheadField(SearchIndex<T> index, Predicate<? super T> filter) {
+            super(20);
+            this.index = index;
+            this.filter = filter;
+
+            suggestionList.setFocusable(false);
+            suggestionList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+            suggestionList.addMouseListener(new MouseAdapter() {
+                @Override
+                public void mouseClicked(MouseEvent e) {
+                    pick(suggestionList.getSelectedValue());
+                }
+            });
+            popup.setFocusable(false);
+            popup.add(new JScrollPane(suggestionList));
+
+            getDocument().addDocumentListener(new DocumentListener() {
+                @Override
+                public void insertUpdate(DocumentEvent e) { textChanged(); }
+                @Override
+                public void removeUpdate(DocumentEvent e) { textChanged(); }
+                @Override
+                public void changedUpdate(DocumentEvent e) { textChanged(); }
+            });
+            addFocusListener(new FocusAdapter() {
+                @Override
+                public void focusLost(FocusEvent e) {
+                    popup.setVisible(false);
+                }
+            });
+
+            bindKey("DOWN", () -> moveSelection(1));
+            bindKey("UP", () -> moveSelection(-1));
+            bindKey("ENTER", () -> pick(suggestionList.getSelectedValue()));
+            bindKey("ESCAPE", () -> popup.setVisible(false));
+        }
+
+        private void bindKey(String key, Runnable action) {
+            getInputMap().put(KeyStroke.getKeyStroke(key), key);
+            getActionMap().put(key, new AbstractAction() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    action.run();
+                }
+            });
+        }
+
+        /**
+         * Returns the entry the user picked, or null if they haven't picked one since last typing.
+         */
+        public T getSelectedItem() {
+            return selected;
+        }
+
+        /**
+         * Forgets the picked entry and empties the field.
+         */
+        public void clearSelection() {
+            selected = null;
+            settingText = true;
+            setText("");
+            settingText = false;
+        }
+
+        private void textChanged() {
+            if (settingText) {
+                return;
+            }
+            selected = null; // Typing invalidates the previous pick
+            List<T> matches = index.search(getText(), MAX_SUGGESTIONS, filter);
+            suggestions.clear();
+            if (matches.isEmpty()) {
+                popup.setVisible(false);
+                return;
+            }
+            suggestions.addAll(matches);
+            suggestionList.setSelectedIndex(0);
+            suggestionList.setVisibleRowCount(Math.min(matches.size(), 8));
+            popup.setPopupSize(getWidth(), suggestionList.getPreferredScrollableViewportSize().height + 6);
+            if (isShowing()) {
+                popup.show(this, 0, getHeight());
+            }
+        }
+
+        private void moveSelection(int delta) {
+            if (!popup.isVisible() || suggestions.isEmpty()) {
+                return;
+            }
+            int next = Math.max(0, Math.min(suggestions.size() - 1, suggestionList.getSelectedIndex() + delta));
+            suggestionList.setSelectedIndex(next);
+            suggestionList.ensureIndexIsVisible(next);
+        }
+
+        private void pick(T item) {
+            if (item == null) {
+                return;
+            }
+            selected = item;
+            settingText = true;
+            setText(item.toString());
+            settingText = false;
+            popup.setVisible(false);
+        }
+    }
+
+    /**
+     * The active-issues table: one row per open loan, added and removed as books are issued and
+     * returned. Book titles and member names are looked up by ID when a row is drawn.
+     */
+    static class OpenLoansTableModel extends AbstractTableModel {
+        private static final long serialVersionUID = 1L;
+        private static final String[] COLUMN_NAMES = {"Issue ID", "Barcode", "Book Title", "Member Name", "Issue Date", "Due Date"};
+        private final transient IndexedList<IssueRecord> rows = new IndexedList<>();
+
+        @Override
+        public int getRowCount() { return rows.size(); }
+
+        @Override
+        public int getColumnCount() { return COLUMN_NAMES.length; }
+
+        @Override
+        public String getColumnName(int column) { return COLUMN_NAMES[column]; }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            IssueRecord record = rows.get(row);
+            switch (column) {
+                case 0:
+                    return record.getIssueId();
+                case 1:
+                    return record.getBarcode() != 0 ? record.getBarcode() : "";
+                case 2:
+                    Book book = books.get(record.getBookId());
+                    return book != null ? book.getTitle() : "N/A";
+                case 3:
+                    Member member = members.get(record.getMemberId());
+                    return member != null ? member.getName() : "N/A";
+                case 4:
+                    return record.getIssueDate().toString();
+                default:
+                    return record.getDueDate().toString();
+            }
+        }
+
+        public IssueRecord getRecordAt(int row) {
+            return rows.get(row);
+        }
+
+        /**
+         * Redraws one loan's row, e.g. when it becomes overdue.
+         */
+        public void changed(IssueRecord record) {
+            int row = rows.indexOf(record);
+            if (row != -1) {
+                fireTableRowsUpdated(row, row);
+            }
+        }
+
+        public void add(IssueRecord record) {
+            int row = rows.add(record);
+            if (row != -1) {
+                fireTableRowsInserted(row, row);
+            }
+        }
+
+        public void remove(IssueRecord record) {
+            int row = rows.remove(record);
+            if (row == -1) {
+                return;
+            }
+            int lastRow = rows.size();
+            fireTableRowsDeleted(lastRow, lastRow);
+            if (row != lastRow) {
+                fireTableRowsUpdated(row, row);
+            }
+        }
+
+        /**
+         * Redraws every row, e.g. after a book or member was renamed. Only visible rows are repainted.
+         */
+        public void namesChanged() {
+            if (rows.size() > 0) {
+                fireTableRowsUpdated(0, rows.size() - 1);
+            }
+        }
+
+        public void setAll(Iterable<IssueRecord> open) {
+            rows.clear();
+            open.forEach(rows::add);
+            fireTableDataChanged();
+        }
+
+        /**
+         * Applies a whole batch of issues and returns, then redraws once.
+         */
+        public void applyBatch(List<IssueRecord> issued, List<IssueRecord> returned) {
+            issued.forEach(rows::add);
+            returned.forEach(rows::remove);
+            fireTableDataChanged();
+        }
+    }
+
+    /**
+     * The active holds, oldest first, kept up to date one change at a time like {@link OpenLoansTableModel}.
+     */
+    static class HoldsTableModel extends AbstractTableModel {
+        private static final long serialVersionUID = 1L;
+        private static final String[] COLUMN_NAMES = {"Book Title", "Member Name", "Placed", "Status"};
+        private final transient IndexedList<Hold> rows = new IndexedList<>();
+
+        @Override
+        public int getRowCount() { return rows.size(); }
+
+        @Override
+        public int getColumnCount() { return COLUMN_NAMES.length; }
+
+        @Override
+        public String getColumnName(int column) { return COLUMN_NAMES[column]; }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            Hold hold = rows.get(row);
+            switch (column) {
+                case 0:
+                    Book book = books.get(hold.getBookId());
+                    return book != null ? book.getTitle() : "N/A";
+                case 1:
+                    Member member = members.get(hold.getMemberId());
+                    return member != null ? member.getName() : "N/A";
+                case 2:
+                    return hold.getPlacedDate().toString();
+                default:
+                    if (hold.getStatus() == Hold.Status.READY) {
+                        return "Ready until " + hold.getExpiryDate();
+                    }
+                    return hold.isActive() ? "Waiting (#" + holds.position(hold) + ")" : hold.getStatus().toString();
+            }
+        }
+
+        public Hold getHoldAt(int row) {
+            return rows.get(row);
+        }
+
+        /**
+         * Adds, redraws or removes the hold's row. Positions in the queue shift with any change, so every
+         * row is redrawn; only the visible ones are actually repainted.
+         */
+        public void changed(Hold hold) {
+            if (hold.isActive()) {
+                int row = rows.add(hold);
+                if (row != -1) {
+                    fireTableRowsInserted(row, row);
+                }
+            } else {
+                int row = rows.remove(hold);
+                if (row != -1) {
+                    fireTableRowsDeleted(rows.size(), rows.size());
+                }
+            }
+            if (rows.size() > 0) {
+                fireTableRowsUpdated(0, rows.size() - 1);
+            }
+        }
+
+        public void setAll(Iterable<Hold> active) {
+            rows.clear();
+            active.forEach(rows::add);
+            fireTableDataChanged();
+        }
+    }
+
+    /**
+     * The default panel shown on startup. Its figures come from {@link LibraryStats}, each an O(1)
+     * read, and are refreshed every second while the panel is showing.
+     */
+    static class WelcomePanel extends JPanel {
+        private static final int REFRESH_MILLIS = 1000;
+        private static final String COMPUTING = "Computing...";
+
+        private final JLabel titlesLabel = new JLabel();
+        private final JLabel copiesLabel = new JLabel();
+        private final JLabel copiesOutLabel = new JLabel();
+        private final JLabel membersLabel = new JLabel();
+        private final JLabel activeMembersLabel = new JLabel();
+        private final JLabel loansTodayLabel = new JLabel();
+        private final JLabel overdueLabel = new JLabel();
+        private final JLabel holdsLabel = new JLabel();
+        private final DefaultListModel<String> mostBorrowed = new DefaultListModel<>();
+
+        public WelcomePanel() {
+            setLayout(new BorderLayout());
+            JLabel welcomeLabel = new JLabel("Welcome to the Library!", JLabel.CENTER);
+            welcomeLabel.setFont(new Font("Arial", Font.BOLD, 32));
+            add(welcomeLabel, BorderLayout.CENTER);
+
+            JPanel statsPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 30, 20));
+            for (JLabel label : new JLabel[] {titlesLabel, copiesLabel, copiesOutLabel, membersLabel,
+                    activeMembersLabel, loansTodayLabel, overdueLabel, holdsLabel}) {
+                statsPanel.add(label);
+            }
+            add(statsPanel, BorderLayout.SOUTH);
+
+            JList<String> mostBorrowedList = new JList<>(mostBorrowed);
+            mostBorrowedList.setFocusable(false);
+            JScrollPane mostBorrowedPane = new JScrollPane(mostBorrowedList);
+            mostBorrowedPane.setBorder(new TitledBorder("Most Borrowed"));
+            mostBorrowedPane.setPreferredSize(new Dimension(280, 0));
+            add(mostBorrowedPane, BorderLayout.EAST);
+
+            refreshStats();
+            new Timer(REFRESH_MILLIS, e -> {
+                if (isShowing()) {
+                    refreshStats();
+                }
+            }).start();
+        }
+
+        /**
+         * Reads the current figures into the labels; a label whose text hasn't changed isn't redrawn.
+         */
+        public void refreshStats() {
+            titlesLabel.setText("Titles: " + stats.titles());
+            copiesLabel.setText("Copies: " + stats.copies());
+            copiesOutLabel.setText("Copies Out: " + stats.copiesOut());
+            membersLabel.setText("Members: " + stats.members());
+            activeMembersLabel.setText("Borrowing: " + stats.activeMembers());
+            overdueLabel.setText("Overdue: " + overdue.overdueCount());
+            holdsLabel.setText("Holds: " + holds.size());
+            if (!stats.isCounted()) {
+                // Still counting the loan history in the background; the timer picks the figures up when it's done
+                loansTodayLabel.setText("Loans Today: " + COMPUTING);
+                if (mostBorrowed.size() != 1 || !COMPUTING.equals(mostBorrowed.get(0))) {
+                    mostBorrowed.clear();
+                    mostBorrowed.addElement(COMPUTING);
+                }
+                return;
+            }
+            loansTodayLabel.setText("Loans Today: " + stats.loansToday());
+
+            List<Map.Entry<Book, Long>> top = stats.topTitles();
+            for (int i = 0; i < top.size(); i++) {
+                String line = (i + 1) + ". " + top.get(i).getKey().getTitle() + " (" + top.get(i).getValue() + ")";
+                if (i >= mostBorrowed.size()) {
+                    mostBorrowed.addElement(line);
+                } else if (!line.equals(mostBorrowed.get(i))) {
+                    mostBorrowed.set(i, line);
+                }
+            }
+            if (mostBorrowed.size() > top.size()) {
+                mostBorrowed.removeRange(top.size(), mostBorrowed.size() - 1);
+            }
+        }
+    }
+
+    /**
+     * Panel for Viewing, Adding, Updating, and Deleting Books.
+     */
+    static class ViewBooksPanel extends JPanel {
+        private final RepositoryTableModel<Book> tableModel;
+        private final JTable table;
+
+        public ViewBooksPanel() {
+            setLayout(new BorderLayout(10, 10));
+            setBorder(new EmptyBorder(10, 10, 10, 10));
+
+            // --- Table ---
+            // Reads straight from 'books' and redraws only the rows that change
+            String[] columnNames = {"Book ID", "Title", "Author", "Publisher", "Quantity", "Issued", "Available"};
+            tableModel = new RepositoryTableModel<>(books, columnNames, ViewBooksPanel::cellValue);
+            table = new JTable(tableModel);
+            table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+            add(new JScrollPane(table), BorderLayout.CENTER);
+
+            // --- Button Panel ---
+            JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 10, 10));
+
+            JButton addBtn = new JButton("Add New Book");
+            addBtn.addActionListener(e -> new AddBookDialog().setVisible(true));
+            buttonPanel.add(addBtn);
+
+            JButton updateBtn = new JButton("Update Selected Book");
+            updateBtn.addActionListener(e -> handleUpdateBook());
+            buttonPanel.add(updateBtn);
+
+            JButton deleteBtn = new JButton("Delete Selected Book");
+            deleteBtn.addActionListener(e -> handleDeleteBook());
+            buttonPanel.add(deleteBtn);
+
+            JButton importBtn = new JButton("Import Catalog...");
+            importBtn.addActionListener(e -> handleImport(importBtn));
+            buttonPanel.add(importBtn);
+
+            add(buttonPanel, BorderLayout.SOUTH);
+        }
+
+        /**
+         * Returns the value shown in the given column for a book.
+         */
+        static Object cellValue(Book b, int column) {
+            switch (column) {
+                case 0: return b.getId();
+                case 1: return b.getTitle();
+                case 2: return b.getAuthor();
+                case 3: return b.getPublisher();
+                case 4: return b.getQuantity();
+                case 5: return b.getIssued();
+                default: return b.getAvailableQuantity();
+            }
+        }
+
+        private void handleUpdateBook() {
+            int selectedRow = table.getSelectedRow();
+            if (selectedRow == -1) {
+                JOptionPane.showMessageDialog(this, "Please select a book to update.", "No Selection", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+
+            String bookId = (String) tableModel.getValueAt(selectedRow, 0);
+            // Find the book object
+            Book bookToUpdate = books.get(bookId);
+
+            if (bookToUpdate == null) {
+                JOptionPane.showMessageDialog(this, "Error: Could not find selected book.", "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+
+            // Open the AddBookDialog, pre-filled with the book's data
+            new AddBookDialog(bookToUpdate).setVisible(true);
+        }
+
+        /**
+         * Imports a CSV or MARC-lite file in the background, then shows what was rejected.
+         */
+        private void handleImport(JButton importBtn) {
+            JFileChooser chooser = new JFileChooser();
+            if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+                return;
+            }
+            Path file = chooser.getSelectedFile().toPath();
+            importBtn.setEnabled(false);
+            importBtn.setText("Importing...");
+            Thread importer = new Thread(() -> {
+                CatalogImporter.Report report = null;
+                IOException failure = null;
+                try {
+                    report = CatalogImporter.importFile(file);
+                } catch (IOException e) {
+                    failure = e;
+                }
+                CatalogImporter.Report done = report;
+                IOException error = failure;
+                SwingUtilities.invokeLater(() -> {
+                    importBtn.setEnabled(true);
+                    importBtn.setText("Import Catalog...");
+                    if (error != null) {
+                        JOptionPane.showMessageDialog(this, "Error importing " + file.getFileName() + ": " + error.getMessage(), "Import Error", JOptionPane.ERROR_MESSAGE);
+                    } else {
+                        showImportReport(done);
+                    }
+                });
+            }, "catalog-import");
+            importer.setDaemon(true);
+            importer.start();
+        }
+
+        private void showImportReport(CatalogImporter.Report report) {
+            if (report.getRejected().isEmpty()) {
+                JOptionPane.showMessageDialog(this, report.summary(), "Import Complete", JOptionPane.INFORMATION_MESSAGE);
+                return;
+            }
+            StringBuilder text = new StringBuilder(report.summary()).append("\n\nRejected rows:\n");
+            int shown = Math.min(report.getRejected().size(), 1000);
+            for (int i = 0; i < shown; i++) {
+                text.append(report.getRejected().get(i)).append('\n');
+            }
+            if (shown < report.getRejected().size()) {
+                text.append("... and ").append(report.getRejected().size() - shown).append(" more\n");
+            }
+            JTextArea area = new JTextArea(text.toString(), 20, 60);
+            area.setEditable(false);
+            JOptionPane.showMessageDialog(this, new JScrollPane(area), "Import Complete", JOptionPane.WARNING_MESSAGE);
+        }
+
+        private void handleDeleteBook() {
+            int selectedRow = table.getSelectedRow();
+            if (selectedRow == -1) {
+                JOptionPane.showMessageDialog(this, "Please select a book to delete.", "No Selection", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+
+            String bookId = (String) tableModel.getValueAt(selectedRow, 0);
+
+            int confirm = JOptionPane.showConfirmDialog(this,
+                    "Are you sure you want to delete this book? ID: " + bookId,
+                    "Confirm Deletion",
+                    JOptionPane.YES_NO_OPTION,
+                    JOptionPane.WARNING_MESSAGE);
+
+            if (confirm == JOptionPane.YES_OPTION) {
+                // Refused if the book is currently issued
+                try {
+                    service.deleteBook(bookId);
+                } catch (LibraryException e) {
+                    JOptionPane.showMessageDialog(this, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                JOptionPane.showMessageDialog(this, "Book deleted successfully.", "Success", JOptionPane.INFORMATION_MESSAGE);
+            }
+        }
+    }
+
+    /**
+     * Panel for Viewing, Adding, Updating, and Deleting Members.
+     */
+    static class ViewMembersPanel extends JPanel {
+        private final RepositoryTableModel<Member> tableModel;
+        private final JTable table;
+
+        public ViewMembersPanel() {
+            setLayout(new BorderLayout(10, 10));
+            setBorder(new EmptyBorder(10, 10, 10, 10));
+
+            // --- Table ---
+            String[] columnNames = {"Member ID", "Name", "Email", "Contact No."};
+            tableModel = new RepositoryTableModel<>(members, columnNames, ViewMembersPanel::cellValue);
+            table = new JTable(tableModel);
+            table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+            add(new JScrollPane(table), BorderLayout.CENTER);
+
+            // --- Button Panel ---
+            JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 10, 10));
+
+            JButton addBtn = new JButton("Add New Member");
+            addBtn.addActionListener(e -> new AddMemberDialog().setVisible(true));
+            buttonPanel.add(addBtn);
+
+            JButton updateBtn = new JButton("Update Selected Member");
+            updateBtn.addActionListener(e -> handleUpdateMember());
+            buttonPanel.add(updateBtn);
+
+            JButton deleteBtn = new JButton("Delete Selected Member");
+            deleteBtn.addActionListener(e -> handleDeleteMember());
+            buttonPanel.add(deleteBtn);
+
+            add(buttonPanel, BorderLayout.SOUTH);
+        }
+
+        /**
+         * Returns the value shown in the given column for a member.
+         */
+        private static Object cellValue(Member m, int column) {
+            switch (column) {
+                case 0: return m.getId();
+                case 1: return m.getName();
+                case 2: return m.getEmail();
+                default: return m.getContact();
+            }
+        }
+
+        private void handleUpdateMember() {
+            int selectedRow = table.getSelectedRow();
+            if (selectedRow == -1) {
+                JOptionPane.showMessageDialog(this, "Please select a member to update.", "No Selection", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+
+            String memberId = (String) tableModel.getValueAt(selectedRow, 0);
+            Member memberToUpdate = members.get(memberId);
+
+            if (memberToUpdate == null) {
+                JOptionPane.showMessageDialog(this, "Error: Could not find selected member.", "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+
+            new AddMemberDialog(memberToUpdate).setVisible(true);
+        }
+
+        private void handleDeleteMember() {
+            int selectedRow = table.getSelectedRow();
+            if (selectedRow == -1) {
+                JOptionPane.showMessageDialog(this, "Please select a member to delete.", "No Selection", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+
+            String memberId = (String) tableModel.getValueAt(selectedRow, 0);
+
+            int confirm = JOptionPane.showConfirmDialog(this,
+                    "Are you sure you want to delete this member? ID: " + memberId,
+                    "Confirm Deletion",
+                    JOptionPane.YES_NO_OPTION,
+                    JOptionPane.WARNING_MESSAGE);
+
+            if (confirm == JOptionPane.YES_OPTION) {
+                // Refused if the member has outstanding books
+                try {
+                    service.deleteMember(memberId);
+                } catch (LibraryException e) {
+                    JOptionPane.showMessageDialog(this, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                JOptionPane.showMessageDialog(this, "Member deleted successfully.", "Success", JOptionPane.INFORMATION_MESSAGE);
+            }
+        }
+    }
+
+    /**
+     * Panel for Issuing books to members and handling returns.
+     */
+    static class IssueReturnPanel extends JPanel {
+        private final TypeaheadField<Book> bookField;
+        private final TypeaheadField<Member> memberField;
+        private final JTextField copyField = new JTextField(20);
+        private final JTextField returnCopyField = new JTextField(20);
+        private final OpenLoansTableModel issueTableModel = new OpenLoansTableModel();
+        private final JTable issueTable;
+        private final HoldsTableModel holdsTableModel = new HoldsTableModel();
+        private final JTable holdsTable;
+
+        public IssueReturnPanel() {
+            setLayout(new GridLayout(3, 1, 10, 10));
+            setBorder(new EmptyBorder(10, 10, 10, 10));
+
+            // --- 1. Issue Book Panel ---
+            JPanel issuePanel = new JPanel(new GridBagLayout());
+            issuePanel.setBorder(new TitledBorder("Issue New Book"));
+
+            GridBagConstraints gbc = new GridBagConstraints();
+            gbc.insets = new Insets(5, 5, 5, 5);
+            gbc.fill = GridBagConstraints.HORIZONTAL;
+
+            // Row 0: Select Book (type to search title, author, publisher or ID)
+            gbc.gridx = 0; gbc.gridy = 0;
+            issuePanel.add(new JLabel("Select Book:"), gbc);
+            gbc.gridx = 1; gbc.gridy = 0; gbc.weightx = 1.0;
+            bookField = new TypeaheadField<>(bookSearch, b -> true); // Books with no copies free can still be put on hold
+            issuePanel.add(bookField, gbc);
+
+            // Row 1: Select Member (type to search name, email or ID)
+            gbc.gridx = 0; gbc.gridy = 1; gbc.weightx = 0;
+            issuePanel.add(new JLabel("Select Member:"), gbc);
+            gbc.gridx = 1; gbc.gridy = 1; gbc.weightx = 1.0;
+            memberField = new TypeaheadField<>(memberSearch, m -> true);
+            issuePanel.add(memberField, gbc);
+
+            // Row 2: Copy barcode, to issue the copy the member brought to the desk rather than any copy
+            gbc.gridx = 0; gbc.gridy = 2; gbc.weightx = 0;
+            issuePanel.add(new JLabel("Copy Barcode (optional):"), gbc);
+            gbc.gridx = 1; gbc.gridy = 2; gbc.weightx = 1.0;
+            copyField.addActionListener(e -> handleIssueBook()); // Scanners end with Enter
+            issuePanel.add(copyField, gbc);
+
+            // Row 3: Issue Buttons
+            gbc.gridx = 1; gbc.gridy = 3; gbc.weightx = 0;
+            gbc.fill = GridBagConstraints.NONE; gbc.anchor = GridBagConstraints.CENTER;
+            JPanel issueButtons = new JPanel(new FlowLayout(FlowLayout.CENTER, 10, 0));
+            JButton issueButton = new JButton("Issue Book");
+            issueButton.addActionListener(e -> handleIssueBook());
+            issueButtons.add(issueButton);
+            JButton issueStackButton = new JButton("Issue Stack...");
+            issueStackButton.addActionListener(e -> handleIssueStack());
+            issueButtons.add(issueStackButton);
+            issuePanel.add(issueButtons, gbc);
+
+            add(issuePanel);
+
+            // --- 2. Return Book Panel (Active Issues) ---
+            JPanel returnPanel = new JPanel(new BorderLayout(10, 10));
+            returnPanel.setBorder(new TitledBorder("Return Book (View Active Issues)"));
+
+            issueTable = new JTable(issueTableModel);
+            issueTable.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION); // Several are returned as one batch
+            // Overdue loans are shown in red
+            issueTable.setDefaultRenderer(Object.class, new DefaultTableCellRenderer() {
+                @Override
+                public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected,
+                                                               boolean hasFocus, int row, int column) {
+                    Component cell = super.getTableCellRendererComponent(table, value, isSelected, hasFocus, row, column);
+                    IssueRecord record = issueTableModel.getRecordAt(table.convertRowIndexToModel(row));
+                    if (overdue.isOverdue(record)) {
+                        cell.setForeground(Color.RED);
+                    } else {
+                        cell.setForeground(isSelected ? table.getSelectionForeground() : table.getForeground());
+                    }
+                    return cell;
+                }
+            });
+            returnPanel.add(new JScrollPane(issueTable), BorderLayout.CENTER);
+
+            // Scanning a copy's barcode returns its loan without looking for it in the table
+            JPanel scanPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+            scanPanel.add(new JLabel("Scan Barcode:"));
+            returnCopyField.addActionListener(e -> handleReturnCopy());
+            scanPanel.add(returnCopyField);
+            JButton returnCopyButton = new JButton("Return Copy");
+            returnCopyButton.addActionListener(e -> handleReturnCopy());
+            scanPanel.add(returnCopyButton);
+            returnPanel.add(scanPanel, BorderLayout.NORTH);
+
+            JButton returnButton = new JButton("Return Selected Books");
+            returnButton.addActionListener(e -> handleReturnBook());
+            returnPanel.add(returnButton, BorderLayout.SOUTH);
+
+            add(returnPanel);
+
+            // --- 3. Holds Panel ---
+            JPanel holdsPanel = new JPanel(new BorderLayout(10, 10));
+            holdsPanel.setBorder(new TitledBorder("Holds"));
+            holdsTable = new JTable(holdsTableModel);
+            holdsTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+            holdsPanel.add(new JScrollPane(holdsTable), BorderLayout.CENTER);
+
+            JButton cancelHoldButton = new JButton("Cancel Selected Hold");
+            cancelHoldButton.addActionListener(e -> handleCancelHold());
+            holdsPanel.add(cancelHoldButton, BorderLayout.SOUTH);
+
+            add(holdsPanel);
+
+            // Fill everything once, then keep it up to date one change at a time
+            refreshPanelData();
+            events.subscribeOnEdt(BookIssued.class, this::onBookIssued);
+            events.subscribeOnEdt(BookReturned.class, this::onBookReturned);
+            events.subscribeOnEdt(LoansBatched.class, e -> issueTableModel.applyBatch(e.getIssued(), e.getReturned()));
+            events.subscribeOnEdt(BookChanged.class, this::onBookChanged);
+            events.subscribeOnEdt(MemberChanged.class, this::onMemberChanged);
+            events.subscribeOnEdt(LoanOverdue.class, e -> issueTableModel.changed(e.getRecord()));
+            events.subscribeOnEdt(HoldChanged.class, e -> holdsTableModel.changed(e.getHold()));
+        }
+
+        /**
+         * Rebuilds the outstanding issues and holds tables from scratch.
+         */
+        public void refreshPanelData() {
+            issueTableModel.setAll(issueRecords.openLoans());
+            holdsTableModel.setAll(holds.all());
+        }
+
+        // --- Incremental updates: each touches at most one table row ---
+
+        // Batched loans are drawn all at once when the LoansBatched event comes
+
+        private void onBookIssued(BookIssued event) {
+            if (!event.isBatched()) {
+                issueTableModel.add(event.getRecord());
+            }
+        }
+
+        private void onBookReturned(BookReturned event) {
+            if (!event.isBatched()) {
+                issueTableModel.remove(event.getRecord());
+            }
+        }
+
+        private void onBookChanged(BookChanged event) {
+            if (event.getType() == ChangeType.DELETED && bookField.getSelectedItem() == event.getBook()) {
+                bookField.clearSelection();
+            }
+            if (event.getType() == ChangeType.UPDATED) {
+                issueTableModel.namesChanged();
+                holdsTableModel.fireTableDataChanged();
+            }
+        }
+
+        private void onMemberChanged(MemberChanged event) {
+            if (event.getType() == ChangeType.DELETED && memberField.getSelectedItem() == event.getMember()) {
+                memberField.clearSelection();
+            }
+            if (event.getType() == ChangeType.UPDATED) {
+                issueTableModel.namesChanged();
+                holdsTableModel.fireTableDataChanged();
+            }
+        }
+
+        private void handleIssueBook() {
+            Book selectedBook = bookField.getSelectedItem();
+            Member selectedMember = memberField.getSelectedItem();
+            long barcode;
+            try {
+                barcode = parseBarcode(copyField.getText());
+            } catch (LibraryException e) {
+                JOptionPane.showMessageDialog(this, e.getMessage(), "Error", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+
+            // A scanned copy says which book it is
+            if (selectedMember != null && selectedBook == null && barcode != 0) {
+                try {
+                    service.issueCopy(barcode, selectedMember.getId());
+                    copyField.setText("");
+                    JOptionPane.showMessageDialog(this, "Book issued successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
+                } catch (LibraryException e) {
+                    JOptionPane.showMessageDialog(this, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                }
+                return;
+            }
+            if (selectedBook == null || selectedMember == null) {
+                JOptionPane.showMessageDialog(this, "Please select a member and either a book or a copy.", "Error", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+
+            // With no copy on the shelf or set aside for this member, offer a place in the queue instead
+            Hold hold = holds.find(selectedBook.getId(), selectedMember.getId());
+            if (selectedBook.getAvailableQuantity() <= 0 && (hold == null || hold.getStatus() != Hold.Status.READY)) {
+                offerHold(selectedBook, selectedMember, hold);
+                return;
+            }
+
+            // The service takes a copy and records the loan; this panel and the journal hear about it from there
+            try {
+                service.issue(selectedBook.getId(), selectedMember.getId(), barcode);
+                copyField.setText("");
+                JOptionPane.showMessageDialog(this, "Book issued successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
+            } catch (LibraryException e) {
+                JOptionPane.showMessageDialog(this, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+
+        /**
+         * Issues a stack of books to the selected member in one go: all of them, or none if any
+         * can't be issued, in which case every problem is listed.
+         */
+        private void handleIssueStack() {
+            Member selectedMember = memberField.getSelectedItem();
+            if (selectedMember == null) {
+                JOptionPane.showMessageDialog(this, "Please select a member first.", "Error", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+            JTextArea stack = new JTextArea(12, 30);
+            Object[] message = {"Book IDs or copy barcodes to issue to " + selectedMember.getName() + ", one per line:",
+                    new JScrollPane(stack)};
+            if (JOptionPane.showConfirmDialog(this, message, "Issue Stack", JOptionPane.OK_CANCEL_OPTION,
+                    JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+                return;
+            }
+            List<LibraryService.Checkout> checkouts = new ArrayList<>();
+            for (String token : stack.getText().split("[\\s,]+")) {
+                if (!token.isEmpty()) {
+                    checkouts.add(LibraryService.Checkout.parse(token, selectedMember.getId()));
+                }
+            }
+            try {
+                LibraryService.BatchResult result = service.issueAll(checkouts);
+                if (result.isApplied()) {
+                    JOptionPane.showMessageDialog(this, result.getRecords().size() + " books issued to " + selectedMember.getName() + ".",
+                            "Success", JOptionPane.INFORMATION_MESSAGE);
+                } else {
+                    JOptionPane.showMessageDialog(this, "Nothing was issued:\n" + result.describeErrors(), "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            } catch (LibraryException e) {
+                JOptionPane.showMessageDialog(this, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+
+        private void offerHold(Book book, Member member, Hold existing) {
+            if (existing != null) {
+                JOptionPane.showMessageDialog(this, member.getName() + " is already number " + holds.position(existing)
+                        + " in the queue for this book.", "On Hold", JOptionPane.INFORMATION_MESSAGE);
+                return;
+            }
+            int waiting = holds.waitingCount(book.getId());
+            int choice = JOptionPane.showConfirmDialog(this, "No copies of \"" + book.getTitle() + "\" are available"
+                            + (waiting > 0 ? " and " + waiting + " member(s) are waiting" : "") + ".\nPlace a hold for " + member.getName() + "?",
+                    "No Copies Available", JOptionPane.YES_NO_OPTION);
+            if (choice != JOptionPane.YES_OPTION) {
+                return;
+            }
+            try {
+                Hold hold = service.placeHold(book.getId(), member.getId());
+                String message = hold.getStatus() == Hold.Status.READY
+                        ? "A copy has just come free and is set aside for " + member.getName() + "."
+                        : "Hold placed. " + member.getName() + " is number " + holds.position(hold) + " in the queue.";
+                JOptionPane.showMessageDialog(this, message, "Hold Placed", JOptionPane.INFORMATION_MESSAGE);
+            } catch (LibraryException e) {
+                JOptionPane.showMessageDialog(this, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+
+        private void handleCancelHold() {
+            int selectedRow = holdsTable.getSelectedRow();
+            if (selectedRow == -1) {
+                JOptionPane.showMessageDialog(this, "Please select a hold to cancel.", "No Selection", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+            try {
+                service.cancelHold(holdsTableModel.getHoldAt(selectedRow).getHoldId());
+            } catch (LibraryException e) {
+                JOptionPane.showMessageDialog(this, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+
+        private void handleReturnCopy() {
+            try {
+                long barcode = parseBarcode(returnCopyField.getText());
+                if (barcode == 0) {
+                    JOptionPane.showMessageDialog(this, "Please scan or type a copy's barcode.", "No Barcode", JOptionPane.WARNING_MESSAGE);
+                    return;
+                }
+                showReturned(service.returnCopy(barcode));
+                returnCopyField.setText("");
+            } catch (LibraryException e) {
+                JOptionPane.showMessageDialog(this, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+
+        /**
+         * Reads a barcode typed or scanned into a field; 0 if the field is empty.
+         */
+        private static long parseBarcode(String text) throws LibraryException {
+            if (text.isBlank()) {
+                return 0;
+            }
+            try {
+                return Long.parseLong(text.trim());
+            } catch (NumberFormatException e) {
+                throw new LibraryException("A barcode must be a number, not \"" + text.trim() + "\".");
+            }
+        }
+
+        private void handleReturnBook() {
+            int[] selectedRows = issueTable.getSelectedRows();
+            if (selectedRows.length == 0) {
+                JOptionPane.showMessageDialog(this, "Please select an issued book to return.", "No Selection", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+
+            // Fails if a loan was already returned, e.g. from another thread
+            try {
+                if (selectedRows.length == 1) {
+                    showReturned(service.returnLoan(issueTableModel.getRecordAt(selectedRows[0]).getIssueId()));
+                    return;
+                }
+                List<Long> issueIds = new ArrayList<>(selectedRows.length);
+                for (int row : selectedRows) {
+                    issueIds.add(issueTableModel.getRecordAt(row).getIssueId());
+                }
+                LibraryService.BatchResult result = service.returnAll(issueIds);
+                if (!result.isApplied()) {
+                    JOptionPane.showMessageDialog(this, "Nothing was returned:\n" + result.describeErrors(), "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                long fine = 0;
+                for (IssueRecord record : result.getRecords()) {
+                    fine += fines.fine(record, record.getReturnDate().getTime());
+                }
+                JOptionPane.showMessageDialog(this, result.getRecords().size() + " books returned successfully!"
+                                + (fine > 0 ? "\nLate fines: " + FineEngine.format(fine) : ""),
+                        "Success", JOptionPane.INFORMATION_MESSAGE);
+            } catch (LibraryException e) {
+                JOptionPane.showMessageDialog(this, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+
+        private void showReturned(IssueRecord record) {
+            long fine = fines.fine(record, record.getReturnDate().getTime());
+            JOptionPane.showMessageDialog(this, "Book returned successfully!"
+                            + (fine > 0 ? "\nLate fine: " + FineEngine.format(fine) : ""),
+                    "Success", JOptionPane.INFORMATION_MESSAGE);
+        }
+    }
+
+    // =================================================================================
+    // --- GUI Dialogs (Static Inner Classes) ---
+    // =================================================================================
+
+    /**
+     * A modal dialog for adding a new book or updating an existing one.
+     */
+    static class AddBookDialog extends JDialog {
+        private final JTextField idField, titleField, authorField, publisherField, quantityField;
+        private boolean bookAdded = false;
+        private final Book bookToUpdate; // Null if adding new, non-null if updating
+
+        // Constructor for Adding a new book
+        public AddBookDialog() {
+            this(null); // Call the update constructor with null
+        }
+
+        // Constructor for Updating an existing book
+        public AddBookDialog(Book book) {
+            this.bookToUpdate = book;
+
+            setTitle(book == null ? "Add New Book" : "Update Book");
+            setSize(450, 300);
+            setLocationRelativeTo(null); // Center
+            setModal(true); // Block other windows
+
+            setLayout(new BorderLayout(10, 10));
+
+            // Form Panel
+            JPanel formPanel = new JPanel(new GridBagLayout());
+            formPanel.setBorder(new EmptyBorder(10, 10, 10, 10));
+            GridBagConstraints gbc = new GridBagConstraints();
+            gbc.insets = new Insets(5, 5, 5, 5);
+            gbc.fill = GridBagConstraints.HORIZONTAL;
+
+            // ID
+            gbc.gridx = 0; gbc.gridy = 0;
+            formPanel.add(new JLabel("Book ID (e.g., B-101):"), gbc);
+            gbc.gridx = 1; gbc.gridy = 0; gbc.weightx = 1.0;
+            idField = new JTextField(20);
+            formPanel.add(idField, gbc);
+
+            // Title
+            gbc.gridx = 0; gbc.gridy = 1; gbc.weightx = 0;
+            formPanel.add(new JLabel("Title:"), gbc);
+            gbc.gridx = 1; gbc.gridy = 1;
+            titleField = new JTextField(20);
+            formPanel.add(titleField, gbc);
+
+            // Author
+            gbc.gridx = 0; gbc.gridy = 2;
+            formPanel.add(new JLabel("Author:"), gbc);
+            gbc.gridx = 1; gbc.gridy = 2;
+            authorField = new JTextField(20);
+            formPanel.add(authorField, gbc);
+
+            // Publisher
+            gbc.gridx = 0; gbc.gridy = 3;
+            formPanel.add(new JLabel("Publisher:"), gbc);
+            gbc.gridx = 1; gbc.gridy = 3;
+            publisherField = new JTextField(20);
+            formPanel.add(publisherField, gbc);
+
+            // Quantity
+            gbc.gridx = 0; gbc.gridy = 4;
+            formPanel.add(new JLabel("Quantity:"), gbc);
+            gbc.gridx = 1; gbc.gridy = 4;
+            quantityField = new JTextField(20);
+            formPanel.add(quantityField, gbc);
+
+            add(formPanel, BorderLayout.CENTER);
+
+            // --- Pre-fill data if updating ---
+            if (bookToUpdate != null) {
+                idField.setText(bookToUpdate.getId());
+                idField.setEditable(false); // Can't change ID
+                titleField.setText(bookToUpdate.getTitle());
+                authorField.setText(bookToUpdate.getAuthor());
+                publisherField.setText(bookToUpdate.getPublisher());
+                quantityField.setText(String.valueOf(bookToUpdate.getQuantity()));
+            }
+
+            // Button Panel
+            JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+            JButton saveButton = new JButton("Save");
+            saveButton.addActionListener(e -> saveBook());
+            buttonPanel.add(saveButton);
+
+            JButton cancelButton = new JButton("Cancel");
+            cancelButton.addActionListener(e -> dispose());
+            buttonPanel.add(cancelButton);
+
+            add(buttonPanel, BorderLayout.SOUTH);
+        }
+
+        private void saveBook() {
+            // --- 1. Get Data ---
+            String id = idField.getText().trim();
+            String title = titleField.getText().trim();
+            String author = authorField.getText().trim();
+            String publisher = publisherField.getText().trim();
+            String quantityStr = quantityField.getText().trim();
+
+            // --- 2. Validate Data ---
+            BookDetails details;
+            try {
+                details = validate(id, title, author, publisher, quantityStr);
+            } catch (LibraryException e) {
+                JOptionPane.showMessageDialog(this, e.getMessage(), "Validation Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+
+            // --- 3. Save Data (Add vs Update) ---
+            try {
+                if (bookToUpdate == null) {
+                    // --- ADD NEW BOOK --- (refused if the ID is taken)
+                    service.addBook(details.toBook());
+                } else {
+                    // --- UPDATE EXISTING BOOK --- (refused if quantity is less than currently issued)
+                    service.updateBook(bookToUpdate, title, author, publisher, details.getQuantity());
+                }
+            } catch (LibraryException e) {
+                JOptionPane.showMessageDialog(this, e.getMessage(), "Validation Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+
+            bookAdded = true;
+            JOptionPane.showMessageDialog(this, "Book saved successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
+            dispose(); // Close the dialog
+        }
+
+        /**
+         * Checks a book's (trimmed) fields the way this dialog does and returns them, ready to make
+         * the book from. The bulk importer uses it too, so imported rows pass exactly the same checks.
+         */
+        static BookDetails validate(String id, String title, String author, String publisher, String quantityText) throws LibraryException {
+            if (id.isEmpty() || title.isEmpty() || author.isEmpty() || quantityText.isEmpty()) {
+                throw new LibraryException("All fields are required.");
+            }
+            LibraryService.checkIdLength("Book", id);
+            int quantity;
+            try {
+                quantity = Integer.parseInt(quantityText);
+                if (quantity < 0) throw new NumberFormatException();
+            } catch (NumberFormatException e) {
+                throw new LibraryException("Quantity must be a valid positive number.");
+            }
+            return new BookDetails(id, title, author, publisher, quantity);
+        }
+
+        /**
+         * Returns true once the book has been saved. Tables update themselves, so this is informational.
+         */
+        public boolean isBookAdded() {
+            return bookAdded;
+        }
+    }
+
+    /**
+     * A modal dialog for adding a new member or updating an existing one.
+     */
+    static class AddMemberDialog extends JDialog {
+        private final JTextField idField, nameField, emailField, contactField;
+        private boolean memberAdded = false;
+        private final Member memberToUpdate; // Null if adding new
+
+        // Constructor for Adding
+        public AddMemberDialog() {
+            this(null);
+        }
+
+        // Constructor for Updating
+        public AddMemberDialog(Member member) {
+            this.memberToUpdate = member;
+
+            setTitle(member == null ? "Add New Member" : "Update Member");
+            setSize(450, 250);
+            setLocationRelativeTo(null);
+            setModal(true);
+
+            setLayout(new BorderLayout(10, 10));
+
+            // Form Panel
+            JPanel formPanel = new JPanel(new GridBagLayout());
+            formPanel.setBorder(new EmptyBorder(10, 10, 10, 10));
+            GridBagConstraints gbc = new GridBagConstraints();
+            gbc.insets = new Insets(5, 5, 5, 5);
+            gbc.fill = GridBagConstraints.HORIZONTAL;
+
+            // ID
+            gbc.gridx = 0; gbc.gridy = 0;
+            formPanel.add(new JLabel("Member ID (e.g., M-101):"), gbc);
+            gbc.gridx = 1; gbc.gridy = 0; gbc.weightx = 1.0;
+            idField = new JTextField(20);
+            formPanel.add(idField, gbc);
+
+            // Name
+            gbc.gridx = 0; gbc.gridy = 1; gbc.weightx = 0;
+            formPanel.add(new JLabel("Name:"), gbc);
+            gbc.gridx = 1; gbc.gridy = 1;
+            nameField = new JTextField(20);
+            formPanel.add(nameField, gbc);
+
+            // Email
+            gbc.gridx = 0; gbc.gridy = 2;
+            formPanel.add(new JLabel("Email:"), gbc);
+            gbc.gridx = 1; gbc.gridy = 2;
+            emailField = new JTextField(20);
+            formPanel.add(emailField, gbc);
+
+            // Contact
+            gbc.gridx = 0; gbc.gridy = 3;
+            formPanel.add(new JLabel("Contact No.:"), gbc);
+            gbc.gridx = 1; gbc.gridy = 3;
+            contactField = new JTextField(20);
+            formPanel.add(contactField, gbc);
+
+            add(formPanel, BorderLayout.CENTER);
+
+            // Pre-fill data if updating
+            if (memberToUpdate != null) {
+                idField.setText(memberToUpdate.getId());
+                idField.setEditable(false);
+                nameField.setText(memberToUpdate.getName());
+                emailField.setText(memberToUpdate.getEmail());
+                contactField.setText(memberToUpdate.getContact());
+            }
+
+            // Button Panel
+            JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+            JButton saveButton = new JButton("Save");
+            saveButton.addActionListener(e -> saveMember());
+            buttonPanel.add(saveButton);
+
+            JButton cancelButton = new JButton("Cancel");
+            cancelButton.addActionListener(e -> dispose());
+            buttonPanel.add(cancelButton);
+
+            add(buttonPanel, BorderLayout.SOUTH);
+        }
+
+        private void saveMember() {
+            String id = idField.getText().trim();
+            String name = nameField.getText().trim();
+            String email = emailField.getText().trim();
+            String contact = contactField.getText().trim();
+
+            if (id.isEmpty() || name.isEmpty() || email.isEmpty() || contact.isEmpty()) {
+                JOptionPane.showMessageDialog(this, "All fields are required.", "Validation Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+
+            // TODO: Add email validation
+
+            if (memberToUpdate == null) {
+                // --- ADD NEW ---
+                try {
+                    service.addMember(new Member(id, name, email, contact));
+                } catch (LibraryException e) {
+                    JOptionPane.showMessageDialog(this, e.getMessage(), "Validation Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+
+            } else {
+                // --- UPDATE ---
+                service.updateMember(memberToUpdate, name, email, contact);
+            }
+
+            memberAdded = true;
+            JOptionPane.showMessageDialog(this, "Member saved successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
+            dispose();
+        }
+
+        public boolean isMemberAdded() {
+            return memberAdded;
+        }
+    }
+
+
+    // =================================================================================
+    // --- Bulk Catalog Import ---
+    // =================================================================================
+
+    /**
+     * Loads a large catalog file into the library. The file is read in blocks cut at record boundaries,
+     * and the blocks are parsed and validated on every core at once, while the calling thread commits
+     * the results in file order through {@link LibraryService#addBooks}, a batch at a time. Rows are
+     * checked exactly as {@link AddBookDialog} checks them; rows that fail, including IDs already in the
+     * catalog or earlier in the file, are listed in the report instead of being added.
+     *
+     * Two formats are understood, chosen by file extension:
+     * <ul>
+     * <li>CSV (the default): {@code id,title,author,publisher,quantity} with RFC 4180 quoting. An optional
+     *     header row naming those columns lets them come in any order.</li>
+     * <li>MARC-lite ({@code .mrk}, {@code .marc}): one {@code TAG value} field per line and a blank line
+     *     between records. Tags 001 = ID, 245 = title, 100 = author, 260 = publisher, 949 = copies;
+     *     any other tag is ignored.</li>
+     * </ul>
+     */
+    static final class CatalogImporter {
+        enum Format { CSV, MARC_LITE }
+
+        private static final int BLOCK_SIZE = 1 << 20; // Bytes handed to one parse task
+        private static final int BATCH_SIZE = 2048;    // Books added per trip through the service
+        private static final String[] COLUMNS = {"id", "title", "author", "publisher", "quantity"};
+
+        /**
+         * A row that was not imported, and why.
+         */
+        static final class Rejection {
+            private final long line;
+            private final String id;
+            private final String reason;
+
+            Rejection(long line, String id, String reason) {
+                this.line = line;
+                this.id = id;
+                this.reason = reason;
+            }
+
+            public long getLine() { return line; }
+            public String getId() { return id; }
+            public String getReason() { return reason; }
+
+            @Override
+            public String toString() {
+                return "Line " + line + (id.isEmpty() ? "" : " (" + id + ")") + ": " + reason;
+            }
+        }
+
+        /**
+         * The outcome of an import: how many books were added, which rows were rejected, and how long it took.
+         */
+        static final class Report {
+            private final long imported;
+            private final List<Rejection> rejected;
+            private final long elapsedNanos;
+
+            Report(long imported, List<Rejection> rejected, long elapsedNanos) {
+                this.imported = imported;
+                this.rejected = rejected;
+                this.elapsedNanos = elapsedNanos;
+            }
+
+            public long getImported() { return imported; }
+            public List<Rejection> getRejected() { return rejected; }
+            public long getElapsedMillis() { return elapsedNanos / 1_000_000; }
+
+            public long getRowsPerSecond() {
+                return (imported + rejected.size()) * 1_000_000_000L / Math.max(1, elapsedNanos);
+            }
+
+            public String summary() {
+                return String.format("Imported %,d books and rejected %,d rows in %.1f s (%,d rows/s).",
+                        imported, rejected.size(), elapsedNanos / 1e9, getRowsPerSecond());
+            }
+        }
+
+        /**
+         * The rows of one block: the valid books with the line each started on, and the rejected rows.
+         */
+        private static final class ParsedBlock {
+            final ArrayList<BookDetails> books = new ArrayList<>();
+            long[] lines = new long[64];
+            final ArrayList<Rejection> rejected = new ArrayList<>();
+
+            void add(BookDetails book, long line) {
+                if (books.size() == lines.length) {
+                    lines = Arrays.copyOf(lines, lines.length * 2);
+                }
+                lines[books.size()] = line;
+                books.add(book);
+            }
+        }
+
+        private final Format format;
+        private int[] columns = {0, 1, 2, 3, 4}; // Field position of each of COLUMNS; set from the header if there is one
+
+        // Used only by the committing thread
+        private final ArrayList<BookDetails> batch = new ArrayList<>(BATCH_SIZE);
+        private final long[] batchLines = new long[BATCH_SIZE];
+        private final ArrayList<Rejection> rejected = new ArrayList<>();
+        private long imported;
+
+        private CatalogImporter(Format format) {
+            this.format = format;
+        }
+
+        /**
+         * Imports a file, picking the format from its extension.
+         */
+        public static Report importFile(Path file) throws IOException {
+            return importFile(file, formatOf(file));
+        }
+
+        static Format formatOf(Path file) {
+            String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+            return name.endsWith(".mrk") || name.endsWith(".marc") ? Format.MARC_LITE : Format.CSV;
+        }
+
+        public static Report importFile(Path file, Format format) throws IOException {
+            long start = System.nanoTime();
+            CatalogImporter importer = new CatalogImporter(format);
+            int threads = Runtime.getRuntime().availableProcessors();
+            ExecutorService parsers = Executors.newFixedThreadPool(threads);
+            ArrayDeque<Future<ParsedBlock>> inFlight = new ArrayDeque<>(); // In file order
+            try (InputStream in = Files.newInputStream(file)) {
+                byte[] buffer = new byte[BLOCK_SIZE];
+                int filled = 0;
+                long line = 1;
+                boolean first = true;
+                while (true) {
+                    filled += in.readNBytes(buffer, filled, buffer.length - filled);
+                    boolean atEnd = filled < buffer.length; // readNBytes only comes up short at the end of the file
+                    if (first) {
+                        first = false;
+                        int header = importer.readHeader(buffer, filled);
+                        line += countLines(buffer, 0, header);
+                        System.arraycopy(buffer, header, buffer, 0, filled - header);
+                        filled -= header;
+                    }
+                    int cut = atEnd ? filled : importer.lastBoundary(buffer, filled);
+                    if (cut == 0 && !atEnd) {
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2); // A single record fills the buffer
+                        continue;
+                    }
+                    if (cut > 0) {
+                        byte[] block = Arrays.copyOf(buffer, cut);
+                        long blockLine = line;
+                        line += countLines(buffer, 0, cut);
+                        inFlight.add(parsers.submit(() -> importer.parse(block, blockLine)));
+                        System.arraycopy(buffer, cut, buffer, 0, filled - cut);
+                        filled -= cut;
+                    }
+                    // Keep every parser busy without reading far ahead of the commits
+                    while (inFlight.size() > threads * 2 || (atEnd && !inFlight.isEmpty())) {
+                        importer.commit(take(inFlight.poll()));
+                    }
+                    if (atEnd) {
+                        break;
+                    }
+                }
+                importer.flush();
+            } finally {
+                parsers.shutdownNow();
+            }
+            importer.rejected.sort(Comparator.comparingLong(Rejection::getLine));
+            return new Report(importer.imported, importer.rejected, System.nanoTime() - start);
+        }
+
+        private static ParsedBlock take(Future<ParsedBlock> parsed) throws IOException {
+            try {
+                return parsed.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Catalog import was interrupted");
+            } catch (ExecutionException e) {
+                throw new IOException("Could not parse the catalog file: " + e.getCause(), e.getCause());
+            }
+        }
+
+        // --- Splitting ---
+
+        /**
+         * Reads the CSV header row at the start of the file, if there is one, and returns its length in bytes.
+         */
+        private int readHeader(byte[] data, int length) {
+            if (format != Format.CSV) {
+                return 0;
+            }
+            int end = 0;
+            while (end < length && data[end] != '\n') {
+                end++;
+            }
+            if (end == length) {
+                return 0;
+            }
+            ArrayList<String> names = new ArrayList<>();
+            parseCsvRecord(new String(data, 0, end, StandardCharsets.UTF_8), 0, names);
+            int[] found = new int[COLUMNS.length];
+            for (int c = 0; c < COLUMNS.length; c++) {
+                found[c] = -1;
+                for (int i = 0; i < names.size(); i++) {
+                    if (names.get(i).trim().equalsIgnoreCase(COLUMNS[c])) {
+                        found[c] = i;
+                    }
+                }
+            }
+            if (found[0] == -1 || found[1] == -1) {
+                return 0; // No "id" and "title" columns, so the first row is data
+            }
+            columns = found;
+            return end + 1;
+        }
+
+        /**
+         * Returns the end of the last complete record in the data, or 0 if there is none.
+         */
+        private int lastBoundary(byte[] data, int length) {
+            int boundary = 0;
+            switch (format) {
+                case CSV:
+                    // A newline ends a record unless it is inside quotes; an escaped "" toggles twice
+                    boolean quoted = false;
+                    for (int i = 0; i < length; i++) {
+                        if (data[i] == '"') {
+                            quoted = !quoted;
+                        } else if (data[i] == '\n' && !quoted) {
+                            boundary = i + 1;
+                        }
+                    }
+                    break;
+                case MARC_LITE:
+                    // Records end at a blank line
+                    for (int i = length - 1; i > 0; i--) {
+                        if (data[i] == '\n' && (data[i - 1] == '\n' || (i > 1 && data[i - 1] == '\r' && data[i - 2] == '\n'))) {
+                            boundary = i + 1;
+                            break;
+                        }
+                    }
+                    break;
+            }
+            return boundary;
+        }
+
+        private static long countLines(byte[] data, int from, int to) {
+            long lines = 0;
+            for (int i = from; i < to; i++) {
+                if (data[i] == '\n') {
+                    lines++;
+                }
+            }
+            return lines;
+        }
+
+        // --- Parsing (on the parser threads) ---
+
+        private ParsedBlock parse(byte[] block, long firstLine) {
+            String text = new String(block, StandardCharsets.UTF_8);
+            ParsedBlock parsed = new ParsedBlock();
+            switch (format) {
+                case CSV:
+                    parseCsv(text, firstLine, parsed);
+                    break;
+                case MARC_LITE:
+                    parseMarc(text, firstLine, parsed);
+                    break;
+            }
+            return parsed;
+        }
+
+        private void parseCsv(String text, long firstLine, ParsedBlock parsed) {
+            ArrayList<String> fields = new ArrayList<>();
+            long line = firstLine;
+            int position = 0;
+            while (position < text.length()) {
+                fields.clear();
+                int end = parseCsvRecord(text, position, fields);
+                long recordLine = line;
+                for (int i = position; i < end; i++) {
+                    if (text.charAt(i) == '\n') {
+                        line++;
+                    }
+                }
+                position = end;
+                if (fields.size() == 1 && fields.get(0).isBlank()) {
+                    continue; // Blank line
+                }
+                addRow(parsed, recordLine, field(fields, 0), field(fields, 1), field(fields, 2), field(fields, 3), field(fields, 4));
+            }
+        }
+
+        /**
+         * Parses the record starting at {@code position} into {@code fields} and returns where the next one starts.
+         */
+        private static int parseCsvRecord(String text, int position, List<String> fields) {
+            StringBuilder field = new StringBuilder();
+            int length = text.length();
+            while (true) {
+                field.setLength(0);
+                if (position < length && text.charAt(position) == '"') {
+                    position++;
+                    while (position < length) {
+                        char c = text.charAt(position++);
+                        if (c != '"') {
+                            field.append(c);
+                        } else if (position < length && text.charAt(position) == '"') {
+                            field.append('"');
+                            position++;
+                        } else {
+                            break;
+                        }
+                    }
+                }
+                while (position < length && text.charAt(position) != ',' && text.charAt(position) != '\n') {
+                    char c = text.charAt(position++);
+                    if (c != '\r') {
+                        field.append(c);
+                    }
+                }
+                fields.add(field.toString());
+                if (position >= length) {
+                    return length;
+                }
+                if (text.charAt(position++) == '\n') {
+                    return position;
+                }
+            }
+        }
+
+        private String field(List<String> fields, int column) {
+            int index = columns[column];
+            return index >= 0 && index < fields.size() ? fields.get(index) : "";
+        }
+
+        private void parseMarc(String text, long firstLine, ParsedBlock parsed) {
+            String[] values = {"", "", "", "", ""}; // In COLUMNS order
+            long line = firstLine;
+            long recordLine = -1;
+            int position = 0;
+            while (position < text.length()) {
+                int end = text.indexOf('\n', position);
+                if (end < 0) {
+                    end = text.length();
+                }
+                String row = text.substring(position, end).strip();
+                if (row.isEmpty()) {
+                    if (recordLine != -1) {
+                        addRow(parsed, recordLine, values[0], values[1], values[2], values[3], values[4]);
+                        Arrays.fill(values, "");
+                        recordLine = -1;
+                    }
+                } else {
+                    if (recordLine == -1) {
+                        recordLine = line;
+                    }
+                    int column = marcColumn(row.substring(0, Math.min(3, row.length())));
+                    if (column != -1) {
+                        values[column] = row.substring(Math.min(3, row.length()));
+                    }
+                }
+                line++;
+                position = end + 1;
+            }
+            if (recordLine != -1) {
+                addRow(parsed, recordLine, values[0], values[1], values[2], values[3], values[4]);
+            }
+        }
+
+        private static int marcColumn(String tag) {
+            switch (tag) {
+                case "001": return 0;
+                case "245": return 1;
+                case "100": return 2;
+                case "260": return 3;
+                case "949": return 4;
+                default: return -1;
+            }
+        }
+
+        private static void addRow(ParsedBlock parsed, long line, String id, String title, String author, String publisher, String quantity) {
+            try {
+                parsed.add(AddBookDialog.validate(id.trim(), title.trim(), author.trim(), publisher.trim(), quantity.trim()), line);
+            } catch (LibraryException e) {
+                parsed.rejected.add(new Rejection(line, id.trim(), e.getMessage()));
+            }
+        }
+
+        // --- Committing (on the importing thread, in file order) ---
+
+        private void commit(ParsedBlock parsed) {
+            rejected.addAll(parsed.rejected);
+            for (int i = 0; i < parsed.books.size(); i++) {
+                batchLines[batch.size()] = parsed.lines[i];
+                batch.add(parsed.books.get(i));
+                if (batch.size() == BATCH_SIZE) {
+                    flush();
+                }
+            }
+        }
+
+        private void flush() {
+            if (batch.isEmpty()) {
+                return;
+            }
+            // Earlier rows are committed first, so a repeated ID is refused here against the ID index
+            BitSet refused = service.addBooks(batch);
+            imported += batch.size() - refused.cardinality();
+            for (int i = refused.nextSetBit(0); i >= 0; i = refused.nextSetBit(i + 1)) {
+                rejected.add(new Rejection(batchLines[i], batch.get(i).getId(), "Book ID already exists."));
+            }
+            batch.clear();
+        }
+    }
+
+    // =================================================================================
+    // --- Data Export ---
+    // =================================================================================
+
+    /**
+     * Writes the catalog, the member register, the loan history or the late fines accrued out for reporting, as CSV or JSON
+     * Lines chosen by file name ({@code .csv} or {@code .jsonl}, plus {@code .gz} to gzip). Rows are
+     * written through a buffered file channel as they are produced. Loan history is read straight from
+     * the memory-mapped archive, and loans outside the requested date range are skipped without being
+     * decoded, so memory use stays flat however long the history is.
+     */
+    static final class DataExporter {
+        enum Dataset { BOOKS, MEMBERS, LOANS, FINES }
+
+        private static final int BUFFER_SIZE = 1 << 16;
+
+        private DataExporter() {}
+
+        /**
+         * Exports everything in the dataset; for loans, only those issued in [fromMillis, toMillis).
+         * Returns the number of rows written.
+         */
+        public static long export(Dataset dataset, Path file, long fromMillis, long toMillis) throws IOException {
+            String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+            boolean gzip = name.endsWith(".gz");
+            if (gzip) {
+                name = name.substring(0, name.length() - 3);
+            }
+            boolean json;
+            if (name.endsWith(".jsonl")) {
+                json = true;
+            } else if (name.endsWith(".csv")) {
+                json = false;
+            } else {
+                throw new IllegalArgumentException("Export file name must end in .csv or .jsonl, optionally followed by .gz");
+            }
+
+            long rows = 0;
+            try (Writer out = open(file, gzip)) {
+                switch (dataset) {
+                    case BOOKS:
+                        if (!json) out.write("id,title,author,publisher,quantity,issued\n");
+                        for (Book book : books) {
+                            out.write(json ? Json.book(book) : csv(book.getId(), book.getTitle(), book.getAuthor(),
+                                    book.getPublisher(), String.valueOf(book.getQuantity()), String.valueOf(book.getIssued())));
+                            out.write('\n');
+                            rows++;
+                        }
+                        break;
+                    case MEMBERS:
+                        if (!json) out.write("id,name,email,contact\n");
+                        for (Member member : members) {
+                            out.write(json ? Json.member(member) : csv(member.getId(), member.getName(), member.getEmail(), member.getContact()));
+                            out.write('\n');
+                            rows++;
+                        }
+                        break;
+                    case LOANS:
+                        if (!json) out.write("issueId,bookId,memberId,issueDate,dueDate,returnDate,barcode\n");
+                        Iterator<IssueRecord> loans = issueRecords.streamIssuedBetween(fromMillis, toMillis).iterator();
+                        while (loans.hasNext()) {
+                            IssueRecord record = loans.next();
+                            out.write(json ? Json.loan(record) : csv(Long.toString(record.getIssueId()), record.getBookId(), record.getMemberId(),
+                                    record.getIssueDate().toInstant().toString(), record.getDueDate().toInstant().toString(),
+                                    record.isReturned() ? record.getReturnDate().toInstant().toString() : "",
+                                    record.getBarcode() != 0 ? Long.toString(record.getBarcode()) : ""));
+                            out.write('\n');
+                            rows++;
+                        }
+                        break;
+                    case FINES:
+                        // Everyone with fines accrued by the end of the range (or now), in member ID order
+                        if (!json) out.write("memberId,name,finesAccrued\n");
+                        TreeMap<String, Long> accrued = new TreeMap<>(fines.accruedByMember(Math.min(toMillis, System.currentTimeMillis())));
+                        for (Map.Entry<String, Long> entry : accrued.entrySet()) {
+                            Member member = members.get(entry.getKey());
+                            String memberId = member != null ? member.getId() : entry.getKey();
+                            String amount = FineEngine.format(entry.getValue());
+                            out.write(json ? Json.fines(memberId, entry.getValue())
+                                    : csv(memberId, member != null ? member.getName() : "", amount));
+                            out.write('\n');
+                            rows++;
+                        }
+                        break;
+                }
+            }
+            return rows;
+        }
+
+        private static Writer open(Path file, boolean gzip) throws IOException {
+            WritableByteChannel channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            if (gzip) {
+                channel = Channels.newChannel(new GZIPOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+            }
+            return new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8), BUFFER_SIZE);
+        }
+
+        /**
+         * Joins fields into one CSV row, quoting any field that holds a comma, quote or line break.
+         */
+        static String csv(String... fields) {
+            StringBuilder row = new StringBuilder();
+            for (int i = 0; i < fields.length; i++) {
+                if (i > 0) {
+                    row.append(',');
+                }
+                String field = fields[i] == null ? "" : fields[i];
+                if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0 && field.indexOf('\r') < 0) {
+                    row.append(field);
+                } else {
+                    row.append('"').append(field.replace("\"", "\"\"")).append('"');
+                }
+            }
+            return row.toString();
+        }
+    }
+
+    // =================================================================================
+    // --- Circulation Reports ---
+    // =================================================================================
+
+    /**
+     * Monthly circulation reports: loans per author, publisher and member, average loan length, and
+     * turnover per title (loans per copy), over one month or a run of months.
+     * <p>
+     * Each month is tallied by book and member ID in one parallel pass over the history (see
+     * {@link IssueRepository#fold}). A loan counts toward the month it was issued in and its length
+     * toward the month it came back in, so once a month is over nothing can change its tally and it is
+     * kept; running a report again only passes over the history for months not yet kept, which is
+     * usually just the current one. Books are joined in as the report is put together, so authors,
+     * publishers and copy counts are as they are now.
+     */
+    static final class CirculationReports {
+        static final String DELETED = "(deleted)"; // Author and publisher of books no longer in the catalog
+        private static final int MAX_MONTHS = 1200;
+
+        private final BookRepository books;
+        private final MemberRepository members;
+        private final IssueRepository loans;
+        // Tallies of months that are over, and the archive size when they were made
+        private final ConcurrentHashMap<YearMonth, MonthTally> closedMonths = new ConcurrentHashMap<>();
+        private volatile long talliedArchiveSize;
+
+        CirculationReports(BookRepository books, MemberRepository members, IssueRepository loans) {
+            this.books = books;
+            this.members = members;
+            this.loans = loans;
+        }
+
+        /**
+         * Loans issued and returned in one month, by normalized book and member ID. Not thread-safe.
+         */
+        private static final class MonthTally {
+            final HashMap<String, Long> loansByBook = new HashMap<>();
+            final HashMap<String, Long> loansByMember = new HashMap<>();
+            long issued;
+            long returned;
+            long loanMillis; // Total length of the loans returned
+
+            void issued(String bookId, String memberId) {
+                issued++;
+                loansByBook.merge(Repository.normalize(bookId), 1L, Long::sum);
+                loansByMember.merge(Repository.normalize(memberId), 1L, Long::sum);
+            }
+
+            void returned(long lengthMillis) {
+                returned++;
+                loanMillis += lengthMillis;
+            }
+
+            void addAll(MonthTally other) {
+                IssueRepository.mergeTotals(loansByBook, other.loansByBook);
+                IssueRepository.mergeTotals(loansByMember, other.loansByMember);
+                issued += other.issued;
+                returned += other.returned;
+                loanMillis += other.loanMillis;
+            }
+        }
+
+        /**
+         * The report for the months from {@code from} to {@code to}, both inclusive (local time).
+         */
+        public Report report(YearMonth from, YearMonth to) {
+            if (to.isBefore(from)) {
+                throw new IllegalArgumentException("The report ends (" + to + ") before it starts (" + from + ")");
+            }
+            if (from.until(to, ChronoUnit.MONTHS) >= MAX_MONTHS) {
+                throw new IllegalArgumentException("A report can cover at most " + MAX_MONTHS + " months");
+            }
+            long archived = loans.archivedCount();
+            if (archived < talliedArchiveSize) {
+                closedMonths.clear(); // The history was reloaded from an older checkpoint
+            }
+            YearMonth current = YearMonth.now();
+            MonthTally total = new MonthTally();
+            ArrayList<YearMonth> untallied = new ArrayList<>();
+            for (YearMonth month = from; !month.isAfter(to); month = month.plusMonths(1)) {
+                MonthTally closed = closedMonths.get(month);
+                if (closed != null) {
+                    total.addAll(closed);
+                } else {
+                    untallied.add(month);
+                }
+            }
+            if (!untallied.isEmpty()) {
+                MonthTally[] tallies = tally(untallied);
+                for (int i = 0; i < tallies.length; i++) {
+                    if (untallied.get(i).isBefore(current)) {
+                        closedMonths.put(untallied.get(i), tallies[i]);
+                    }
+                    total.addAll(tallies[i]);
+                }
+                talliedArchiveSize = archived;
+            }
+            return join(from, to, total);
+        }
+
+        /**
+         * Tallies the given months, in order, in one pass over the history. A loan issued or returned in
+         * one of them was returned no earlier than the first one starts, so the archive is only read from there.
+         */
+        private MonthTally[] tally(List<YearMonth> months) {
+            ZoneId zone = ZoneId.systemDefault();
+            long[] starts = new long[months.size()];
+            long[] ends = new long[months.size()];
+            for (int i = 0; i < starts.length; i++) {
+                starts[i] = months.get(i).atDay(1).atStartOfDay(zone).toInstant().toEpochMilli();
+                ends[i] = months.get(i).plusMonths(1).atDay(1).atStartOfDay(zone).toInstant().toEpochMilli();
+            }
+            LongToIntFunction monthOf = millis -> {
+                int i = Arrays.binarySearch(starts, millis);
+                i = i >= 0 ? i : -i - 2;
+                return i >= 0 && millis < ends[i] ? i : -1;
+            };
+            return loans.fold(loans.cut(), starts[0], () -> {
+                MonthTally[] tallies = new MonthTally[starts.length];
+                Arrays.setAll(tallies, i -> new MonthTally());
+                return tallies;
+            }, (tallies, history, index) -> {
+                long issuedMillis = history.issueMillis(index);
+                int month = monthOf.applyAsInt(issuedMillis);
+                if (month >= 0) {
+                    tallies[month].issued(history.bookId(index), history.memberId(index));
+                }
+                long returnMillis = history.returnMillis(index);
+                month = monthOf.applyAsInt(returnMillis);
+                if (month >= 0) {
+                    tallies[month].returned(returnMillis - issuedMillis);
+                }
+            }, (tallies, record) -> {
+                long issuedMillis = record.getIssueDate().getTime();
+                int month = monthOf.applyAsInt(issuedMillis);
+                if (month >= 0) {
+                    tallies[month].issued(record.getBookId(), record.getMemberId());
+                }
+                if (record.isReturned()) {
+                    long returnMillis = record.getReturnDate().getTime();
+                    month = monthOf.applyAsInt(returnMillis);
+                    if (month >= 0) {
+                        tallies[month].returned(returnMillis - issuedMillis);
+                    }
+                }
+            }, (left, right) -> {
+                for (int i = 0; i < left.length; i++) {
+                    left[i].addAll(right[i]);
+                }
+            });
+        }
+
+        /**
+         * Joins the tally to the catalog and member register as they are now.
+         */
+        private Report join(YearMonth from, YearMonth to, MonthTally total) {
+            HashMap<String, Long> byAuthor = new HashMap<>();
+            HashMap<String, Long> byPublisher = new HashMap<>();
+            ArrayList<TitleTurnover> turnover = new ArrayList<>();
+            total.loansByBook.forEach((bookId, count) -> {
+                Book book = books.get(bookId);
+                byAuthor.merge(book != null ? book.getAuthor() : DELETED, count, Long::sum);
+                byPublisher.merge(book != null ? book.getPublisher() : DELETED, count, Long::sum);
+                if (book != null) {
+                    turnover.add(new TitleTurnover(book, count));
+                }
+            });
+            HashMap<String, Long> byMember = new HashMap<>();
+            total.loansByMember.forEach((memberId, count) -> {
+                Member member = members.get(memberId);
+                byMember.merge(member != null ? member.getId() : memberId, count, Long::sum);
+            });
+            turnover.sort(Comparator.comparingDouble(TitleTurnover::getLoansPerCopy).reversed()
+                    .thenComparing(Comparator.comparingLong(TitleTurnover::getLoans).reversed())
+                    .thenComparing(t -> t.getBook().getId()));
+            return new Report(from, to, total.issued, total.returned, total.loanMillis,
+                    ranked(byAuthor), ranked(byPublisher), ranked(byMember), turnover);
+        }
+
+        private static List<Map.Entry<String, Long>> ranked(Map<String, Long> counts) {
+            ArrayList<Map.Entry<String, Long>> ranked = new ArrayList<>(counts.entrySet());
+            ranked.sort(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+            return ranked;
+        }
+
+        /**
+         * Parses a month written as yyyy-MM.
+         */
+        static YearMonth parseMonth(String text) {
+            try {
+                return YearMonth.parse(text.trim());
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Month must be written as yyyy-MM, not \"" + text + "\"");
+            }
+        }
+
+        /**
+         * A title's loans over the report, and its loans per copy held now.
+         */
+        static final class TitleTurnover {
+            private final Book book;
+            private final long loans;
+            private final int copies;
+
+            TitleTurnover(Book book, long loans) {
+                this.book = book;
+                this.loans = loans;
+                this.copies = book.getQuantity();
+            }
+
+            public Book getBook() { return book; }
+            public long getLoans() { return loans; }
+            public int getCopies() { return copies; }
+            public double getLoansPerCopy() { return copies > 0 ? (double) loans / copies : loans; }
+        }
+
+        /**
+         * A finished report. The grouped counts are ordered most loans first.
+         */
+        static final class Report {
+            private final YearMonth from;
+            private final YearMonth to;
+            private final long loans;
+            private final long returned;
+            private final long loanMillis;
+            private final List<Map.Entry<String, Long>> loansByAuthor;
+            private final List<Map.Entry<String, Long>> loansByPublisher;
+            private final List<Map.Entry<String, Long>> loansByMember;
+            private final List<TitleTurnover> turnover;
+
+            Report(YearMonth from, YearMonth to, long loans, long returned, long loanMillis,
+                   List<Map.Entry<String, Long>> loansByAuthor, List<Map.Entry<String, Long>> loansByPublisher,
+                   List<Map.Entry<String, Long>> loansByMember, List<TitleTurnover> turnover) {
+                this.from = from;
+                this.to = to;
+                this.loans = loans;
+                this.returned = returned;
+                this.loanMillis = loanMillis;
+                this.loansByAuthor = loansByAuthor;
+                this.loansByPublisher = loansByPublisher;
+                this.loansByMember = loansByMember;
+                this.turnover = turnover;
+            }
+
+            public YearMonth getFrom() { return from; }
+            public YearMonth getTo() { return to; }
+            public long getLoans() { return loans; }
+            public long getReturned() { return returned; }
+            public List<Map.Entry<String, Long>> getLoansByAuthor() { return loansByAuthor; }
+            public List<Map.Entry<String, Long>> getLoansByPublisher() { return loansByPublisher; }
+            public List<Map.Entry<String, Long>> getLoansByMember() { return loansByMember; }
+            public List<TitleTurnover> getTurnover() { return turnover; }
+
+            /**
+             * The average length in days of the loans returned over the report, or 0 if none were.
+             */
+            public double getAverageLoanDays() {
+                return returned == 0 ? 0 : (double) loanMillis / returned / TimeUnit.DAYS.toMillis(1);
+            }
+
+            /**
+             * The report as text, listing the first {@code limit} entries of each group.
+             */
+            public String format(int limit) {
+                StringBuilder text = new StringBuilder();
+                text.append("Circulation ").append(from).append(from.equals(to) ? "" : " to " + to).append('\n');
+                text.append(String.format(Locale.ROOT, "Loans: %,d   Returned: %,d   Average loan: %.1f days%n",
+                        loans, returned, getAverageLoanDays()));
+                appendCounts(text, "Loans by author", loansByAuthor, limit);
+                appendCounts(text, "Loans by publisher", loansByPublisher, limit);
+                appendCounts(text, "Loans by member", loansByMember, limit);
+                text.append("\nTurnover by title (loans per copy)\n");
+                for (TitleTurnover title : turnover.subList(0, Math.min(limit, turnover.size()))) {
+                    text.append(String.format(Locale.ROOT, "  %6.2f  %s (%,d loans, %d copies)%n",
+                            title.getLoansPerCopy(), title.getBook().getTitle(), title.getLoans(), title.getCopies()));
+                }
+                return text.toString();
+            }
+
+            private static void appendCounts(StringBuilder text, String heading, List<Map.Entry<String, Long>> counts, int limit) {
+                text.append('\n').append(heading).append('\n');
+                for (Map.Entry<String, Long> entry : counts.subList(0, Math.min(limit, counts.size()))) {
+                    text.append(String.format(Locale.ROOT, "  %,8d  %s%n", entry.getValue(), entry.getKey()));
+                }
+            }
+        }
+    }
+
+    // =================================================================================
+    // --- Headless Circulation Server ---
+    // =================================================================================
+
+    /**
+     * Serves the library over HTTP/JSON for self-service kiosks, without any GUI. Started by
+     * {@code --server [port]}. Every request runs on its own virtual thread and goes through the same
+     * {@link LibraryService} the GUI uses; a change is acknowledged only once its journal entry is on
+     * disk, and concurrent requests share each fsync.
+     *
+     * <pre>
+     * GET    /books[?q=words&amp;limit=n]   GET/PUT/DELETE /books/{id}     POST /books
+     * GET    /members[?q=...]           GET/PUT/DELETE /members/{id}   POST /members
+     * GET    /books/{id}/copies         GET /copies/{barcode}          POST /copies/{barcode}/return
+     * GET    /members/{id}/fines        (fines accrued over all loans; payments aren't recorded)
+     * GET    /loans                     POST /loans {"bookId","memberId"} or {"barcode","memberId"}
+     * POST   /loans/{issueId}/return
+     * POST   /loans/batch {"memberId","items":["bookId or barcode", ...]}   POST /loans/batch-return {"issueIds":["id", ...]}
+     * GET    /holds[?bookId=..|memberId=..]   POST /holds {"bookId","memberId"}   DELETE /holds/{holdId}
+     * GET    /reports/{yyyy-MM}[?to=yyyy-MM&amp;limit=n]
+     * </pre>
+     * Issue IDs and barcodes are 64-bit numbers but are sent as JSON strings, since JavaScript numbers lose
+     * precision above 2^53. Errors come back as {@code {"error": "..."}}: 400 for malformed input,
+     * 404 for unknown IDs and 409 when the library refuses the change (e.g. no copies left). Anything else
+     * is logged and answered with a bare 500.
+     * A batch is applied whole or not at all; either way the reply lists each item's loan or error.
+     */
+    static final class CirculationServer {
+        static final int DEFAULT_PORT = 8080;
+        private static final int DEFAULT_LIMIT = 100;
+
+        private final HttpServer server;
+
+        private CirculationServer(HttpServer server) {
+            this.server = server;
+        }
+
+        /**
+         * Starts serving on the loopback interface. Put a reverse proxy in front to reach it from other machines.
+         */
+        static CirculationServer start(int port) throws IOException {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            CirculationServer circulation = new CirculationServer(server);
+            server.createContext("/books", exchange -> circulation.handle(exchange, circulation::books));
+            server.createContext("/members", exchange -> circulation.handle(exchange, circulation::members));
+            server.createContext("/loans", exchange -> circulation.handle(exchange, circulation::loans));
+            server.createContext("/holds", exchange -> circulation.handle(exchange, circulation::holds));
+            server.createContext("/copies", exchange -> circulation.handle(exchange, circulation::copies));
+            server.createContext("/reports", exchange -> circulation.handle(exchange, circulation::reports));
+            server.createContext("/metrics", metrics::serve);
+            server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+            server.start();
+            return circulation;
+        }
+
+        public void stop() {
+            server.stop(1);
+        }
+
+        /**
+         * An HTTP status plus the JSON to send with it.
+         */
+        static final class Response {
+            final int status;
+            final String json;
+
+            Response(int status, String json) {
+                this.status = status;
+                this.json = json;
+            }
+
+            static Response error(int status, String message) {
+                return new Response(status, "{\"error\":" + Json.quote(message) + "}");
+            }
+        }
+
+        private interface Route {
+            Response serve(String method, String[] path, Map<String, String> query, HttpExchange exchange) throws Exception;
+        }
+
+        private void handle(HttpExchange exchange, Route route) throws IOException {
+            Response response;
+            try {
+                // "/books/B1/x" -> ["books", "B1", "x"]
+                String[] path = exchange.getRequestURI().getPath().replaceAll("^/+|/+$", "").split("/+");
+                for (int i = 0; i < path.length; i++) {
+                    path[i] = URLDecoder.decode(path[i], StandardCharsets.UTF_8);
+                }
+                response = route.serve(exchange.getRequestMethod(), path, parseQuery(exchange.getRequestURI().getRawQuery()), exchange);
+            } catch (LibraryException e) {
+                response = Response.error(409, e.getMessage());
+            } catch (IllegalArgumentException e) {
+                response = Response.error(400, e.getMessage());
+            } catch (Exception e) {
+                // The details are for the log only; they may name files or internals the client has no business seeing
+                System.err.println("Request failed: " + exchange.getRequestMethod() + " " + exchange.getRequestURI());
+                e.printStackTrace();
+                response = Response.error(500, "Internal server error");
+            }
+            byte[] body = response.json.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(response.status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+
+        // --- Routes ---
+
+        private Response books(String method, String[] path, Map<String, String> query, HttpExchange exchange) throws Exception {
+            if (path.length == 1) {
+                switch (method) {
+                    case "GET":
+                        return new Response(200, Json.array(find(books, bookSearch, query), Json::book));
+                    case "POST":
+                        Map<String, Object> fields = readBody(exchange);
+                        Book book = new Book(required(fields, "id"), required(fields, "title"), required(fields, "author"),
+                                optional(fields, "publisher", ""), quantity(fields));
+                        service.addBook(book);
+                        journal.sync();
+                        return new Response(201, Json.book(book));
+                }
+            } else if (path.length == 2) {
+                Book book = books.get(path[1]);
+                if (book == null) {
+                    return Response.error(404, "No book with ID " + path[1]);
+                }
+                switch (method) {
+                    case "GET":
+                        return new Response(200, Json.book(book));
+                    case "PUT":
+                        Map<String, Object> fields = readBody(exchange);
+                        service.updateBook(book, optional(fields, "title", book.getTitle()),
+                                optional(fields, "author", book.getAuthor()),
+                                optional(fields, "publisher", book.getPublisher()),
+                                fields.containsKey("quantity") ? quantity(fields) : book.getQuantity());
+                        journal.sync();
+                        return new Response(200, Json.book(book));
+                    case "DELETE":
+                        service.deleteBook(book.getId());
+                        journal.sync();
+                        return new Response(200, Json.book(book));
+                }
+            } else if (path.length == 3 && path[2].equals("copies") && method.equals("GET")) {
+                Book book = books.get(path[1]);
+                if (book == null) {
+                    return Response.error(404, "No book with ID " + path[1]);
+                }
+                return new Response(200, Json.array(book.getCopies(), Json::copy));
+            }
+            return notFound(method, path);
+        }
+
+        private Response members(String method, String[] path, Map<String, String> query, HttpExchange exchange) throws Exception {
+            if (path.length == 1) {
+                switch (method) {
+                    case "GET":
+                        return new Response(200, Json.array(find(members, memberSearch, query), Json::member));
+                    case "POST":
+                        Map<String, Object> fields = readBody(exchange);
+                        Member member = new Member(required(fields, "id"), required(fields, "name"), required(fields, "email"),
+                                optional(fields, "contact", ""));
+                        service.addMember(member);
+                        journal.sync();
+                        return new Response(201, Json.member(member));
+                }
+            } else if (path.length == 2) {
+                Member member = members.get(path[1]);
+                if (member == null) {
+                    return Response.error(404, "No member with ID " + path[1]);
+                }
+                switch (method) {
+                    case "GET":
+                        return new Response(200, Json.member(member));
+                    case "PUT":
+                        Map<String, Object> fields = readBody(exchange);
+                        service.updateMember(member, optional(fields, "name", member.getName()),
+                                optional(fields, "email", member.getEmail()),
+                                optional(fields, "contact", member.getContact()));
+                        journal.sync();
+                        return new Response(200, Json.member(member));
+                    case "DELETE":
+                        service.deleteMember(member.getId());
+                        journal.sync();
+                        return new Response(200, Json.member(member));
+                }
+            } else if (path.length == 3 && path[2].equals("fines") && method.equals("GET")) {
+                Member member = members.get(path[1]);
+                if (member == null) {
+                    return Response.error(404, "No member with ID " + path[1]);
+                }
+                return new Response(200, Json.fines(member.getId(), fines.accrued(member.getId())));
+            }
+            return notFound(method, path);
+        }
+
+        private Response loans(String method, String[] path, Map<String, String> query, HttpExchange exchange) throws Exception {
+            if (path.length == 1) {
+                switch (method) {
+                    case "GET":
+                        // "?overdue=true" lists only the overdue loans, most overdue first
+                        List<IssueRecord> loans = Boolean.parseBoolean(query.get("overdue")) ? overdue.overdueLoans() : issueRecords.openLoans();
+                        return new Response(200, Json.array(loans, Json::loan));
+                    case "POST":
+                        Map<String, Object> fields = readBody(exchange);
+                        // A barcode names the very copy to issue, and so the book too
+                        IssueRecord record = fields.containsKey("barcode") && !fields.containsKey("bookId")
+                                ? service.issueCopy(parseId("Barcode", required(fields, "barcode")), required(fields, "memberId"))
+                                : service.issue(required(fields, "bookId"), required(fields, "memberId"),
+                                        fields.containsKey("barcode") ? parseId("Barcode", required(fields, "barcode")) : 0);
+                        journal.sync();
+                        return new Response(201, Json.loan(record));
+                }
+            } else if (path.length == 2 && path[1].equals("batch") && method.equals("POST")) {
+                Map<String, Object> fields = readBody(exchange);
+                String memberId = required(fields, "memberId");
+                List<LibraryService.Checkout> checkouts = new ArrayList<>();
+                for (String token : requiredList(fields, "items")) {
+                    checkouts.add(LibraryService.Checkout.parse(token, memberId));
+                }
+                return batch(service.issueAll(checkouts));
+            } else if (path.length == 2 && path[1].equals("batch-return") && method.equals("POST")) {
+                List<Long> issueIds = new ArrayList<>();
+                for (String token : requiredList(readBody(exchange), "issueIds")) {
+                    issueIds.add(parseId("Issue ID", token));
+                }
+                return batch(service.returnAll(issueIds));
+            } else if (path.length == 3 && path[2].equals("return") && method.equals("POST")) {
+                long issueId = parseId("Issue ID", path[1]);
+                if (issueRecords.getOpen(issueId) == null) {
+                    return Response.error(404, "No open loan with ID " + issueId);
+                }
+                IssueRecord record = service.returnLoan(issueId);
+                journal.sync();
+                return new Response(200, Json.loan(record));
+            }
+            return notFound(method, path);
+        }
+
+        private Response holds(String method, String[] path, Map<String, String> query, HttpExchange exchange) throws Exception {
+            if (path.length == 1) {
+                switch (method) {
+                    case "GET":
+                        // Oldest first, so a book's holds come in queue order
+                        String bookId = query.get("bookId");
+                        String memberId = query.get("memberId");
+                        List<Hold> found = new ArrayList<>();
+                        for (Hold hold : LibraryManagementSystem.holds.all()) {
+                            if ((bookId == null || Repository.normalize(bookId).equals(Repository.normalize(hold.getBookId())))
+                                    && (memberId == null || Repository.normalize(memberId).equals(Repository.normalize(hold.getMemberId())))) {
+                                found.add(hold);
+                            }
+                        }
+                        return new Response(200, Json.array(found, Json::hold));
+                    case "POST":
+                        Map<String, Object> fields = readBody(exchange);
+                        Hold hold = service.placeHold(required(fields, "bookId"), required(fields, "memberId"));
+                        journal.sync();
+                        return new Response(201, Json.hold(hold));
+                }
+            } else if (path.length == 2 && method.equals("DELETE")) {
+                long holdId = parseId("Hold ID", path[1]);
+                if (LibraryManagementSystem.holds.get(holdId) == null) {
+                    return Response.error(404, "No active hold with ID " + holdId);
+                }
+                Hold hold = service.cancelHold(holdId);
+                journal.sync();
+                return new Response(200, Json.hold(hold));
+            }
+            return notFound(method, path);
+        }
+
+        private Response copies(String method, String[] path, Map<String, String> query, HttpExchange exchange) throws Exception {
+            if (path.length < 2) {
+                return notFound(method, path);
+            }
+            long barcode = parseId("Barcode", path[1]);
+            Copy copy = books.copy(barcode);
+            if (copy == null) {
+                return Response.error(404, "No copy with barcode " + barcode);
+            }
+            if (path.length == 2 && method.equals("GET")) {
+                return new Response(200, Json.copy(copy));
+            } else if (path.length == 3 && path[2].equals("return") && method.equals("POST")) {
+                IssueRecord record = service.returnCopy(barcode);
+                journal.sync();
+                return new Response(200, Json.loan(record));
+            }
+            return notFound(method, path);
+        }
+
+        private Response reports(String method, String[] path, Map<String, String> query, HttpExchange exchange) {
+            if (path.length == 2 && method.equals("GET")) {
+                YearMonth from = CirculationReports.parseMonth(path[1]);
+                YearMonth to = query.containsKey("to") ? CirculationReports.parseMonth(query.get("to")) : from;
+                int limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : DEFAULT_LIMIT;
+                return new Response(200, Json.report(reports.report(from, to), limit));
+            }
+            return notFound(method, path);
+        }
+
+        // --- Helpers ---
+
+        /**
+         * Replies to a batch: 200 with each item's loan if it was applied, 409 with each item's error (or null) if not.
+         */
+        private static Response batch(LibraryService.BatchResult result) throws IOException {
+            if (!result.isApplied()) {
+                return new Response(409, "{\"applied\":false,\"errors\":" + Json.array(result.getErrors(), Json::quote) + "}");
+            }
+            journal.sync();
+            return new Response(200, "{\"applied\":true,\"loans\":" + Json.array(result.getRecords(), Json::loan) + "}");
+        }
+
+        private static long parseId(String name, String text) {
+            try {
+                return Long.parseLong(text);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(name + " must be a number, not \"" + text + "\"");
+            }
+        }
+
+        /**
+         * Returns up to {@code limit} entities matching the {@code q} words, or the first ones if there is no query.
+         */
+        private static <T> List<T> find(Repository<T> repository, SearchIndex<T> index, Map<String, String> query) {
+            int limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : DEFAULT_LIMIT;
+            String words = query.get("q");
+            if (words != null && !words.isBlank()) {
+                return index.search(words, limit, item -> true);
+            }
+            ArrayList<T> first = new ArrayList<>();
+            for (int row = 0; row < limit; row++) {
+                T item = repository.getAt(row);
+                if (item == null) {
+                    break;
+                }
+                first.add(item);
+            }
+            return first;
+        }
+
+        private static Response notFound(String method, String[] path) {
+            return Response.error(404, "No route for " + method + " /" + String.join("/", path));
+        }
+
+        private static Map<String, Object> readBody(HttpExchange exchange) throws IOException {
+            try (InputStream in = exchange.getRequestBody()) {
+                return Json.parseObject(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
+
+        private static String required(Map<String, Object> fields, String name) {
+            String value = optional(fields, name, null);
+            if (value == null || value.trim().isEmpty()) {
+                throw new IllegalArgumentException("Missing field \"" + name + "\"");
+            }
+            return value.trim();
+        }
+
+        /**
+         * Returns a single-valued field, or {@code fallback} if it is absent or null.
+         */
+        private static String optional(Map<String, Object> fields, String name, String fallback) {
+            Object value = fields.get(name);
+            if (value instanceof List) {
+                throw new IllegalArgumentException("Field \"" + name + "\" must be a single value, not an array");
+            }
+            return value != null ? (String) value : fallback;
+        }
+
+        /**
+         * Returns a field that must be a non-empty array of strings, each trimmed.
+         */
+        @SuppressWarnings("unchecked")
+        private static List<String> requiredList(Map<String, Object> fields, String name) {
+            Object value = fields.get(name);
+            if (value == null) {
+                throw new IllegalArgumentException("Missing field \"" + name + "\"");
+            }
+            if (!(value instanceof List) || ((List<String>) value).isEmpty()) {
+                throw new IllegalArgumentException("Field \"" + name + "\" must be a non-empty array of strings");
+            }
+            List<String> items = new ArrayList<>();
+            for (String item : (List<String>) value) {
+                if (item == null || item.isBlank()) {
+                    throw new IllegalArgumentException("Field \"" + name + "\" has a blank or null entry");
+                }
+                items.add(item.trim());
+            }
+            return items;
+        }
+
+        private static int quantity(Map<String, Object> fields) {
+            try {
+                int quantity = Integer.parseInt(required(fields, "quantity"));
+                if (quantity < 0) throw new NumberFormatException();
+                return quantity;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Quantity must be a valid positive number.");
+            }
+        }
+
+        private static Map<String, String> parseQuery(String rawQuery) {
+            HashMap<String, String> query = new HashMap<>();
+            if (rawQuery != null) {
+                for (String pair : rawQuery.split("&")) {
+                    int eq = pair.indexOf('=');
+                    String key = eq < 0 ? pair : pair.substring(0, eq);
+                    String value = eq < 0 ? "" : pair.substring(eq + 1);
+                    query.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+                }
+            }
+            return query;
+        }
+    }
+
+    /**
+     * Just enough JSON for the server: writing entities, and reading flat objects whose values
+     * are strings, numbers, booleans, null, or arrays of those (each returned as a string, null as
+     * null, and an array as a list of them).
+     */
+    static final class Json {
+        private Json() {}
+
+        static String book(Book book) {
+            return "{\"id\":" + quote(book.getId())
+                    + ",\"title\":" + quote(book.getTitle())
+                    + ",\"author\":" + quote(book.getAuthor())
+                    + ",\"publisher\":" + quote(book.getPublisher())
+                    + ",\"quantity\":" + book.getQuantity()
+                    + ",\"issued\":" + book.getIssued()
+                    + ",\"available\":" + book.getAvailableQuantity() + "}";
+        }
+
+        static String member(Member member) {
+            return "{\"id\":" + quote(member.getId())
+                    + ",\"name\":" + quote(member.getName())
+                    + ",\"email\":" + quote(member.getEmail())
+                    + ",\"contact\":" + quote(member.getContact()) + "}";
+        }
+
+        static String loan(IssueRecord record) {
+            return "{\"issueId\":" + quote(Long.toString(record.getIssueId()))
+                    + ",\"bookId\":" + quote(record.getBookId())
+                    + ",\"memberId\":" + quote(record.getMemberId())
+                    + ",\"issueDate\":" + record.getIssueDate().getTime()
+                    + ",\"dueDate\":" + record.getDueDate().getTime()
+                    + ",\"returnDate\":" + (record.isReturned() ? String.valueOf(record.getReturnDate().getTime()) : "null")
+                    + ",\"barcode\":" + (record.getBarcode() != 0 ? quote(Long.toString(record.getBarcode())) : "null") + "}";
+        }
+
+        static String copy(Copy copy) {
+            return "{\"barcode\":" + quote(Long.toString(copy.getBarcode()))
+                    + ",\"bookId\":" + quote(copy.getBook().getId())
+                    + ",\"status\":" + quote(copy.getStatus().name()) + "}";
+        }
+
+        /**
+         * A hold; {@code position} is its place in the queue, or 0 once a copy is set aside.
+         */
+        static String hold(Hold hold) {
+            return "{\"holdId\":" + quote(Long.toString(hold.getHoldId()))
+                    + ",\"bookId\":" + quote(hold.getBookId())
+                    + ",\"memberId\":" + quote(hold.getMemberId())
+                    + ",\"placedDate\":" + hold.getPlacedDate().getTime()
+                    + ",\"status\":" + quote(hold.getStatus().name())
+                    + ",\"position\":" + holds.position(hold)
+                    + ",\"expiryDate\":" + (hold.getExpiryDate() != null ? String.valueOf(hold.getExpiryDate().getTime()) : "null") + "}";
+        }
+
+        /**
+         * A member's fines accrued, e.g. {"memberId":"M1","finesAccrued":12.50}. Payments aren't recorded,
+         * so this is not a balance due.
+         */
+        static String fines(String memberId, long cents) {
+            return "{\"memberId\":" + quote(memberId) + ",\"finesAccrued\":" + FineEngine.format(cents) + "}";
+        }
+
+        /**
+         * A circulation report, listing the first {@code limit} entries of each group.
+         */
+        static String report(CirculationReports.Report report, int limit) {
+            return "{\"from\":" + quote(report.getFrom().toString())
+                    + ",\"to\":" + quote(report.getTo().toString())
+                    + ",\"loans\":" + report.getLoans()
+                    + ",\"returned\":" + report.getReturned()
+                    + ",\"averageLoanDays\":" + String.format(Locale.ROOT, "%.2f", report.getAverageLoanDays())
+                    + ",\"byAuthor\":" + counts(report.getLoansByAuthor(), "author", limit)
+                    + ",\"byPublisher\":" + counts(report.getLoansByPublisher(), "publisher", limit)
+                    + ",\"byMember\":" + counts(report.getLoansByMember(), "memberId", limit)
+                    + ",\"turnover\":" + array(report.getTurnover().subList(0, Math.min(limit, report.getTurnover().size())),
+                            title -> "{\"bookId\":" + quote(title.getBook().getId())
+                                    + ",\"title\":" + quote(title.getBook().getTitle())
+                                    + ",\"loans\":" + title.getLoans()
+                                    + ",\"copies\":" + title.getCopies()
+                                    + ",\"loansPerCopy\":" + String.format(Locale.ROOT, "%.2f", title.getLoansPerCopy()) + "}")
+                    + "}";
+        }
+
+        private static String counts(List<Map.Entry<String, Long>> counts, String key, int limit) {
+            return array(counts.subList(0, Math.min(limit, counts.size())),
+                    entry -> "{" + quote(key) + ":" + quote(entry.getKey()) + ",\"loans\":" + entry.getValue() + "}");
+        }
+
+        static <T> String array(Collection<T> items, Function<T, String> toJson) {
+            StringBuilder json = new StringBuilder("[");
+            for (T item : items) {
+                if (json.length() > 1) {
+                    json.append(',');
+                }
+                json.append(toJson.apply(item));
+            }
+            return json.append(']').toString();
+        }
+
+        static String quote(String value) {
+            if (value == null) {
+                return "null";
+            }
+            StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"':
+                        json.append("\\\"");
+                        break;
+                    case '\\':
+                        json.append("\\\\");
+                        break;
+                    case '\n':
+                        json.append("\\n");
+                        break;
+                    case '\r':
+                        json.append("\\r");
+                        break;
+                    case '\t':
+                        json.append("\\t");
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            json.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            json.append(c);
+                        }
+                }
+            }
+            return json.append('"').toString();
+        }
+
+        /**
+         * Parses a flat JSON object; a value is a String, null, or a List of those for an array.
+         * Throws IllegalArgumentException if it is malformed or nested deeper than that.
+         */
+        static Map<String, Object> parseObject(String text) {
+            Parser parser = new Parser(text);
+            Map<String, Object> fields = parser.object();
+            parser.skipWhitespace();
+            if (parser.position != text.length()) {
+                throw parser.error("Unexpected text after the object");
+            }
+            return fields;
+        }
+
+        private static final class Parser {
+            private final String text;
+            private int position;
+
+            Parser(String text) {
+                this.text = text;
+            }
+
+            Map<String, Object> object() {
+                LinkedHashMap<String, Object> fields = new LinkedHashMap<>();
+                expect('{');
+                skipWhitespace();
+                if (peek() == '}') {
+                    position++;
+                    return fields;
+                }
+                while (true) {
+                    skipWhitespace();
+                    String key = string();
+                    skipWhitespace();
+                    expect(':');
+                    skipWhitespace();
+                    fields.put(key, peek() == '[' ? array() : value());
+                    skipWhitespace();
+                    char c = next();
+                    if (c == '}') {
+                        return fields;
+                    }
+                    if (c != ',') {
+                        throw error("Expected ',' or '}'");
+                    }
+                }
+            }
+
+            /**
+             * An array of strings, numbers, booleans or nulls, as the strings value() returns for them.
+             */
+            private List<String> array() {
+                ArrayList<String> items = new ArrayList<>();
+                expect('[');
+                skipWhitespace();
+                if (peek() == ']') {
+                    position++;
+                    return items;
+                }
+                while (true) {
+                    skipWhitespace();
+                    items.add(value());
+                    skipWhitespace();
+                    char c = next();
+                    if (c == ']') {
+                        return items;
+                    }
+                    if (c != ',') {
+                        throw error("Expected ',' or ']'");
+                    }
+                }
+            }
+
+            private String value() {
+                char c = peek();
+                if (c == '"') {
+                    return string();
+                }
+                if (c == '{' || c == '[') {
+                    throw error("Nested values are not supported");
+                }
+                int start = position;
+                while (position < text.length() && ",}] \t\r\n".indexOf(text.charAt(position)) < 0) {
+                    position++;
+                }
+                String literal = text.substring(start, position);
+                if (literal.equals("null")) {
+                    return null;
+                }
+                if (literal.equals("true") || literal.equals("false") || literal.matches("-?\\d+(\\.\\d+)?([eE][+-]?\\d+)?")) {
+                    return literal;
+                }
+                throw error("Unexpected value '" + literal + "'");
+            }
+
+            private String string() {
+                expect('"');
+                StringBuilder value = new StringBuilder();
+                while (true) {
+                    char c = next();
+                    if (c == '"') {
+                        return value.toString();
+                    }
+                    if (c != '\\') {
+                        value.append(c);
+                        continue;
+                    }
+                    char escaped = next();
+                    switch (escaped) {
+                        case 'n':
+                            value.append('\n');
+                            break;
+                        case 't':
+                            value.append('\t');
+                            break;
+                        case 'r':
+                            value.append('\r');
+                            break;
+                        case 'b':
+                            value.append('\b');
+                            break;
+                        case 'f':
+                            value.append('\f');
+                            break;
+                        case 'u':
+                            if (position + 4 > text.length()) {
+                                throw error("Truncated \\u escape");
+                            }
+                            try {
+                                value.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                            } catch (NumberFormatException e) {
+                                throw error("Bad \\u escape");
+                            }
+                            position += 4;
+                            break;
+                        default: // \" \\ \/
+                            value.append(escaped);
+                    }
+                }
+            }
+
+            void skipWhitespace() {
+                while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                    position++;
+                }
+            }
+
+            private char peek() {
+                if (position >= text.length()) {
+                    throw error("Unexpected end of JSON");
+                }
+                return text.charAt(position);
+            }
+
+            private char next() {
+                char c = peek();
+                position++;
+                return c;
+            }
+
+            private void expect(char c) {
+                if (next() != c) {
+                    throw error("Expected '" + c + "'");
+                }
+            }
+
+            IllegalArgumentException error(String message) {
+                return new IllegalArgumentException(message + " at position " + position + " of the request body");
+            }
+        }
+    }
+
+    // =================================================================================
+    // --- Binary Data Format ---
+    // =================================================================================
+
+    /**
+     * Buffered writer for the binary data format: varint-encoded ints, big-endian longs and
+     * length-prefixed UTF-8 strings.
+     */
+    static final class BinaryWriter implements Closeable {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[1 << 16];
+        private int position;
+
+        BinaryWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        public void writeByte(int value) throws IOException {
+            if (position == buffer.length) {
+                flushBuffer();
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        /**
+         * Writes an int in 1-5 bytes, 7 bits at a time, low bits first. Small values take one byte.
+         */
+        public void writeVarInt(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            writeByte(value);
+        }
+
+        public void writeLong(long value) throws IOException {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                writeByte((int) (value >>> shift));
+            }
+        }
+
+        public void writeBoolean(boolean value) throws IOException {
+            writeByte(value ? 1 : 0);
+        }
+
+        /**
+         * Writes a string as its UTF-8 byte length plus one (zero meaning null), then the bytes.
+         */
+        public void writeString(String value) throws IOException {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length + 1);
+            if (bytes.length > buffer.length - position) {
+                flushBuffer();
+                if (bytes.length > buffer.length) {
+                    out.write(bytes);
+                    return;
+                }
+            }
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        private void flushBuffer() throws IOException {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+
+        public void flush() throws IOException {
+            flushBuffer();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flushBuffer();
+            out.close();
+        }
+    }
+
+    /**
+     * Reads what {@link BinaryWriter} wrote, straight out of an in-memory copy of the file.
+     */
+    static final class BinaryReader {
+        private final byte[] data;
+        private final int limit; // Reading stops here, e.g. short of a checksum trailer
+        private int position;
+
+        BinaryReader(byte[] data) {
+            this(data, data.length);
+        }
+
+        BinaryReader(byte[] data, int limit) {
+            this.data = data;
+            this.limit = limit;
+        }
+
+        public int remaining() {
+            return limit - position;
+        }
+
+        public int readByte() throws IOException {
+            if (position >= limit) {
+                throw new EOFException("Unexpected end of data at byte " + position);
+            }
+            return data[position++] & 0xFF;
+        }
+
+        public int readVarInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint at byte " + position);
+        }
+
+        public long readLong() throws IOException {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | readByte();
+            }
+            return value;
+        }
+
+        public boolean readBoolean() throws IOException {
+            return readByte() != 0;
+        }
+
+        public String readString() throws IOException {
+            int length = readVarInt() - 1;
+            if (length < 0) {
+                return null;
+            }
+            if (length > limit - position) {
+                throw new EOFException("String of " + length + " bytes runs past the end of data at byte " + position);
+            }
+            String value = new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+
+    /**
+     * The on-disk format of books.dat, members.dat, issues.dat and holds.dat. Each file is a header
+     * (magic, format version, kind, checkpoint LSN, archived loan count, record count) followed by
+     * the records and a CRC32C of everything before it. Dates are stored as epoch milliseconds.
+     * Files of any version but {@link #VERSION} are refused; a change to the format bumps it, and
+     * readers then branch on the version they were given to keep loading the older files.
+     *
+     * Files are never written in place: a new file replaces the old one by an atomic rename, and the
+     * old one is kept as {@code <file>.prev} to fall back on if the new one turns out to be damaged.
+     */
+    static final class BinaryCodec {
+        static final int MAGIC = 0x4C4D5344; // "LMSD"
+        static final int VERSION = 1;
+
+        static final byte BOOKS = 'B';
+        static final byte MEMBERS = 'M';
+        static final byte ISSUES = 'I';
+        static final byte HOLDS = 'H';
+
+        /**
+         * The records of one data file plus the LSN of the last journal entry they include.
+         * For issues.dat, {@code archived} is how many closed loans were in the loan history file
+         * at the time; it is 0 for other kinds.
+         */
+        static final class Loaded<T> {
+            final ArrayList<T> items;
+            final long lsn;
+            final long archived;
+            final boolean recovered; // The file itself was missing or damaged, so this came from elsewhere
+
+            Loaded(ArrayList<T> items, long lsn, long archived, boolean recovered) {
+                this.items = items;
+                this.lsn = lsn;
+                this.archived = archived;
+                this.recovered = recovered;
+            }
+        }
+
+        interface RecordWriter<T> {
+            void write(BinaryWriter out, T item) throws IOException;
+        }
+
+        interface RecordReader<T> {
+            T read(BinaryReader in, int version) throws IOException;
+        }
+
+        private BinaryCodec() {}
+
+        static Path previousCopy(String file) {
+            return Paths.get(file + ".prev");
+        }
+
+        /**
+         * True if the file or its previous copy is there to be read.
+         */
+        static boolean exists(String file) {
+            return Files.exists(Paths.get(file)) || Files.exists(previousCopy(file));
+        }
+
+        /**
+         * Writes the records to {@code <file>.tmp}, fsyncs it, then renames it over the file, which
+         * becomes {@code <file>.prev}. A crash at any point leaves a complete copy of the old or new data.
+         */
+        static <T> void writeFile(String file, byte kind, long lsn, long archived, Collection<T> items, RecordWriter<T> writer) throws IOException {
+            Path target = Paths.get(file);
+            Path temp = Paths.get(file + ".tmp");
+            CRC32C checksum = new CRC32C();
+            try (FileChannel channel = FileChannel.open(temp,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                BinaryWriter out = new BinaryWriter(new CheckedOutputStream(Channels.newOutputStream(channel), checksum));
+                out.writeLong(((long) MAGIC << 32) | ((long) VERSION << 8) | kind);
+                out.writeLong(lsn);
+                out.writeLong(archived);
+                out.writeVarInt(items.size());
+                for (T item : items) {
+                    writer.write(out, item);
+                }
+                out.flush();
+                ByteBuffer trailer = ByteBuffer.allocate(4).putInt(0, (int) checksum.getValue());
+                while (trailer.hasRemaining()) {
+                    channel.write(trailer);
+                }
+                channel.force(true);
+            }
+            if (Files.exists(target)) {
+                Files.move(target, previousCopy(file), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory(target);
+        }
+
+        /**
+         * Makes the renames in the file's directory durable. Not every platform can open a directory (e.g. Windows).
+         */
+        private static void syncDirectory(Path file) {
+            try (FileChannel directory = FileChannel.open(file.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+                directory.force(true);
+            } catch (IOException e) {
+                // Nothing more can be done; the rename itself has happened
+            }
+        }
+
+        static <T> Loaded<T> readFile(String file, byte kind, RecordReader<T> reader) throws IOException {
+            byte[] data = Files.readAllBytes(Paths.get(file));
+            if (data.length < 8) {
+                throw new EOFException(file + " is truncated");
+            }
+            long header = ByteBuffer.wrap(data).getLong(0);
+            int version = (int) (header >>> 8) & 0xFFFFFF;
+            if ((int) (header >>> 32) != MAGIC || (byte) header != kind) {
+                throw new IOException(file + " is not a " + (char) kind + " data file");
+            }
+            if (version != VERSION) {
+                throw new IOException(file + " has unsupported format version " + version);
+            }
+            int end = data.length - 4;
+            CRC32C checksum = new CRC32C();
+            checksum.update(data, 0, Math.max(0, end));
+            if (end < 8 || ByteBuffer.wrap(data).getInt(end) != (int) checksum.getValue()) {
+                throw new IOException(file + " failed its checksum; it is damaged or incomplete");
+            }
+            BinaryReader in = new BinaryReader(data, end);
+            in.readLong();
+            long lsn = in.readLong();
+            long archived = in.readLong();
+            int count = in.readVarInt();
+            if (count < 0) {
+                throw new IOException(file + " has a damaged record count");
+            }
+            ArrayList<T> items = new ArrayList<>(Math.min(count, 1 << 20));
+            for (int i = 0; i < count; i++) {
+                items.add(reader.read(in, version));
+            }
+            if (in.remaining() != 0) {
+                throw new IOException(file + " has " + in.remaining() + " unexpected bytes after its last record");
+            }
+            return new Loaded<>(items, lsn, archived, false);
+        }
+
+        /**
+         * Reads the file, or its previous copy if the file is missing or damaged. A damaged file is
+         * set aside (see {@link #setAside}) so the next checkpoint can't keep it as the previous copy.
+         * Throws if no copy can be read.
+         */
+        static <T> Loaded<T> readLatest(String file, byte kind, RecordReader<T> reader) throws IOException {
+            IOException damage = null;
+            if (Files.exists(Paths.get(file))) {
+                try {
+                    return readFile(file, kind, reader);
+                } catch (IOException e) {
+                    damage = e;
+                }
+            }
+            if (!Files.exists(previousCopy(file))) {
+                throw damage != null ? damage : new NoSuchFileException(file, null, "no copy found");
+            }
+            Loaded<T> loaded;
+            try {
+                loaded = readFile(previousCopy(file).toString(), kind, reader);
+            } catch (IOException e) {
+                if (damage != null) e.addSuppressed(damage);
+                throw e;
+            }
+            if (damage != null) {
+                System.out.println(damage.getMessage() + "; using the previous copy, from LSN " + loaded.lsn + ".");
+                Files.move(Paths.get(file), Paths.get(file + ".damaged"), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                System.out.println(file + " is missing; using the previous copy, from LSN " + loaded.lsn + ".");
+            }
+            return new Loaded<>(loaded.items, loaded.lsn, loaded.archived, true);
+        }
+
+        /**
+         * Renames the file and its previous copy to {@code .damaged} names, so they are kept for
+         * recovery by hand rather than replaced by the next checkpoint. Returns false if neither was there.
+         */
+        static boolean setAside(String file) throws IOException {
+            boolean moved = false;
+            if (Files.exists(Paths.get(file))) {
+                Files.move(Paths.get(file), Paths.get(file + ".damaged"), StandardCopyOption.REPLACE_EXISTING);
+                moved = true;
+            }
+            if (Files.exists(previousCopy(file))) {
+                Files.move(previousCopy(file), Paths.get(file + ".prev.damaged"), StandardCopyOption.REPLACE_EXISTING);
+                moved = true;
+            }
+            return moved;
+        }
+
+        // --- Books ---
+
+        static void writeBook(BinaryWriter out, Book book) throws IOException {
+            out.writeString(book.getId());
+            out.writeString(book.getTitle());
+            out.writeString(book.getAuthor());
+            out.writeString(book.getPublisher());
+            long[] barcodes = book.getBarcodes();
+            out.writeVarInt(barcodes.length);
+            for (long barcode : barcodes) {
+                out.writeLong(barcode);
+            }
+        }
+
+        /**
+         * Reads a book with every copy on the shelf; loading then takes off the copies out on loan
+         * or set aside.
+         */
+        static Book readBook(BinaryReader in, int version) throws IOException {
+            String id = in.readString();
+            String title = in.readString();
+            String author = in.readString();
+            String publisher = in.readString();
+            int quantity = in.readVarInt();
+            if (quantity < 0) {
+                throw new IOException("Book " + id + " has a damaged copy count");
+            }
+            long[] barcodes = new long[quantity];
+            for (int i = 0; i < quantity; i++) {
+                barcodes[i] = in.readLong();
+            }
+            return new Book(id, title, author, publisher, barcodes);
+        }
+
+        // --- Members ---
+
+        static void writeMember(BinaryWriter out, Member member) throws IOException {
+            out.writeString(member.getId());
+            out.writeString(member.getName());
+            out.writeString(member.getEmail());
+            out.writeString(member.getContact());
+        }
+
+        static Member readMember(BinaryReader in, int version) throws IOException {
+            return new Member(in.readString(), in.readString(), in.readString(), in.readString());
+        }
+
+        // --- Issue Records ---
+
+        static void writeIssue(BinaryWriter out, IssueRecord record) throws IOException {
+            out.writeLong(record.getIssueId());
+            out.writeString(record.getBookId());
+            out.writeString(record.getMemberId());
+            out.writeLong(record.getIssueDate().getTime());
+            out.writeLong(record.getDueDate().getTime());
+            out.writeBoolean(record.isReturned());
+            if (record.isReturned()) {
+                out.writeLong(record.getReturnDate().getTime());
+            }
+            out.writeLong(record.getBarcode());
+        }
+
+        static void writeHold(BinaryWriter out, Hold hold) throws IOException {
+            out.writeLong(hold.getHoldId());
+            out.writeString(hold.getBookId());
+            out.writeString(hold.getMemberId());
+            out.writeLong(hold.getPlacedDate().getTime());
+            out.writeBoolean(hold.getExpiryDate() != null);
+            if (hold.getExpiryDate() != null) {
+                out.writeLong(hold.getExpiryDate().getTime());
+            }
+            out.writeLong(hold.getBarcode());
+        }
+
+        static Hold readHold(BinaryReader in, int version) throws IOException {
+            long holdId = in.readLong();
+            String bookId = in.readString();
+            String memberId = in.readString();
+            Date placedDate = new Date(in.readLong());
+            Date expiryDate = in.readBoolean() ? new Date(in.readLong()) : null;
+            Hold hold = new Hold(holdId, bookId, memberId, placedDate, expiryDate);
+            hold.setBarcode(in.readLong());
+            return hold;
+        }
+
+        static IssueRecord readIssue(BinaryReader in, int version) throws IOException {
+            long issueId = in.readLong();
+            String bookId = in.readString();
+            String memberId = in.readString();
+            Date issueDate = new Date(in.readLong());
+            Date dueDate = new Date(in.readLong());
+            Date returnDate = in.readBoolean() ? new Date(in.readLong()) : null;
+            return new IssueRecord(issueId, bookId, memberId, issueDate, dueDate, returnDate, in.readLong());
+        }
+    }
+
+    /**
+     * Closed loans, stored as fixed-width records in a memory-mapped file instead of on the heap.
+     * Records are decoded only when read, so heap use stays flat however long the history grows.
+     * The file is mapped in chunks as it grows and the record count lives in its header.
+     * IDs are stored in fixed-size slots, so the library takes no IDs longer than they hold (see {@link #fitsId}).
+     * Writes reach the disk when {@link #force()} is called; anything later is recovered from the journal.
+     */
+    static final class LoanHistoryFile implements Closeable {
+        private static final int MAGIC = 0x4C4D5348; // "LMSH"
+        private static final int VERSION = 1;
+        private static final int HEADER_SIZE = 64;   // magic, version, record size, count, then the return-order fields below
+        private static final int COUNT_OFFSET = 16;
+        // Kept up to date on every append
+        private static final int MAX_ID_OFFSET = 24;         // Highest issue ID
+        private static final int MAX_RETURN_OFFSET = 32;     // Latest return time
+        private static final int ORDERED_FROM_OFFSET = 40;   // First record of the run appended in return order
+        private static final int EARLIER_RETURN_OFFSET = 48; // Latest return time before that run
+
+        // Record layout: issue ID, two ID slots (a length byte plus UTF-8), issue, return and due millis
+        private static final int BOOK_ID_SLOT = 32;
+        private static final int MEMBER_ID_SLOT = 32;
+        static final int MAX_ID_BYTES = 31; // The longest ID, in UTF-8, that fits a slot after its length byte
+        private static final int BOOK_ID_OFFSET = 8;
+        private static final int MEMBER_ID_OFFSET = BOOK_ID_OFFSET + BOOK_ID_SLOT;
+        private static final int ISSUE_DATE_OFFSET = MEMBER_ID_OFFSET + MEMBER_ID_SLOT;
+        private static final int RETURN_DATE_OFFSET = ISSUE_DATE_OFFSET + 8;
+        private static final int DUE_DATE_OFFSET = RETURN_DATE_OFFSET + 8;
+        static final int RECORD_SIZE = DUE_DATE_OFFSET + 8;
+
+        private static final int RECORDS_PER_CHUNK = 1 << 16;
+        private static final long CHUNK_SIZE = (long) RECORDS_PER_CHUNK * RECORD_SIZE;
+
+        private final FileChannel channel;
+        private final MappedByteBuffer header;
+        private final ArrayList<MappedByteBuffer> chunks = new ArrayList<>(); // Guarded by 'this'
+        private volatile MappedByteBuffer[] mapped = new MappedByteBuffer[0]; // A copy of 'chunks' for reading without the lock
+        private volatile long count;
+        private volatile long maxIssueId;
+        // Loans are archived as they come back, so nearly all of the file is in return order. Every record
+        // from 'orderedFrom' on was returned no earlier than any record before it; the ones before were
+        // returned at 'earlierMaxReturn' at the latest. Guarded by 'this'
+        private long maxReturnMillis;
+        private long orderedFrom;
+        private long earlierMaxReturn;
+
+        private LoanHistoryFile(FileChannel channel, MappedByteBuffer header, long count) {
+            this.channel = channel;
+            this.header = header;
+            this.count = count;
+            this.maxIssueId = header.getLong(MAX_ID_OFFSET);
+            this.maxReturnMillis = header.getLong(MAX_RETURN_OFFSET);
+            this.orderedFrom = header.getLong(ORDERED_FROM_OFFSET);
+            this.earlierMaxReturn = header.getLong(EARLIER_RETURN_OFFSET);
+        }
+
+        /**
+         * Opens the history file, creating it if it doesn't exist yet.
+         */
+        static LoanHistoryFile open(String file) throws IOException {
+            Path path = Paths.get(file);
+            FileChannel channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            boolean fresh = channel.size() == 0;
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            if (fresh) {
+                header.putInt(0, MAGIC);
+                header.putInt(4, VERSION);
+                header.putInt(8, RECORD_SIZE);
+                header.putLong(COUNT_OFFSET, 0);
+                header.force();
+            } else if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(8) != RECORD_SIZE) {
+                channel.close();
+                throw new IOException(file + " is not a loan history file this version can read");
+            }
+            return new LoanHistoryFile(channel, header, header.getLong(COUNT_OFFSET));
+        }
+
+        /**
+         * Returns true if the record's IDs fit the fixed-width slots.
+         */
+        static boolean fits(IssueRecord record) {
+            return fitsId(record.getBookId()) && fitsId(record.getMemberId());
+        }
+
+        /**
+         * Returns true if a book or member ID fits the fixed-width slots, i.e. is at most
+         * {@value #MAX_ID_BYTES} bytes in UTF-8. The library takes no longer IDs, so every loan can be archived.
+         */
+        static boolean fitsId(String id) {
+            return utf8Length(id) <= MAX_ID_BYTES;
+        }
+
+        private static int utf8Length(String value) {
+            return value.getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        public long size() {
+            return count;
+        }
+
+        /**
+         * Decodes the record at the given position.
+         */
+        public IssueRecord get(long index) {
+            if (index < 0 || index >= count) {
+                throw new IndexOutOfBoundsException("Record " + index + " of " + count);
+            }
+            MappedByteBuffer chunk = chunk((int) (index / RECORDS_PER_CHUNK));
+            int offset = (int) (index % RECORDS_PER_CHUNK) * RECORD_SIZE;
+            return new IssueRecord(
+                    chunk.getLong(offset),
+                    readSlot(chunk, offset + BOOK_ID_OFFSET),
+                    readSlot(chunk, offset + MEMBER_ID_OFFSET),
+                    new Date(chunk.getLong(offset + ISSUE_DATE_OFFSET)),
+                    new Date(chunk.getLong(offset + DUE_DATE_OFFSET)),
+                    new Date(chunk.getLong(offset + RETURN_DATE_OFFSET)));
+        }
+
+        /**
+         * Returns the issue date of the record at the given position, without decoding the rest of it.
+         */
+        public long issueMillis(long index) {
+            return readLong(index, ISSUE_DATE_OFFSET);
+        }
+
+        /**
+         * Returns the due date of the record at the given position, without decoding the rest of it.
+         */
+        public long dueMillis(long index) {
+            return readLong(index, DUE_DATE_OFFSET);
+        }
+
+        /**
+         * Returns the return date of the record at the given position, without decoding the rest of it.
+         */
+        public long returnMillis(long index) {
+            return readLong(index, RETURN_DATE_OFFSET);
+        }
+
+        /**
+         * Returns the book ID of the record at the given position, without decoding the rest of it.
+         */
+        public String bookId(long index) {
+            return readSlot(index, BOOK_ID_OFFSET);
+        }
+
+        /**
+         * Returns the member ID of the record at the given position, without decoding the rest of it.
+         */
+        public String memberId(long index) {
+            return readSlot(index, MEMBER_ID_OFFSET);
+        }
+
+        private String readSlot(long index, int fieldOffset) {
+            if (index < 0 || index >= count) {
+                throw new IndexOutOfBoundsException("Record " + index + " of " + count);
+            }
+            int offset = (int) (index % RECORDS_PER_CHUNK) * RECORD_SIZE;
+            return readSlot(chunk((int) (index / RECORDS_PER_CHUNK)), offset + fieldOffset);
+        }
+
+        private long readLong(long index, int fieldOffset) {
+            if (index < 0 || index >= count) {
+                throw new IndexOutOfBoundsException("Record " + index + " of " + count);
+            }
+            int offset = (int) (index % RECORDS_PER_CHUNK) * RECORD_SIZE;
+            return chunk((int) (index / RECORDS_PER_CHUNK)).getLong(offset + fieldOffset);
+        }
+
+        /**
+         * Appends a closed loan. The record must {@link #fits fit}.
+         */
+        public synchronized void append(IssueRecord record) throws IOException {
+            if (!fits(record)) {
+                throw new IllegalArgumentException("Loan " + record.getIssueId() + " has an ID longer than "
+                        + MAX_ID_BYTES + " bytes");
+            }
+            long index = count;
+            MappedByteBuffer chunk = chunk((int) (index / RECORDS_PER_CHUNK));
+            int offset = (int) (index % RECORDS_PER_CHUNK) * RECORD_SIZE;
+            chunk.putLong(offset, record.getIssueId());
+            writeSlot(chunk, offset + BOOK_ID_OFFSET, record.getBookId());
+            writeSlot(chunk, offset + MEMBER_ID_OFFSET, record.getMemberId());
+            chunk.putLong(offset + ISSUE_DATE_OFFSET, record.getIssueDate().getTime());
+            chunk.putLong(offset + RETURN_DATE_OFFSET, record.getReturnDate().getTime());
+            chunk.putLong(offset + DUE_DATE_OFFSET, record.getDueDate().getTime());
+            noteAppended(index, record.getIssueId(), record.getReturnDate().getTime());
+            setCount(index + 1);
+        }
+
+        /**
+         * Returns the highest issue ID ever archived, even if {@link #truncate} has since dropped it; 0 if none.
+         */
+        public long maxIssueId() {
+            return maxIssueId;
+        }
+
+        /**
+         * Returns the position of the first record that may have been returned at or after the given
+         * time: every record before it was returned earlier. Found by binary search over the part of the
+         * file in return order, so reading only recent loans doesn't mean scanning the whole history.
+         */
+        public synchronized long firstReturnedFrom(long millis) {
+            long low = Math.min(orderedFrom, count);
+            long high = count;
+            while (low < high) {
+                long middle = (low + high) >>> 1;
+                if (returnMillis(middle) < millis) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            // Records before the ordered run were all returned before the first one in it
+            return low > orderedFrom || earlierMaxReturn < millis ? low : 0;
+        }
+
+        /**
+         * Works out the header's return-order fields again from the records themselves.
+         */
+        private void scanOrder() {
+            maxReturnMillis = orderedFrom = earlierMaxReturn = 0;
+            header.putLong(MAX_RETURN_OFFSET, 0);
+            header.putLong(ORDERED_FROM_OFFSET, 0);
+            header.putLong(EARLIER_RETURN_OFFSET, 0);
+            for (long i = 0; i < count; i++) {
+                noteAppended(i, readLong(i, 0), returnMillis(i));
+            }
+        }
+
+        private void noteAppended(long index, long issueId, long returnMillis) {
+            if (issueId > maxIssueId) {
+                maxIssueId = issueId;
+                header.putLong(MAX_ID_OFFSET, issueId);
+            }
+            if (returnMillis < maxReturnMillis) {
+                // Out of return order, e.g. migrated from an older version or after the clock was set back
+                orderedFrom = index + 1;
+                earlierMaxReturn = maxReturnMillis;
+                header.putLong(ORDERED_FROM_OFFSET, orderedFrom);
+                header.putLong(EARLIER_RETURN_OFFSET, earlierMaxReturn);
+            } else {
+                maxReturnMillis = returnMillis;
+                header.putLong(MAX_RETURN_OFFSET, returnMillis);
+            }
+        }
+
+        /**
+         * Forgets every record from {@code newCount} onwards.
+         */
+        public synchronized void truncate(long newCount) throws IOException {
+            if (newCount > count) {
+                throw new IOException("Loan history has " + count + " records but " + newCount + " were expected");
+            }
+            boolean orderLost = newCount < orderedFrom;
+            setCount(newCount);
+            if (orderLost) {
+                scanOrder(); // Only after falling back on an older copy, so rare enough to read it all again
+            }
+        }
+
+        private void setCount(long newCount) {
+            count = newCount;
+            header.putLong(COUNT_OFFSET, newCount);
+        }
+
+        /**
+         * Flushes every written record and the header to disk.
+         */
+        public synchronized void force() {
+            for (MappedByteBuffer chunk : chunks) {
+                chunk.force();
+            }
+            header.force();
+        }
+
+        /**
+         * Returns the given chunk. Chunks already mapped are found without locking, so parallel scans don't contend.
+         */
+        private MappedByteBuffer chunk(int number) {
+            MappedByteBuffer[] snapshot = mapped;
+            return number < snapshot.length ? snapshot[number] : map(number);
+        }
+
+        /**
+         * Maps chunks up to and including the given one. Mapping past the end grows the file.
+         */
+        private synchronized MappedByteBuffer map(int number) {
+            try {
+                while (chunks.size() <= number) {
+                    long position = HEADER_SIZE + chunks.size() * CHUNK_SIZE;
+                    chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, position, CHUNK_SIZE));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not map loan history chunk " + number, e);
+            }
+            mapped = chunks.toArray(new MappedByteBuffer[0]);
+            return chunks.get(number);
+        }
+
+        private static void writeSlot(MappedByteBuffer chunk, int offset, String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            chunk.put(offset, (byte) bytes.length);
+            chunk.put(offset + 1, bytes);
+        }
+
+        private static String readSlot(ByteBuffer chunk, int offset) {
+            byte[] bytes = new byte[chunk.get(offset) & 0xFF];
+            chunk.get(offset + 1, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            force();
+            channel.close();
+        }
+    }
+
+    // =================================================================================
+    // --- Write-Ahead Journal ---
     // =================================================================================
 
     /**
-     * A modal dialog for adding a new book or updating an existing one.
+     * An append-only log of every change, so edits survive a crash without rewriting the data files.
+     * Each entry is framed as [length][CRC32][LSN][type][fields], where the LSN (log sequence number)
+     * increases by one per entry. Appends only go to a memory buffer; a background thread writes and
+     * fsyncs whatever has piled up in one go, so a burst of edits shares a single fsync (group commit).
+     * A torn or corrupt tail, e.g. from a power cut mid-write, is cut off when the journal is opened.
+     *
+     * When a checkpoint starts, the journal is rotated: everything so far moves to a retired segment
+     * ({@code <file>.old}) and new entries go to a fresh file, so edits can carry on while the checkpoint
+     * is written. Once the checkpoint is safely on disk the retired segment becomes {@code <file>.prev},
+     * replacing the one before it: it holds what the previous copies of the data files are missing,
+     * and is only replayed when loading has to fall back on them.
      */
-    static class AddBookDialog extends JDialog {
-        private final JTextField idField, titleField, authorField, publisherField, quantityField;
-        private boolean bookAdded = false;
-        private final Book bookToUpdate; // Null if adding new, non-null if updating
+    static class Journal implements Closeable {
+        static final byte BOOK_PUT = 1;
+        static final byte BOOK_DELETE = 2;
+        static final byte MEMBER_PUT = 3;
+        static final byte MEMBER_DELETE = 4;
+        static final byte ISSUE = 5;
+        static final byte RETURN = 6;
+        static final byte HOLD_PLACE = 7;
+        static final byte HOLD_READY = 8;
+        static final byte HOLD_END = 9;
+        static final byte BATCH = 10; // Several entries that stand or fall together; see beginBatch()
+
+        private static final int MAX_ENTRY_SIZE = 1 << 20; // Anything bigger is a corrupt length field
 
-        // Constructor for Adding a new book
-        public AddBookDialog() {
-            this(null); // Call the update constructor with null
+        /**
+         * Entries one thread has appended since {@link #beginBatch()}, not yet in the journal.
+         */
+        private static final class Batch {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            int count;
         }
 
-        // Constructor for Updating an existing book
-        public AddBookDialog(Book book) {
-            this.bookToUpdate = book;
+        /**
+         * Receives the entries found in the journal when it is opened, oldest first.
+         */
+        interface Replayer {
+            /**
+             * A book was added or edited; {@code barcodes} are its copies.
+             */
+            void bookPut(long lsn, String id, String title, String author, String publisher, long[] barcodes);
+            void bookDeleted(long lsn, String id);
+            void memberPut(long lsn, String id, String name, String email, String contact);
+            void memberDeleted(long lsn, String id);
+            void issued(long lsn, long issueId, String bookId, String memberId, long issueMillis, long dueMillis, long barcode);
+            void returned(long lsn, long issueId, String bookId, long returnMillis);
+            void holdPlaced(long lsn, long holdId, String bookId, String memberId, long placedMillis);
+            void holdReady(long lsn, long holdId, long expiryMillis, long barcode);
+            void holdEnded(long lsn, long holdId, Hold.Status status);
+        }
 
-            setTitle(book == null ? "Add New Book" : "Update Book");
-            setSize(450, 300);
-            setLocationRelativeTo(null); // Center
-            setModal(true); // Block other windows
+        /**
+         * Writes the fields of one entry.
+         */
+        private interface Fields {
+            void write(DataOutputStream out) throws IOException;
+        }
 
-            setLayout(new BorderLayout(10, 10));
+        private final Path path;
+        private final Path retiredPath;
+        private final Path previousPath;
+        private final long firstLsn; // Oldest entry replayed when opened, or 0 if there were none
+        private final Thread flusher;
+        private final ThreadLocal<Batch> batch = new ThreadLocal<>();
+
+        // All guarded by 'this'
+        private FileChannel channel;
+        private boolean flushing; // The flusher is writing to 'channel' outside the lock
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private long nextLsn;
+        private long appendedLsn; // Last LSN placed in 'pending'
+        private long durableLsn;  // Last LSN known to be on disk
+        private CompletableFuture<Void> flushed = new CompletableFuture<>(); // Completed and replaced whenever durableLsn moves
+        private long size;        // Bytes on disk plus bytes pending
+        private IOException failure;
+        private boolean closed;
+
+        private Journal(Path path, FileChannel channel, long nextLsn, long firstLsn) throws IOException {
+            this.path = path;
+            this.retiredPath = retiredPath(path);
+            this.previousPath = previousPath(path);
+            this.firstLsn = firstLsn;
+            this.channel = channel;
+            this.nextLsn = nextLsn;
+            this.appendedLsn = nextLsn - 1;
+            this.durableLsn = nextLsn - 1;
+            this.size = channel.size();
+            this.flusher = new Thread(this::flushLoop, "journal-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
 
-            // Form Panel
-            JPanel formPanel = new JPanel(new GridBagLayout());
-            formPanel.setBorder(new EmptyBorder(10, 10, 10, 10));
-            GridBagConstraints gbc = new GridBagConstraints();
-            gbc.insets = new Insets(5, 5, 5, 5);
-            gbc.fill = GridBagConstraints.HORIZONTAL;
+        private static Path retiredPath(Path path) {
+            return path.resolveSibling(path.getFileName() + ".old");
+        }
 
-            // ID
-            gbc.gridx = 0; gbc.gridy = 0;
-            formPanel.add(new JLabel("Book ID (e.g., B-101):"), gbc);
-            gbc.gridx = 1; gbc.gridy = 0; gbc.weightx = 1.0;
-            idField = new JTextField(20);
-            formPanel.add(idField, gbc);
+        private static Path previousPath(Path path) {
+            return path.resolveSibling(path.getFileName() + ".prev");
+        }
 
-            // Title
-            gbc.gridx = 0; gbc.gridy = 1; gbc.weightx = 0;
-            formPanel.add(new JLabel("Title:"), gbc);
-            gbc.gridx = 1; gbc.gridy = 1;
-            titleField = new JTextField(20);
-            formPanel.add(titleField, gbc);
+        /**
+         * Opens (or creates) the journal, passing every intact entry to the replayer and cutting off
+         * anything from the first damaged entry onwards. A retired segment left by an unfinished
+         * checkpoint is replayed first, and before that the previous segment if {@code replayPrevious}
+         * is set. New entries are numbered after both the last entry read and {@code minLsn}, so LSNs
+         * keep increasing across checkpoints.
+         */
+        static Journal open(String file, long minLsn, Replayer replayer, boolean replayPrevious) throws IOException {
+            Path path = Paths.get(file);
+            long[] lastLsn = {minLsn, 0, 0}; // Highest LSN seen, highest LSN replayed, first LSN replayed
+            if (replayPrevious && Files.exists(previousPath(path))) {
+                replaySegment(previousPath(path), replayer, lastLsn).close();
+            }
+            if (Files.exists(retiredPath(path))) {
+                replaySegment(retiredPath(path), replayer, lastLsn).close();
+            }
+            FileChannel channel = replaySegment(path, replayer, lastLsn);
+            return new Journal(path, channel, lastLsn[0] + 1, lastLsn[2]);
+        }
 
-            // Author
-            gbc.gridx = 0; gbc.gridy = 2;
-            formPanel.add(new JLabel("Author:"), gbc);
-            gbc.gridx = 1; gbc.gridy = 2;
-            authorField = new JTextField(20);
-            formPanel.add(authorField, gbc);
+        /**
+         * Replays one segment file and returns it opened for appending, with any damaged tail cut off.
+         * Entries at or below an LSN already replayed are skipped, in case a rotation was interrupted
+         * after copying entries into the retired segment.
+         */
+        private static FileChannel replaySegment(Path path, Replayer replayer, long[] lastLsn) throws IOException {
+            long goodLength = 0;
+            if (Files.exists(path)) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                    while (true) {
+                        byte[] payload = readEntry(in);
+                        if (payload == null) {
+                            break;
+                        }
+                        DataInputStream entry = new DataInputStream(new ByteArrayInputStream(payload));
+                        long lsn = entry.readLong();
+                        if (lsn > lastLsn[1]) {
+                            replay(lsn, entry.readByte(), entry, replayer);
+                            lastLsn[1] = lsn;
+                            if (lastLsn[2] == 0) lastLsn[2] = lsn;
+                        }
+                        lastLsn[0] = Math.max(lastLsn[0], lsn);
+                        goodLength += 8 + payload.length;
+                    }
+                }
+            }
 
-            // Publisher
-            gbc.gridx = 0; gbc.gridy = 3;
-            formPanel.add(new JLabel("Publisher:"), gbc);
-            gbc.gridx = 1; gbc.gridy = 3;
-            publisherField = new JTextField(20);
-            formPanel.add(publisherField, gbc);
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.size() > goodLength) {
+                System.out.println("Discarding " + (channel.size() - goodLength) + " damaged bytes at the end of " + path.getFileName() + ".");
+                channel.truncate(goodLength);
+            }
+            channel.position(goodLength);
+            return channel;
+        }
 
-            // Quantity
-            gbc.gridx = 0; gbc.gridy = 4;
-            formPanel.add(new JLabel("Quantity:"), gbc);
-            gbc.gridx = 1; gbc.gridy = 4;
-            quantityField = new JTextField(20);
-            formPanel.add(quantityField, gbc);
+        /**
+         * Reads one framed entry. Returns null at the end of the file or at the first torn/corrupt entry.
+         */
+        private static byte[] readEntry(DataInputStream in) throws IOException {
+            try {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 9 || length > MAX_ENTRY_SIZE) {
+                    return null;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                return (int) crc.getValue() == checksum ? payload : null;
+            } catch (EOFException e) {
+                return null;
+            }
+        }
 
-            add(formPanel, BorderLayout.CENTER);
+        private static void replay(long lsn, byte type, DataInputStream in, Replayer replayer) throws IOException {
+            switch (type) {
+                case BOOK_PUT:
+                    replayBookPut(lsn, in, replayer);
+                    break;
+                case BOOK_DELETE:
+                    replayer.bookDeleted(lsn, in.readUTF());
+                    break;
+                case MEMBER_PUT:
+                    replayer.memberPut(lsn, in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF());
+                    break;
+                case MEMBER_DELETE:
+                    replayer.memberDeleted(lsn, in.readUTF());
+                    break;
+                case ISSUE:
+                    replayer.issued(lsn, in.readLong(), in.readUTF(), in.readUTF(), in.readLong(), in.readLong(), in.readLong());
+                    break;
+                case RETURN:
+                    replayer.returned(lsn, in.readLong(), in.readUTF(), in.readLong());
+                    break;
+                case HOLD_PLACE:
+                    replayer.holdPlaced(lsn, in.readLong(), in.readUTF(), in.readUTF(), in.readLong());
+                    break;
+                case HOLD_READY:
+                    replayer.holdReady(lsn, in.readLong(), in.readLong(), in.readLong());
+                    break;
+                case HOLD_END:
+                    replayer.holdEnded(lsn, in.readLong(), Hold.Status.values()[in.readByte()]);
+                    break;
+                case BATCH:
+                    // Every entry of the batch has the batch's LSN
+                    for (int count = in.readInt(); count > 0; count--) {
+                        byte entryType = in.readByte();
+                        if (entryType == BATCH) {
+                            throw new IOException("Nested batch in journal entry at LSN " + lsn);
+                        }
+                        replay(lsn, entryType, in, replayer);
+                    }
+                    break;
+                default:
+                    throw new IOException("Unknown journal entry type " + type + " at LSN " + lsn);
+            }
+        }
 
-            // --- Pre-fill data if updating ---
-            if (bookToUpdate != null) {
-                idField.setText(bookToUpdate.getId());
-                idField.setEditable(false); // Can't change ID
-                titleField.setText(bookToUpdate.getTitle());
-                authorField.setText(bookToUpdate.getAuthor());
-                publisherField.setText(bookToUpdate.getPublisher());
-                quantityField.setText(String.valueOf(bookToUpdate.getQuantity()));
+        private static void replayBookPut(long lsn, DataInputStream in, Replayer replayer) throws IOException {
+            String id = in.readUTF();
+            String title = in.readUTF();
+            String author = in.readUTF();
+            String publisher = in.readUTF();
+            long[] barcodes = new long[in.readInt()];
+            for (int i = 0; i < barcodes.length; i++) {
+                barcodes[i] = in.readLong();
+            }
+            replayer.bookPut(lsn, id, title, author, publisher, barcodes);
+        }
+
+        /**
+         * Appends the entry for a change event, if it is one the journal keeps (see
+         * {@link LibraryService#announce}).
+         */
+        public void record(Object event) {
+            if (event instanceof BookChanged) {
+                BookChanged e = (BookChanged) event;
+                if (e.getType() == ChangeType.DELETED) bookDeleted(e.getBook().getId());
+                else bookPut(e.getBook());
+            } else if (event instanceof MemberChanged) {
+                MemberChanged e = (MemberChanged) event;
+                if (e.getType() == ChangeType.DELETED) memberDeleted(e.getMember().getId());
+                else memberPut(e.getMember());
+            } else if (event instanceof BookIssued) {
+                issued(((BookIssued) event).getRecord());
+            } else if (event instanceof BookReturned) {
+                returned(((BookReturned) event).getRecord());
+            } else if (event instanceof HoldChanged) {
+                HoldChanged e = (HoldChanged) event;
+                holdChanged(e.getHold(), e.getStatus());
+            }
+        }
+
+        // --- Appending ---
+
+        public void bookPut(Book book) {
+            append(BOOK_PUT, out -> {
+                out.writeUTF(book.getId());
+                out.writeUTF(book.getTitle());
+                out.writeUTF(book.getAuthor());
+                out.writeUTF(book.getPublisher());
+                long[] barcodes = book.getBarcodes();
+                out.writeInt(barcodes.length);
+                for (long barcode : barcodes) {
+                    out.writeLong(barcode);
+                }
+            });
+        }
+
+        public void bookDeleted(String bookId) {
+            append(BOOK_DELETE, out -> out.writeUTF(bookId));
+        }
+
+        public void memberPut(Member member) {
+            append(MEMBER_PUT, out -> {
+                out.writeUTF(member.getId());
+                out.writeUTF(member.getName());
+                out.writeUTF(member.getEmail());
+                out.writeUTF(member.getContact());
+            });
+        }
+
+        public void memberDeleted(String memberId) {
+            append(MEMBER_DELETE, out -> out.writeUTF(memberId));
+        }
+
+        public void issued(IssueRecord record) {
+            append(ISSUE, out -> {
+                out.writeLong(record.getIssueId());
+                out.writeUTF(record.getBookId());
+                out.writeUTF(record.getMemberId());
+                out.writeLong(record.getIssueDate().getTime());
+                out.writeLong(record.getDueDate().getTime());
+                out.writeLong(record.getBarcode());
+            });
+        }
+
+        public void returned(IssueRecord record) {
+            append(RETURN, out -> {
+                out.writeLong(record.getIssueId());
+                out.writeUTF(record.getBookId()); // Lets replay fix the book's count even if the record is gone
+                out.writeLong(record.getReturnDate().getTime());
+            });
+        }
+
+        public void holdChanged(Hold hold, Hold.Status status) {
+            switch (status) {
+                case WAITING:
+                    append(HOLD_PLACE, out -> {
+                        out.writeLong(hold.getHoldId());
+                        out.writeUTF(hold.getBookId());
+                        out.writeUTF(hold.getMemberId());
+                        out.writeLong(hold.getPlacedDate().getTime());
+                    });
+                    break;
+                case READY:
+                    append(HOLD_READY, out -> {
+                        out.writeLong(hold.getHoldId());
+                        out.writeLong(hold.getExpiryDate().getTime());
+                        out.writeLong(hold.getBarcode());
+                    });
+                    break;
+                default:
+                    append(HOLD_END, out -> {
+                        out.writeLong(hold.getHoldId());
+                        out.writeByte(status.ordinal());
+                    });
+                    break;
+            }
+        }
+
+        /**
+         * Holds back the entries this thread appends from now on until {@link #endBatch()}, which
+         * writes them as one entry: after a crash either all of them are replayed or none are.
+         * Other threads' entries go ahead meanwhile, so the caller should hold whatever locks keep
+         * them from depending on the batch.
+         */
+        public void beginBatch() {
+            if (batch.get() != null) {
+                throw new IllegalStateException("A batch is already open on this thread");
+            }
+            batch.set(new Batch());
+        }
+
+        /**
+         * Appends the entries held back since {@link #beginBatch()} as one entry, if there were any.
+         */
+        public void endBatch() {
+            Batch ended = batch.get();
+            batch.remove();
+            if (ended != null && ended.count > 0) {
+                append(BATCH, out -> {
+                    out.writeInt(ended.count);
+                    ended.bytes.writeTo(out);
+                });
+            }
+        }
+
+        private void append(byte type, Fields fields) {
+            Batch open = batch.get();
+            if (open == null) {
+                appendEntry(type, fields);
+                return;
+            }
+            try {
+                open.out.writeByte(type);
+                fields.write(open.out);
+                open.count++;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // Can't happen with in-memory streams
+            }
+        }
+
+        private synchronized void appendEntry(byte type, Fields fields) {
+            if (closed) {
+                throw new IllegalStateException("Journal is closed");
+            }
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+                DataOutputStream out = new DataOutputStream(bytes);
+                long lsn = nextLsn++;
+                out.writeLong(lsn);
+                out.writeByte(type);
+                fields.write(out);
+
+                byte[] payload = bytes.toByteArray();
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                DataOutputStream frame = new DataOutputStream(pending);
+                frame.writeInt(payload.length);
+                frame.writeInt((int) crc.getValue());
+                frame.write(payload);
+
+                appendedLsn = lsn;
+                size += 8 + payload.length;
+                notifyAll(); // Wake the flusher
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // Can't happen with in-memory streams
+            }
+        }
+
+        // --- Flushing ---
+
+        private void flushLoop() {
+            while (true) {
+                byte[] batch;
+                long batchLsn;
+                FileChannel channel;
+                synchronized (this) {
+                    while (pending.size() == 0 && !closed) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (pending.size() == 0) {
+                        return; // Closed and fully flushed
+                    }
+                    // Take everything appended so far; later appends queue up for the next round
+                    batch = pending.toByteArray();
+                    batchLsn = appendedLsn;
+                    pending.reset();
+                    channel = this.channel;
+                    flushing = true;
+                }
+
+                long start = System.nanoTime();
+                try {
+                    writeFully(channel, batch);
+                    channel.force(false);
+                    metrics.journalFlush.record(start, true);
+                    synchronized (this) {
+                        flushing = false;
+                        durableLsn = Math.max(durableLsn, batchLsn);
+                        signalFlushed();
+                    }
+                } catch (IOException e) {
+                    metrics.journalFlush.record(start, false);
+                    e.printStackTrace();
+                    synchronized (this) {
+                        flushing = false;
+                        failure = e;
+                        signalFlushed();
+                    }
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Blocks until everything appended so far is on disk.
+         */
+        public void sync() throws IOException {
+            long target;
+            synchronized (this) {
+                target = appendedLsn;
+            }
+            while (true) {
+                CompletableFuture<Void> next;
+                synchronized (this) {
+                    if (failure != null) {
+                        throw new IOException("Journal write failed: " + failure.getMessage(), failure);
+                    }
+                    if (durableLsn >= target) {
+                        return;
+                    }
+                    next = flushed;
+                }
+                // Waiting on a future rather than the monitor doesn't pin a virtual thread to its carrier,
+                // so thousands of server requests can wait for the same fsync
+                try {
+                    next.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the journal");
+                } catch (ExecutionException e) {
+                    throw new IOException(e.getCause()); // Never completed exceptionally
+                }
+            }
+        }
+
+        /**
+         * Wakes everything waiting for durableLsn to move. Call while holding the lock.
+         */
+        private void signalFlushed() {
+            flushed.complete(null);
+            flushed = new CompletableFuture<>();
+            notifyAll();
+        }
+
+        /**
+         * Returns the LSN of the last entry appended.
+         */
+        public synchronized long lastLsn() {
+            return nextLsn - 1;
+        }
+
+        /**
+         * Returns the size of the journal in bytes, including entries not yet flushed.
+         */
+        public synchronized long size() {
+            return size;
+        }
+
+        private static void writeFully(FileChannel channel, byte[] bytes) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        /**
+         * Moves every entry appended so far into the retired segment and starts a fresh one, returning
+         * the LSN of the last retired entry. Appends wait while this runs, so a snapshot taken by the
+         * same thread that makes changes lines up exactly with the returned LSN. If a retired segment
+         * is still around from a checkpoint that failed, the entries are added to the end of it.
+         */
+        public synchronized long rotate() throws IOException {
+            while (flushing && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while rotating the journal");
+                }
+            }
+            if (failure != null) {
+                throw new IOException("Journal write failed: " + failure.getMessage(), failure);
+            }
+            // Write out what the flusher hasn't picked up yet, so it lands in the retired segment
+            writeFully(channel, pending.toByteArray());
+            pending.reset();
+            channel.force(false);
+            durableLsn = appendedLsn;
+            signalFlushed();
+
+            if (Files.exists(retiredPath)) {
+                try (FileChannel retired = FileChannel.open(retiredPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                    long copied = 0;
+                    while (copied < channel.size()) {
+                        copied += channel.transferTo(copied, channel.size() - copied, retired);
+                    }
+                    retired.force(false);
+                }
+                channel.truncate(0);
+                channel.position(0);
+                channel.force(true);
+            } else {
+                channel.close();
+                Files.move(path, retiredPath, StandardCopyOption.ATOMIC_MOVE);
+                channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            size = 0;
+            return appendedLsn;
+        }
+
+        /**
+         * Once a checkpoint covering all of the retired segment is safely written, keeps the segment
+         * as the previous one, in place of the segment the checkpoint before needed.
+         */
+        public void keepRetiredAsPrevious() throws IOException {
+            if (Files.exists(retiredPath)) {
+                Files.move(retiredPath, previousPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
             }
+        }
+
+        /**
+         * The LSN of the oldest entry replayed when the journal was opened, or 0 if there were none.
+         */
+        public long firstLsn() {
+            return firstLsn;
+        }
+
+        @Override
+        public void close() throws IOException {
+            sync();
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Replays journal entries on top of the loaded data files. Each file records the last LSN it
+     * already contains, so entries it covers are skipped and replay is safe even if a checkpoint
+     * was interrupted before the journal could be emptied.
+     */
+    static class JournalReplay implements Journal.Replayer {
+        private final long booksLsn, membersLsn, issuesLsn, holdsLsn;
+
+        JournalReplay(long booksLsn, long membersLsn, long issuesLsn, long holdsLsn) {
+            this.booksLsn = booksLsn;
+            this.membersLsn = membersLsn;
+            this.issuesLsn = issuesLsn;
+            this.holdsLsn = holdsLsn;
+        }
+
+        @Override
+        public void bookPut(long lsn, String id, String title, String author, String publisher, long[] barcodes) {
+            if (lsn <= booksLsn) return;
+            Book book = books.get(id);
+            if (book == null) {
+                books.add(new Book(id, title, author, publisher, barcodes));
+            } else {
+                book.setTitle(title);
+                book.setAuthor(author);
+                book.setPublisher(publisher);
+                books.setCopies(book, barcodes); // Every copy is on the shelf until recountIssued()
+            }
+        }
+
+        @Override
+        public void bookDeleted(long lsn, String id) {
+            if (lsn > booksLsn) books.remove(id);
+        }
+
+        @Override
+        public void memberPut(long lsn, String id, String name, String email, String contact) {
+            if (lsn <= membersLsn) return;
+            Member member = members.get(id);
+            if (member == null) {
+                members.add(new Member(id, name, email, contact));
+            } else {
+                member.setName(name);
+                member.setEmail(email);
+                member.setContact(contact);
+            }
+        }
+
+        @Override
+        public void memberDeleted(long lsn, String id) {
+            if (lsn > membersLsn) members.remove(id);
+        }
 
-            // Button Panel
-            JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
-            JButton saveButton = new JButton("Save");
-            saveButton.addActionListener(e -> saveBook());
-            buttonPanel.add(saveButton);
+        // Issued counts aren't replayed one step at a time; see recountIssued()
 
-            JButton cancelButton = new JButton("Cancel");
-            cancelButton.addActionListener(e -> dispose());
-            buttonPanel.add(cancelButton);
+        @Override
+        public void issued(long lsn, long issueId, String bookId, String memberId, long issueMillis, long dueMillis, long barcode) {
+            if (lsn > issuesLsn) {
+                issueRecords.addRekeying(new IssueRecord(issueId, bookId, memberId, new Date(issueMillis), new Date(dueMillis), null, barcode));
+            }
+        }
 
-            add(buttonPanel, BorderLayout.SOUTH);
+        @Override
+        public void returned(long lsn, long issueId, String bookId, long returnMillis) {
+            if (lsn > issuesLsn) {
+                IssueRecord record = issueRecords.getOpen(issueId);
+                if (record != null) issueRecords.markReturned(record, new Date(returnMillis));
+            }
         }
 
-        private void saveBook() {
-            // --- 1. Get Data ---
-            String id = idField.getText().trim();
-            String title = titleField.getText().trim();
-            String author = authorField.getText().trim();
-            String publisher = publisherField.getText().trim();
-            String quantityStr = quantityField.getText().trim();
+        @Override
+        public void holdPlaced(long lsn, long holdId, String bookId, String memberId, long placedMillis) {
+            if (lsn > holdsLsn) {
+                holds.add(new Hold(holdId, bookId, memberId, new Date(placedMillis), null));
+            }
+        }
 
-            // --- 2. Validate Data ---
-            if (id.isEmpty() || title.isEmpty() || author.isEmpty() || quantityStr.isEmpty()) {
-                JOptionPane.showMessageDialog(this, "All fields are required.", "Validation Error", JOptionPane.ERROR_MESSAGE);
-                return;
+        @Override
+        public void holdReady(long lsn, long holdId, long expiryMillis, long barcode) {
+            Hold hold = lsn > holdsLsn ? holds.get(holdId) : null;
+            if (hold != null && hold.getStatus() == Hold.Status.WAITING) {
+                holds.setReady(hold, new Date(expiryMillis), barcode);
             }
+        }
 
-            int quantity;
-            try {
-                quantity = Integer.parseInt(quantityStr);
-                if (quantity < 0) throw new NumberFormatException();
-            } catch (NumberFormatException e) {
-                JOptionPane.showMessageDialog(this, "Quantity must be a valid positive number.", "Validation Error", JOptionPane.ERROR_MESSAGE);
-                return;
+        @Override
+        public void holdEnded(long lsn, long holdId, Hold.Status status) {
+            Hold hold = lsn > holdsLsn ? holds.get(holdId) : null;
+            if (hold != null) {
+                holds.end(hold, status);
             }
+        }
 
-            // --- 3. Save Data (Add vs Update) ---
-            if (bookToUpdate == null) {
-                // --- ADD NEW BOOK ---
-                // Check for duplicate ID
-                if (books.stream().anyMatch(b -> b.getId().equalsIgnoreCase(id))) {
-                    JOptionPane.showMessageDialog(this, "Book ID already exists.", "Validation Error", JOptionPane.ERROR_MESSAGE);
-                    return;
+        /**
+         * Takes off the shelf every copy out on loan or set aside for a hold, once replay is done.
+         * Issues and returns of one title made on different threads can reach the journal in either
+         * order, so the copies aren't moved entry by entry; the set of open loans comes out the same
+         * in any order. Loans from the .ser files, which predate barcodes, and loans and holds whose
+         * copy is gone are given a copy from the shelf. Returns true if any were handed out here, so
+         * the data files need writing again.
+         */
+        boolean recountIssued() {
+            boolean assigned = false;
+            for (Book book : books) {
+                books.setCopies(book, book.getBarcodes()); // Back to every copy on the shelf
+            }
+            for (IssueRecord record : issueRecords.openLoans()) {
+                Book book = books.get(record.getBookId());
+                if (book != null && !book.issueBook(books.copy(record.getBarcode()))) {
+                    Copy copy = book.issueBook();
+                    if (copy != null) {
+                        issueRecords.setBarcode(record, copy.getBarcode());
+                        assigned = true;
+                    }
                 }
-
-                Book newBook = new Book(id, title, author, publisher, quantity);
-                books.add(newBook);
-
-            } else {
-                // --- UPDATE EXISTING BOOK ---
-                // Can't update quantity if it's less than currently issued
-                if (quantity < bookToUpdate.getIssued()) {
-                    JOptionPane.showMessageDialog(this, "Quantity cannot be set lower than the number of currently issued books (" + bookToUpdate.getIssued() + ").", "Validation Error", JOptionPane.ERROR_MESSAGE);
-                    return;
+            }
+            for (Hold hold : holds.ready()) {
+                Book book = books.get(hold.getBookId());
+                if (book != null && !book.setAsideCopy(books.copy(hold.getBarcode()))) {
+                    Copy copy = book.setAsideCopy();
+                    if (copy != null) {
+                        hold.setBarcode(copy.getBarcode());
+                        assigned = true;
+                    }
                 }
-                bookToUpdate.setTitle(title);
-                bookToUpdate.setAuthor(author);
-                bookToUpdate.setPublisher(publisher);
-                bookToUpdate.setQuantity(quantity);
             }
+            return assigned;
+        }
+    }
 
-            bookAdded = true;
-            JOptionPane.showMessageDialog(this, "Book saved successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
-            dispose(); // Close the dialog
+    // =================================================================================
+    // --- Background Persistence ---
+    // =================================================================================
+
+    /**
+     * A consistent copy of the library at one journal LSN. Books, members and open loans change in
+     * place, so they are copied; closed loans aren't, since the archive only ever grows and its length
+     * at the time pins it down. The copy can then be written out on another thread while editing carries on.
+     */
+    static final class LibrarySnapshot {
+        final long lsn;
+        final ArrayList<Book> books;
+        final ArrayList<Member> members;
+        final ArrayList<IssueRecord> issues;
+        final long archived;
+        final ArrayList<Hold> holds;
+
+        private LibrarySnapshot(long lsn, ArrayList<Book> books, ArrayList<Member> members,
+                                ArrayList<IssueRecord> issues, long archived, ArrayList<Hold> holds) {
+            this.lsn = lsn;
+            this.books = books;
+            this.members = members;
+            this.issues = issues;
+            this.archived = archived;
+            this.holds = holds;
         }
 
         /**
-         * Used by the parent panel to check if it needs to refresh.
+         * Copies the stores and rotates the journal at the same point, so the snapshot holds exactly
+         * the entries up to the returned LSN. Changes wait meanwhile; this can run on any thread.
          */
-        public boolean isBookAdded() {
-            return bookAdded;
+        static LibrarySnapshot take() throws IOException {
+            Lock lock = service.changesBlocked();
+            lock.lock();
+            try {
+                return copy();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private static LibrarySnapshot copy() throws IOException {
+            // The stores are qualified because this class's own fields share their names
+            ArrayList<Book> bookCopies = new ArrayList<>(LibraryManagementSystem.books.size());
+            for (Book book : LibraryManagementSystem.books) {
+                bookCopies.add(book.copy());
+            }
+            ArrayList<Member> memberCopies = new ArrayList<>(LibraryManagementSystem.members.size());
+            for (Member member : LibraryManagementSystem.members) {
+                memberCopies.add(member.copy());
+            }
+            ArrayList<IssueRecord> issueCopies = issueRecords.checkpointRecords();
+            long archived = issueRecords.archivedCount();
+            ArrayList<Hold> holdCopies = LibraryManagementSystem.holds.checkpointRecords();
+            long lsn = journal.rotate();
+            return new LibrarySnapshot(lsn, bookCopies, memberCopies, issueCopies, archived, holdCopies);
+        }
+
+        int size() {
+            return books.size() + members.size() + issues.size() + holds.size();
         }
     }
 
     /**
-     * A modal dialog for adding a new member or updating an existing one.
+     * Tells the user which entities a store left out on loading because their IDs were taken, so
+     * they aren't lost without a trace (they won't be in the next checkpoint).
      */
-    static class AddMemberDialog extends JDialog {
-        private final JTextField idField, nameField, emailField, contactField;
-        private boolean memberAdded = false;
-        private final Member memberToUpdate; // Null if adding new
-
-        // Constructor for Adding
-        public AddMemberDialog() {
-            this(null);
+    private static <T> void reportDropped(String kind, Repository<T> store, List<T> dropped) {
+        if (dropped.isEmpty()) {
+            return;
+        }
+        List<String> ids = new ArrayList<>();
+        for (T item : dropped) {
+            ids.add("\"" + store.idOf(item) + "\"");
         }
+        showLoadError(dropped.size() + " " + kind + (dropped.size() == 1 ? " was" : "s were")
+                + " not loaded because another " + kind + " already has the same ID (IDs ignore case and"
+                + " surrounding spaces): " + String.join(", ", ids));
+    }
 
-        // Constructor for Updating
-        public AddMemberDialog(Member member) {
-            this.memberToUpdate = member;
+    /**
+     * Saves on a background thread so the GUI never waits for the disk. A save flushes the journal
+     * and, once the journal has grown past {@link #CHECKPOINT_THRESHOLD}, writes a checkpoint from a
+     * {@link LibrarySnapshot}. A request made while an earlier one is still queued shares it, so
+     * clicking "Save Data" repeatedly doesn't pile up saves.
+     */
+    static final class PersistenceService {
+        /**
+         * Receives progress on the EDT: a percentage from 0 to 100 and a short description.
+         */
+        interface ProgressListener {
+            void progress(int percent, String message);
+        }
 
-            setTitle(member == null ? "Add New Member" : "Update Member");
-            setSize(450, 250);
-            setLocationRelativeTo(null);
-            setModal(true);
+        private final ExecutorService executor = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "persistence");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final List<ProgressListener> listeners = new CopyOnWriteArrayList<>();
+        private CompletableFuture<Void> queued; // Guarded by 'this': a save that hasn't started yet
 
-            setLayout(new BorderLayout(10, 10));
+        public void addProgressListener(ProgressListener listener) {
+            listeners.add(listener);
+        }
 
-            // Form Panel
-            JPanel formPanel = new JPanel(new GridBagLayout());
-            formPanel.setBorder(new EmptyBorder(10, 10, 10, 10));
-            GridBagConstraints gbc = new GridBagConstraints();
-            gbc.insets = new Insets(5, 5, 5, 5);
-            gbc.fill = GridBagConstraints.HORIZONTAL;
+        /**
+         * Queues a save, or joins the one already waiting to start. The future completes on the
+         * persistence thread once everything changed before this call is on disk.
+         */
+        public synchronized CompletableFuture<Void> requestSave() {
+            if (queued == null) {
+                CompletableFuture<Void> save = new CompletableFuture<>();
+                queued = save;
+                executor.execute(() -> run(save));
+            }
+            return queued;
+        }
 
-            // ID
-            gbc.gridx = 0; gbc.gridy = 0;
-            formPanel.add(new JLabel("Member ID (e.g., M-101):"), gbc);
-            gbc.gridx = 1; gbc.gridy = 0; gbc.weightx = 1.0;
-            idField = new JTextField(20);
-            formPanel.add(idField, gbc);
+        private void run(CompletableFuture<Void> save) {
+            synchronized (this) {
+                queued = null; // Changes made from now on need another save
+            }
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            try {
+                report(0, "Flushing journal...");
+                journal.sync();
+                if (journal.size() >= CHECKPOINT_THRESHOLD) {
+                    report(5, "Taking snapshot...");
+                    LibrarySnapshot snapshot = LibrarySnapshot.take();
+                    writeCheckpoint(snapshot, this::report);
+                }
+                report(100, "All changes saved");
+                succeeded = true;
+                save.complete(null);
+            } catch (Exception e) {
+                e.printStackTrace();
+                report(0, "Save failed");
+                save.completeExceptionally(e);
+            } finally {
+                metrics.save.record(start, succeeded);
+            }
+        }
 
-            // Name
-            gbc.gridx = 0; gbc.gridy = 1; gbc.weightx = 0;
-            formPanel.add(new JLabel("Name:"), gbc);
-            gbc.gridx = 1; gbc.gridy = 1;
-            nameField = new JTextField(20);
-            formPanel.add(nameField, gbc);
+        private void report(int percent, String message) {
+            SwingUtilities.invokeLater(() -> {
+                for (ProgressListener listener : listeners) {
+                    listener.progress(percent, message);
+                }
+            });
+        }
+    }
 
-            // Email
-            gbc.gridx = 0; gbc.gridy = 2;
-            formPanel.add(new JLabel("Email:"), gbc);
-            gbc.gridx = 1; gbc.gridy = 2;
-            emailField = new JTextField(20);
-            formPanel.add(emailField, gbc);
+    // =================================================================================
+    // --- Data Persistence ---
+    // =================================================================================
 
-            // Contact
-            gbc.gridx = 0; gbc.gridy = 3;
-            formPanel.add(new JLabel("Contact No.:"), gbc);
-            gbc.gridx = 1; gbc.gridy = 3;
-            contactField = new JTextField(20);
-            formPanel.add(contactField, gbc);
+    /**
+     * Makes all changes durable in the background. Every change is already in the journal, so this
+     * normally just waits for it to reach the disk; only once the journal has grown large is it
+     * folded into a fresh checkpoint.
+     */
+    public static CompletableFuture<Void> saveData() {
+        return persistence.requestSave();
+    }
 
-            add(formPanel, BorderLayout.CENTER);
+    /**
+     * Saves a snapshot to the .dat files, each stamped with the LSN of the last journal entry it
+     * includes, and then retires the journal segment the snapshot covers. Runs on any thread.
+     */
+    private static void writeCheckpoint(LibrarySnapshot snapshot, PersistenceService.ProgressListener progress) throws IOException {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            // Closed loans are already in the history file; make sure it is on disk
+            issueRecords.forceArchive();
+            int[] written = {0};
+            int total = Math.max(1, snapshot.size());
+            BinaryCodec.writeFile(BOOKS_FILE, BinaryCodec.BOOKS, snapshot.lsn, 0, snapshot.books,
+                    counting(BinaryCodec::writeBook, written, total, progress));
+            BinaryCodec.writeFile(MEMBERS_FILE, BinaryCodec.MEMBERS, snapshot.lsn, 0, snapshot.members,
+                    counting(BinaryCodec::writeMember, written, total, progress));
+            BinaryCodec.writeFile(ISSUES_FILE, BinaryCodec.ISSUES, snapshot.lsn, snapshot.archived, snapshot.issues,
+                    counting(BinaryCodec::writeIssue, written, total, progress));
+            BinaryCodec.writeFile(HOLDS_FILE, BinaryCodec.HOLDS, snapshot.lsn, 0, snapshot.holds,
+                    counting(BinaryCodec::writeHold, written, total, progress));
+            journal.keepRetiredAsPrevious();
+            succeeded = true;
+            System.out.println("Checkpoint written at LSN " + snapshot.lsn + ".");
+        } finally {
+            metrics.checkpoint.record(start, succeeded);
+        }
+    }
 
-            // Pre-fill data if updating
-            if (memberToUpdate != null) {
-                idField.setText(memberToUpdate.getId());
-                idField.setEditable(false);
-                nameField.setText(memberToUpdate.getName());
-                emailField.setText(memberToUpdate.getEmail());
-                contactField.setText(memberToUpdate.getContact());
+    /**
+     * Wraps a record writer so it reports checkpoint progress every few thousand records.
+     */
+    private static <T> BinaryCodec.RecordWriter<T> counting(BinaryCodec.RecordWriter<T> writer, int[] written, int total,
+                                                            PersistenceService.ProgressListener progress) {
+        return (out, item) -> {
+            writer.write(out, item);
+            if (++written[0] % 4096 == 0) {
+                progress.progress(5 + (int) (90L * written[0] / total), "Writing checkpoint...");
             }
+        };
+    }
 
-            // Button Panel
-            JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
-            JButton saveButton = new JButton("Save");
-            saveButton.addActionListener(e -> saveMember());
-            buttonPanel.add(saveButton);
+    /**
+     * Loads all data lists from their .dat files, then replays the journal on top of them.
+     * If only the old .ser files exist, they are read once and converted to .dat files.
+     * If no files are found (e.g., first run), it starts with empty lists.
+     */
+    public static void loadData() {
+        long start = System.nanoTime();
+        boolean loaded = true; // False if the data files couldn't be read, so they must not be overwritten
+        try {
+            issueRecords.openArchive(HISTORY_FILE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            showLoadError("Error opening loan history: " + e.getMessage() + "\nThe application will now exit.");
+            System.exit(1);
+        }
 
-            JButton cancelButton = new JButton("Cancel");
-            cancelButton.addActionListener(e -> dispose());
-            buttonPanel.add(cancelButton);
+        long booksLsn = 0, membersLsn = 0, issuesLsn = 0, holdsLsn = 0;
+        boolean migrate = false;
+        boolean fellBack = false;
+        try {
+            if (BinaryCodec.exists(BOOKS_FILE)) {
+                // The files are independent, so they are read, decoded and indexed side by side, and
+                // each store (with its table) fills in as soon as its own file is done
+                CompletableFuture<BinaryCodec.Loaded<Book>> booksRead = CompletableFuture.supplyAsync(() -> {
+                    BinaryCodec.Loaded<Book> read = readDataFile(BOOKS_FILE, BinaryCodec.BOOKS, BinaryCodec::readBook, 0);
+                    reportDropped("book", books, books.replaceAll(read.items));
+                    return read;
+                });
+                CompletableFuture<BinaryCodec.Loaded<Member>> membersRead = CompletableFuture.supplyAsync(() -> {
+                    BinaryCodec.Loaded<Member> read = readDataFile(MEMBERS_FILE, BinaryCodec.MEMBERS, BinaryCodec::readMember, 0);
+                    reportDropped("member", members, members.replaceAll(read.items));
+                    return read;
+                });
+                CompletableFuture<BinaryCodec.Loaded<IssueRecord>> issuesRead = CompletableFuture.supplyAsync(() -> {
+                    // If issues.dat is lost, keep the loan history file as it is rather than emptying it too
+                    BinaryCodec.Loaded<IssueRecord> read = readDataFile(ISSUES_FILE, BinaryCodec.ISSUES, BinaryCodec::readIssue,
+                            issueRecords.archivedCount());
+                    try {
+                        issueRecords.load(read.items, read.archived);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return read;
+                });
+                // Files from before holds existed have no holds.dat; there were none to save then
+                BinaryCodec.Loaded<Hold> loadedHolds = BinaryCodec.exists(HOLDS_FILE)
+                        ? readDataFile(HOLDS_FILE, BinaryCodec.HOLDS, BinaryCodec::readHold, 0) : null;
+                BinaryCodec.Loaded<Book> loadedBooks = await(booksRead);
+                BinaryCodec.Loaded<Member> loadedMembers = await(membersRead);
+                BinaryCodec.Loaded<IssueRecord> loadedIssues = await(issuesRead);
+                booksLsn = loadedBooks.lsn;
+                membersLsn = loadedMembers.lsn;
+                issuesLsn = loadedIssues.lsn;
+                holds.load(loadedHolds != null ? loadedHolds.items : Collections.emptyList());
+                holdsLsn = loadedHolds != null ? loadedHolds.lsn : issuesLsn;
+                fellBack = loadedBooks.recovered || loadedMembers.recovered || loadedIssues.recovered
+                        || loadedHolds != null && loadedHolds.recovered;
+                // After falling back on a previous copy, write fresh files from what was recovered
+                migrate = fellBack;
+
+                System.out.println("Data loaded successfully.");
+
+            } else if (Files.exists(Paths.get(LEGACY_BOOKS_FILE))) {
+                loadLegacyData(); // From before the journal, so every entry in it is replayed on top
+                migrate = true;
 
-            add(buttonPanel, BorderLayout.SOUTH);
+            } else {
+                System.out.println("No save data found. Starting with empty lists.");
+                // This is normal on first run; the journal may still hold changes made since
+                issueRecords.load(Collections.emptyList(), 0);
+                holds.load(Collections.emptyList());
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            e.printStackTrace();
+            showLoadError("Error loading data: " + e.getMessage() + "\nStarting with empty lists.");
+            // On corruption, restart with empty lists
+            loaded = false;
+            books.clear();
+            members.clear();
+            issueRecords.clear();
+            holds.load(Collections.emptyList());
+            booksLsn = membersLsn = issuesLsn = holdsLsn = 0;
+            migrate = false;
         }
 
-        private void saveMember() {
-            String id = idField.getText().trim();
-            String name = nameField.getText().trim();
-            String email = emailField.getText().trim();
-            String contact = contactField.getText().trim();
-
-            if (id.isEmpty() || name.isEmpty() || email.isEmpty() || contact.isEmpty()) {
-                JOptionPane.showMessageDialog(this, "All fields are required.", "Validation Error", JOptionPane.ERROR_MESSAGE);
-                return;
+        try {
+            JournalReplay replay = new JournalReplay(booksLsn, membersLsn, issuesLsn, holdsLsn);
+            // A previous copy of a data file needs the previous journal segment replayed too
+            long newestLsn = Math.max(Math.max(booksLsn, membersLsn), Math.max(issuesLsn, holdsLsn));
+            journal = Journal.open(JOURNAL_FILE, newestLsn, replay, fellBack);
+            boolean copiesAssigned = replay.recountIssued();
+            migrate |= loaded && copiesAssigned;
+            int rekeyed = issueRecords.rekeyedCount();
+            if (rekeyed > 0) {
+                // Save the new IDs, so they are what the journal refers to from now on
+                System.out.println("Gave " + rekeyed + " loans that shared an issue ID with another a new one.");
+                migrate |= loaded;
+            }
+            // Never hand out an issue ID that is already taken, e.g. after the clock has been set back
+            IssueRecord.advanceIdsPast(issueRecords.maxIssueId());
+            System.out.println("Journal replayed up to LSN " + journal.lastLsn() + ".");
+            long oldestLsn = Math.min(Math.min(booksLsn, membersLsn), Math.min(issuesLsn, holdsLsn));
+            if (fellBack && journal.firstLsn() > oldestLsn + 1) {
+                showLoadError("The journal no longer reaches back to the previous copy of the data, so changes from LSN "
+                        + (oldestLsn + 1) + " to " + (journal.firstLsn() - 1) + " could not be recovered.");
             }
+        } catch (IOException e) {
+            e.printStackTrace();
+            // Without a journal nothing would be saved, so don't let the user start editing
+            showLoadError("Error opening journal: " + e.getMessage() + "\nThe application will now exit.");
+            System.exit(1);
+        }
 
-            // TODO: Add email validation
+        // Build the search indexes once, side by side, then keep them in step with every change
+        CompletableFuture<Void> bookIndexBuilt = CompletableFuture.runAsync(() -> bookSearch.rebuild(books));
+        memberSearch.rebuild(members);
+        bookIndexBuilt.join();
+        events.subscribe(BookChanged.class, e -> bookSearch.apply(e.getBook(), e.getType()));
+        events.subscribe(MemberChanged.class, e -> memberSearch.apply(e.getMember(), e.getType()));
+
+        // Likewise order the open loans by due date, and start watching for the next one to fall due
+        overdue.rebuild(issueRecords.openLoans());
+        events.subscribe(BookIssued.class, e -> overdue.add(e.getRecord()));
+        events.subscribe(BookReturned.class, e -> overdue.remove(e.getRecord()));
+
+        // Add each loan's fine as it comes back and count each loan on the home panel as it goes out, and
+        // do the same for the loans already made in the background, so the window doesn't wait for a pass
+        // over the whole history. Nothing is issued or returned until loading is done, so every loan
+        // falls either in the cut taken here or after it, and is counted once
+        if (tallyHistory) {
+            IssueRepository.Cut history = issueRecords.cut();
+            events.subscribe(BookReturned.class, e -> fines.returned(e.getRecord()));
+            events.subscribe(BookIssued.class, e -> stats.issued(e.getRecord()));
+            historyTallied = CompletableFuture.runAsync(() -> {
+                fines.rebuild(history);
+                stats.rebuild(history);
+            }).exceptionally(e -> {
+                e.printStackTrace();
+                return null;
+            });
+        }
 
-            if (memberToUpdate == null) {
-                // --- ADD NEW ---
-                if (members.stream().anyMatch(m -> m.getId().equalsIgnoreCase(id))) {
-                    JOptionPane.showMessageDialog(this, "Member ID already exists.", "Validation Error", JOptionPane.ERROR_MESSAGE);
-                    return;
-                }
-                Member newMember = new Member(id, name, email, contact);
-                members.add(newMember);
+        // Holds not collected in time pass to the next member; this also catches any that lapsed while closed
+        service.startHoldSweeper();
+        metrics.load.record(start, loaded);
+        metrics.registerMBean();
 
-            } else {
-                // --- UPDATE ---
-                memberToUpdate.setName(name);
-                memberToUpdate.setEmail(email);
-                memberToUpdate.setContact(contact);
+        if (migrate) {
+            try {
+                writeCheckpoint(LibrarySnapshot.take(), (percent, message) -> {});
+                System.out.println(fellBack ? "Rewrote the data files from the recovered data." : "Converted the data files to the current format.");
+            } catch (IOException e) {
+                // The .ser files and journal are untouched, so the next start simply tries again
+                e.printStackTrace();
             }
-
-            memberAdded = true;
-            JOptionPane.showMessageDialog(this, "Member saved successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
-            dispose();
         }
+    }
 
-        public boolean isMemberAdded() {
-            return memberAdded;
+    /**
+     * Reads one data file, falling back on its previous copy (see {@link BinaryCodec#readLatest}).
+     * If no copy can be read, they are set aside for recovery by hand, the user is told, and the
+     * store starts from whatever the journal holds; the other stores still load, so nothing readable
+     * is thrown away.
+     */
+    private static <T> BinaryCodec.Loaded<T> readDataFile(String file, byte kind, BinaryCodec.RecordReader<T> reader,
+                                                          long archivedIfLost) {
+        try {
+            return BinaryCodec.readLatest(file, kind, reader);
+        } catch (IOException e) {
+            e.printStackTrace();
+            String kept = "";
+            try {
+                if (BinaryCodec.setAside(file)) {
+                    kept = "\nWhat was there has been kept as " + file + ".damaged.";
+                }
+            } catch (IOException moveFailed) {
+                moveFailed.printStackTrace();
+            }
+            showLoadError("Error loading " + file + ": " + e.getMessage() + kept
+                    + "\nIt starts empty, apart from any changes the journal still holds.");
+            return new BinaryCodec.Loaded<>(new ArrayList<>(), 0, archivedIfLost, true);
         }
     }
 
+    /**
+     * Waits for a loading task, rethrowing an I/O failure inside it as the IOException it was.
+     */
+    private static <T> T await(CompletableFuture<T> task) throws IOException {
+        try {
+            return task.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
 
-    // =================================================================================
-    // --- Data Persistence (Serialization) ---
-    // =================================================================================
+    /**
+     * Tells the user loading went wrong: in a dialog, or on stderr when running without the GUI.
+     * Loading runs off the EDT, so the dialog is shown there and this waits until it is dismissed.
+     */
+    private static void showLoadError(String message) {
+        if (headlessMode || GraphicsEnvironment.isHeadless()) {
+            System.err.println("Load error: " + message);
+        } else if (SwingUtilities.isEventDispatchThread()) {
+            JOptionPane.showMessageDialog(null, message, "Load Error", JOptionPane.ERROR_MESSAGE);
+        } else {
+            try {
+                SwingUtilities.invokeAndWait(() -> showLoadError(message));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (InvocationTargetException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
     /**
-     * Saves all data lists to their respective .ser files.
+     * Reads the Java-serialized .ser files written by older versions.
      */
-    public static void saveData() {
-        try (ObjectOutputStream oosBooks = new ObjectOutputStream(new FileOutputStream(BOOKS_FILE));
-             ObjectOutputStream oosMembers = new ObjectOutputStream(new FileOutputStream(MEMBERS_FILE));
-             ObjectOutputStream oosIssues = new ObjectOutputStream(new FileOutputStream(ISSUES_FILE))) {
+    @SuppressWarnings("unchecked")
+    private static void loadLegacyData() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream oisBooks = new ObjectInputStream(new BufferedInputStream(new FileInputStream(LEGACY_BOOKS_FILE)));
+             ObjectInputStream oisMembers = new ObjectInputStream(new BufferedInputStream(new FileInputStream(LEGACY_MEMBERS_FILE)));
+             ObjectInputStream oisIssues = new ObjectInputStream(new BufferedInputStream(new FileInputStream(LEGACY_ISSUES_FILE)))) {
 
-            oosBooks.writeObject(books);
-            oosMembers.writeObject(members);
-            oosIssues.writeObject(issueRecords);
+            ArrayList<Book> bookList = (ArrayList<Book>) oisBooks.readObject();
+            ArrayList<Member> memberList = (ArrayList<Member>) oisMembers.readObject();
+            ArrayList<IssueRecord> issueList = (ArrayList<IssueRecord>) oisIssues.readObject();
 
-            System.out.println("Data saved successfully.");
+            shortenLegacyIds(bookList, memberList, issueList);
+            reportDropped("book", books, books.replaceAll(bookList));
+            reportDropped("member", members, members.replaceAll(memberList));
+            issueRecords.load(issueList, 0);
 
-        } catch (IOException e) {
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(null, "Error saving data: " + e.getMessage(), "Save Error", JOptionPane.ERROR_MESSAGE);
+            System.out.println("Legacy data loaded successfully.");
         }
     }
 
     /**
-     * Loads all data lists from their .ser files.
-     * If files are not found (e.g., first run), it does nothing.
+     * Gives the books and members from the .ser files whose IDs are too long for the loan history
+     * (see {@link LoanHistoryFile#fitsId}) a shorter one, moves their loans along, and tells the user
+     * which IDs changed. Those files put no limit on IDs; the library has taken no longer ones since.
      */
-    @SuppressWarnings("unchecked")
-    public static void loadData() {
-        try (ObjectInputStream oisBooks = new ObjectInputStream(new FileInputStream(BOOKS_FILE));
-             ObjectInputStream oisMembers = new ObjectInputStream(new FileInputStream(MEMBERS_FILE));
-             ObjectInputStream oisIssues = new ObjectInputStream(new FileInputStream(ISSUES_FILE))) {
-
-            books = (ArrayList<Book>) oisBooks.readObject();
-            members = (ArrayList<Member>) oisMembers.readObject();
-            issueRecords = (ArrayList<IssueRecord>) oisIssues.readObject();
-
-            System.out.println("Data loaded successfully.");
+    private static void shortenLegacyIds(ArrayList<Book> bookList, ArrayList<Member> memberList, ArrayList<IssueRecord> issueList) {
+        List<String> renamed = new ArrayList<>();
+        Map<String, String> bookIds = shortIds(bookList, Book::getId, renamed);
+        Map<String, String> memberIds = shortIds(memberList, Member::getId, renamed);
+        if (renamed.isEmpty()) {
+            return;
+        }
+        bookList.replaceAll(book -> {
+            String id = bookIds.get(Repository.normalize(book.getId()));
+            return id == null ? book : new Book(id, book.getTitle(), book.getAuthor(), book.getPublisher(), book.getBarcodes());
+        });
+        memberList.replaceAll(member -> {
+            String id = memberIds.get(Repository.normalize(member.getId()));
+            return id == null ? member : new Member(id, member.getName(), member.getEmail(), member.getContact());
+        });
+        issueList.replaceAll(record -> {
+            String bookId = bookIds.getOrDefault(Repository.normalize(record.getBookId()), record.getBookId());
+            String memberId = memberIds.getOrDefault(Repository.normalize(record.getMemberId()), record.getMemberId());
+            return new IssueRecord(record.getIssueId(), bookId, memberId, record.getIssueDate(), record.getDueDate(),
+                    record.getReturnDate(), record.getBarcode());
+        });
+        showLoadError(renamed.size() + " ID" + (renamed.size() == 1 ? " was" : "s were") + " longer than "
+                + LoanHistoryFile.MAX_ID_BYTES + " bytes and had to be shortened: " + String.join(", ", renamed));
+    }
 
-        } catch (FileNotFoundException e) {
-            System.out.println("No save data found. Starting with empty lists.");
-            // This is normal on first run, so we just initialize empty lists (already done)
-        } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(null, "Error loading data: " + e.getMessage() + "\nStarting with empty lists.", "Load Error", JOptionPane.ERROR_MESSAGE);
-            // On corruption, restart with empty lists
-            books = new ArrayList<>();
-            members = new ArrayList<>();
-            issueRecords = new ArrayList<>();
+    /**
+     * Picks a new ID for each item whose own is too long: as much of it as fits with "~" and a
+     * hash of the whole ID after it, taken by no other item. Returns the new IDs by normalized old
+     * ID, and adds '"old" is now "new"' to {@code renamed} for each.
+     */
+    private static <T> Map<String, String> shortIds(List<T> items, Function<T, String> idOf, List<String> renamed) {
+        HashSet<String> taken = new HashSet<>();
+        for (T item : items) {
+            taken.add(Repository.normalize(idOf.apply(item)));
+        }
+        HashMap<String, String> shortened = new HashMap<>();
+        for (T item : items) {
+            String id = idOf.apply(item);
+            if (LoanHistoryFile.fitsId(id) || shortened.containsKey(Repository.normalize(id))) {
+                continue;
+            }
+            String prefix = id.trim();
+            // Leave room for "~" and 8 hex digits
+            while (prefix.getBytes(StandardCharsets.UTF_8).length > LoanHistoryFile.MAX_ID_BYTES - 9) {
+                prefix = prefix.substring(0, prefix.offsetByCodePoints(prefix.length(), -1));
+            }
+            String shortId;
+            int attempt = 0;
+            do {
+                shortId = String.format("%s~%08x", prefix, id.hashCode() + attempt++);
+            } while (!taken.add(Repository.normalize(shortId)));
+            shortened.put(Repository.normalize(id), shortId);
+            renamed.add("\"" + id + "\" is now \"" + shortId + "\"");
         }
+        return shortened;
     }
 }
\ No newline at end of file
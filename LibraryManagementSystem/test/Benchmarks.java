@@ -0,0 +1,342 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * A small benchmark harness for the hot paths, run over synthetic data of each requested size:
+ * <ul>
+ * <li>{@code checkpoint.write} / {@code checkpoint.read}: the .dat files, which is where saveData and loadData spend their time</li>
+ * <li>{@code books.get}: ID lookups</li>
+ * <li>{@code search.typeahead}: a typeahead prefix search</li>
+ * <li>{@code table.refresh}: redrawing a screenful of the books table after a change</li>
+ * <li>{@code stats.rebuild}: counting every book's loans for the home panel, as done once after startup</li>
+ * <li>{@code dashboard.counts}: the counts on the home panel</li>
+ * <li>{@code history.rangeScan}: reading one day's loans back from the history file</li>
+ * <li>{@code fines.batch}: charging late fines for every member over the whole history</li>
+ * <li>{@code report.year} / {@code report.rerun}: a year's circulation report, first run and run again with the months kept</li>
+ * </ul>
+ * Each benchmark is warmed up and then timed over several iterations. Results go to a CSV file that
+ * a later run can be compared against; the run fails (exit code 2) when anything got slower by more
+ * than the tolerance, so a build script can stop on regressions.
+ *
+ * It runs on its own stores and files in a temporary folder, so the library's own files are never
+ * touched.
+ *
+ * Run with {@code java Benchmarks [records...] [--out file] [--baseline file] [--tolerance percent]}
+ * (default: 10k, 100k and 1M records, results in benchmark-results.csv, 10% tolerance).
+ */
+public class Benchmarks {
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = 300_000_000L;
+    private static final String[] WORDS = {"history", "garden", "river", "night", "science", "modern", "world",
+            "secret", "winter", "machine", "ocean", "empire", "silent", "golden", "journey", "theory"};
+
+    private static volatile long sink; // Keeps results alive so the JIT can't skip the work
+
+    /**
+     * One batch of the operation being measured. Returns something derived from the work done.
+     */
+    private interface Operation {
+        long run() throws Exception;
+    }
+
+    /**
+     * The time per operation of one benchmark at one dataset size, with the spread between iterations.
+     */
+    static final class Result {
+        final String name;
+        final int records;
+        final double nanosPerOp;
+        final double errorPercent;
+
+        Result(String name, int records, double nanosPerOp, double errorPercent) {
+            this.name = name;
+            this.records = records;
+            this.nanosPerOp = nanosPerOp;
+            this.errorPercent = errorPercent;
+        }
+
+        String key() {
+            return name + "@" + records;
+        }
+    }
+
+    public static void main(String[] args) {
+        ArrayList<Integer> sizes = new ArrayList<>();
+        Path out = Paths.get("benchmark-results.csv");
+        Path baseline = null;
+        double tolerance = 10;
+        int regressions;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--out":
+                        out = Paths.get(args[++i]);
+                        break;
+                    case "--baseline":
+                        baseline = Paths.get(args[++i]);
+                        break;
+                    case "--tolerance":
+                        tolerance = Double.parseDouble(args[++i]);
+                        break;
+                    default:
+                        sizes.add(Integer.parseInt(args[i]));
+                        break;
+                }
+            }
+            if (sizes.isEmpty()) {
+                sizes.addAll(List.of(10_000, 100_000, 1_000_000));
+            }
+            regressions = run(sizes.stream().mapToInt(Integer::intValue).toArray(), out, baseline, tolerance);
+        } catch (Exception e) {
+            System.err.println("Benchmark failed: " + e);
+            System.exit(1);
+            return;
+        }
+        if (regressions > 0) {
+            System.err.println(regressions + " benchmark(s) regressed by more than " + tolerance + "%.");
+            System.exit(2);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Runs every benchmark at each size, writes the results to {@code out} and, if a baseline is
+     * given, compares against it. Returns the number of regressions found.
+     */
+    private static int run(int[] sizes, Path out, Path baseline, double tolerancePercent) throws Exception {
+        System.out.printf("Java %s, %d processors, %,d MB max heap%n", System.getProperty("java.version"),
+                Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory() >> 20);
+        ArrayList<Result> results = new ArrayList<>();
+        Path dir = Files.createTempDirectory("lms-bench");
+        try {
+            for (int records : sizes) {
+                runAll(records, dir, results);
+            }
+        } finally {
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(dir);
+        }
+
+        try (BufferedWriter writer = Files.newBufferedWriter(out)) {
+            writer.write("benchmark,records,ns_per_op,error_percent\n");
+            for (Result result : results) {
+                writer.write(String.format(Locale.ROOT, "%s,%d,%.3f,%.2f%n", result.name, result.records, result.nanosPerOp, result.errorPercent));
+            }
+        }
+        System.out.println("Results written to " + out + ".");
+        return baseline == null ? 0 : compare(results, baseline, tolerancePercent);
+    }
+
+    private static void runAll(int records, Path dir, List<Result> results) throws Exception {
+        Random random = new Random(42);
+        ArrayList<LibraryManagementSystem.Book> bookList = new ArrayList<>(records);
+        for (int i = 0; i < records; i++) {
+            String title = WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)] + " " + i;
+            bookList.add(new LibraryManagementSystem.Book("B-" + i, title, "Author " + random.nextInt(records / 10 + 1),
+                    "Publisher " + random.nextInt(500), 1 + random.nextInt(5)));
+        }
+        ArrayList<LibraryManagementSystem.Member> memberList = new ArrayList<>(records / 10);
+        for (int i = 0; i < records / 10; i++) {
+            memberList.add(new LibraryManagementSystem.Member("M-" + i, "Member " + i, "member" + i + "@example.org", "555-" + i));
+        }
+
+        // --- Checkpoints ---
+        String booksFile = dir.resolve("books.dat").toString();
+        String membersFile = dir.resolve("members.dat").toString();
+        results.add(measure("checkpoint.write", records, 1, () -> {
+            LibraryManagementSystem.BinaryCodec.writeFile(booksFile, LibraryManagementSystem.BinaryCodec.BOOKS, 0, 0, bookList, LibraryManagementSystem.BinaryCodec::writeBook);
+            LibraryManagementSystem.BinaryCodec.writeFile(membersFile, LibraryManagementSystem.BinaryCodec.MEMBERS, 0, 0, memberList, LibraryManagementSystem.BinaryCodec::writeMember);
+            return Files.size(Paths.get(booksFile));
+        }));
+        results.add(measure("checkpoint.read", records, 1, () ->
+                LibraryManagementSystem.BinaryCodec.readFile(booksFile, LibraryManagementSystem.BinaryCodec.BOOKS, LibraryManagementSystem.BinaryCodec::readBook).items.size()
+                        + LibraryManagementSystem.BinaryCodec.readFile(membersFile, LibraryManagementSystem.BinaryCodec.MEMBERS, LibraryManagementSystem.BinaryCodec::readMember).items.size()));
+
+        // --- Lookups and views ---
+        LibraryManagementSystem.BookRepository repository = new LibraryManagementSystem.BookRepository();
+        repository.replaceAll(bookList);
+        LibraryManagementSystem.MemberRepository memberRepository = new LibraryManagementSystem.MemberRepository();
+        memberRepository.replaceAll(memberList);
+        String[] ids = new String[1024];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = "B-" + random.nextInt(records);
+        }
+        results.add(measure("books.get", records, ids.length, () -> {
+            long found = 0;
+            for (String id : ids) {
+                found += repository.get(id).getQuantity();
+            }
+            return found;
+        }));
+
+        LibraryManagementSystem.RepositoryTableModel<LibraryManagementSystem.Book> model = new LibraryManagementSystem.RepositoryTableModel<>(repository,
+                new String[]{"Book ID", "Title", "Author", "Publisher", "Quantity", "Issued", "Available"}, LibraryManagementSystem.ViewBooksPanel::cellValue);
+        int[] firstRows = new int[64];
+        for (int i = 0; i < firstRows.length; i++) {
+            firstRows[i] = random.nextInt(Math.max(1, records - 40));
+        }
+        results.add(measure("table.refresh", records, firstRows.length, () -> {
+            long cells = 0;
+            for (int first : firstRows) {
+                model.fireTableDataChanged();
+                int last = Math.min(model.getRowCount(), first + 40); // About one screenful
+                for (int row = first; row < last; row++) {
+                    for (int column = 0; column < model.getColumnCount(); column++) {
+                        cells += model.getValueAt(row, column) != null ? 1 : 0;
+                    }
+                }
+            }
+            return cells;
+        }));
+
+        LibraryManagementSystem.SearchIndex<LibraryManagementSystem.Book> index = new LibraryManagementSystem.SearchIndex<>(b -> new String[]{b.getTitle(), b.getAuthor(), b.getPublisher(), b.getId()});
+        index.rebuild(repository);
+        String[] queries = new String[64];
+        for (int i = 0; i < queries.length; i++) {
+            String word = WORDS[random.nextInt(WORDS.length)];
+            queries[i] = word.substring(0, 3) + " " + WORDS[random.nextInt(WORDS.length)].substring(0, 2);
+        }
+        results.add(measure("search.typeahead", records, queries.length, () -> {
+            long hits = 0;
+            for (String query : queries) {
+                hits += index.search(query, 20, b -> true).size();
+            }
+            return hits;
+        }));
+        index.rebuild(Collections.emptyList()); // Let the index go before the history is built
+
+        // --- Loans ---
+        LibraryManagementSystem.IssueRepository loans = new LibraryManagementSystem.IssueRepository();
+        Path historyFile = dir.resolve("history-" + records + ".dat");
+        loans.openArchive(historyFile.toString());
+        loans.load(Collections.emptyList(), 0);
+        long start = LibraryManagementSystem.IssueIdGenerator.EPOCH;
+        long step = TimeUnit.DAYS.toMillis(365) / Math.max(1, records); // A year of loans
+        ArrayList<LibraryManagementSystem.IssueRecord> history = new ArrayList<>(records);
+        for (int i = 0; i < records; i++) {
+            Date issued = new Date(start + i * step);
+            // 5% still out; the rest back within 0-20 days, so about a third of them late
+            Date returned = i < records - records / 20 ? new Date(issued.getTime() + TimeUnit.DAYS.toMillis(random.nextInt(21))) : null;
+            history.add(new LibraryManagementSystem.IssueRecord(i + 1, "B-" + random.nextInt(records), "M-" + random.nextInt(Math.max(1, records / 10)),
+                    issued, LibraryManagementSystem.IssueRecord.defaultDueDate(issued), returned));
+        }
+        // Archived as they would have come back, i.e. in return order
+        history.sort(Comparator.comparing(LibraryManagementSystem.IssueRecord::getReturnDate, Comparator.nullsLast(Comparator.naturalOrder())));
+        history.forEach(loans::add);
+        history = null; // Let the records go; the closed ones are in the archive now
+        results.add(measure("stats.rebuild", records, 1, () -> {
+            LibraryManagementSystem.LibraryStats counting = new LibraryManagementSystem.LibraryStats(repository, memberRepository, loans, 10);
+            counting.rebuild(loans.cut());
+            return counting.topTitles().size();
+        }));
+        LibraryManagementSystem.LibraryStats dashboard = new LibraryManagementSystem.LibraryStats(repository, memberRepository, loans, 10);
+        dashboard.rebuild(loans.cut());
+        results.add(measure("dashboard.counts", records, 1024, () -> {
+            long total = 0;
+            for (int i = 0; i < 1024; i++) {
+                total += dashboard.titles() + dashboard.copies() + dashboard.copiesOut() + dashboard.members()
+                        + dashboard.activeMembers() + dashboard.loansToday();
+            }
+            return total;
+        }));
+        long day = TimeUnit.DAYS.toMillis(1);
+        results.add(measure("history.rangeScan", records, 1, () -> {
+            try (Stream<LibraryManagementSystem.IssueRecord> oneDay = loans.streamIssuedBetween(start + 100 * day, start + 101 * day)) {
+                return oneDay.count();
+            }
+        }));
+        LibraryManagementSystem.FineEngine fineEngine = new LibraryManagementSystem.FineEngine(loans, 25, 0, 1000);
+        long asOf = start + 400 * day;
+        results.add(measure("fines.batch", records, 1, () -> fineEngine.accruedByMember(asOf).size()));
+        YearMonth firstMonth = YearMonth.from(Instant.ofEpochMilli(start).atZone(ZoneId.systemDefault()));
+        results.add(measure("report.year", records, 1, () ->
+                new LibraryManagementSystem.CirculationReports(repository, memberRepository, loans).report(firstMonth, firstMonth.plusMonths(11)).getLoans()));
+        LibraryManagementSystem.CirculationReports cachedReports = new LibraryManagementSystem.CirculationReports(repository, memberRepository, loans);
+        results.add(measure("report.rerun", records, 1, () ->
+                cachedReports.report(firstMonth, firstMonth.plusMonths(11)).getLoans()));
+    }
+
+    private static Result measure(String name, int records, int batch, Operation operation) throws Exception {
+        double[] scores = new double[MEASURED_ITERATIONS];
+        for (int iteration = 0; iteration < WARMUP_ITERATIONS + MEASURED_ITERATIONS; iteration++) {
+            long calls = 0;
+            long result = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                result += operation.run();
+                calls++;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < ITERATION_NANOS);
+            sink += result;
+            if (iteration >= WARMUP_ITERATIONS) {
+                scores[iteration - WARMUP_ITERATIONS] = (double) elapsed / (calls * batch);
+            }
+        }
+        double mean = 0;
+        for (double score : scores) {
+            mean += score / scores.length;
+        }
+        double variance = 0;
+        for (double score : scores) {
+            variance += (score - mean) * (score - mean) / scores.length;
+        }
+        Result result = new Result(name, records, mean, 100 * Math.sqrt(variance) / mean);
+        System.out.printf("%-18s %,11d records %,16.1f ns/op +/- %4.1f%%%n", name, records, mean, result.errorPercent);
+        return result;
+    }
+
+    /**
+     * Compares against an earlier results file. A benchmark regressed if it is slower by more than
+     * the tolerance and by more than its own run-to-run spread.
+     */
+    private static int compare(List<Result> results, Path baseline, double tolerancePercent) throws IOException {
+        HashMap<String, Double> previous = new HashMap<>();
+        List<String> lines = Files.readAllLines(baseline);
+        for (String line : lines.subList(Math.min(1, lines.size()), lines.size())) {
+            String[] fields = line.split(",");
+            if (fields.length >= 3) {
+                previous.put(fields[0] + "@" + fields[1], Double.parseDouble(fields[2]));
+            }
+        }
+        int regressions = 0;
+        System.out.println("Compared with " + baseline + ":");
+        for (Result result : results) {
+            Double before = previous.get(result.key());
+            if (before == null) {
+                continue;
+            }
+            double change = 100 * (result.nanosPerOp - before) / before;
+            String verdict = "ok";
+            if (change > Math.max(tolerancePercent, result.errorPercent)) {
+                verdict = "REGRESSION";
+                regressions++;
+            } else if (change < -Math.max(tolerancePercent, result.errorPercent)) {
+                verdict = "faster";
+            }
+            System.out.printf("%-18s %,11d records %+7.1f%%  %s%n", result.name, result.records, change, verdict);
+        }
+        return regressions;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,165 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Checks the .dat files written by {@link LibraryManagementSystem.BinaryCodec}:
+ * <ul>
+ * <li>books, members, loans and holds read back field for field as written, with the LSN and
+ * archived count from the header, including empty strings and non-ASCII text</li>
+ * <li>a file whose checksum fails is refused, and {@code readLatest} falls back on the previous copy,
+ * says so, and sets the damaged file aside; likewise when the file is missing</li>
+ * <li>a file of the wrong kind is refused</li>
+ * </ul>
+ * It works on files in a temporary folder, so the library's own files are never touched.
+ */
+public class BinaryCodecTest {
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("lms-codec");
+        try {
+            roundTrip(dir);
+            fallBack(dir);
+        } finally {
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(dir);
+        }
+        TestSupport.finish("BinaryCodecTest");
+    }
+
+    private static void roundTrip(Path dir) throws IOException {
+        String booksFile = dir.resolve("books.dat").toString();
+        List<LibraryManagementSystem.Book> books = List.of(
+                new LibraryManagementSystem.Book("B-1", "Title", "Author", "Publisher", 3),
+                new LibraryManagementSystem.Book("B-2", "\u00C7a d\u00E9m\u00E9nage \u2014 \uD83D\uDCDA", "", "\u00C9ditions", new long[0]));
+        LibraryManagementSystem.BinaryCodec.writeFile(booksFile, LibraryManagementSystem.BinaryCodec.BOOKS, 42, 0, books,
+                LibraryManagementSystem.BinaryCodec::writeBook);
+        LibraryManagementSystem.BinaryCodec.Loaded<LibraryManagementSystem.Book> readBooks = LibraryManagementSystem.BinaryCodec.readFile(
+                booksFile, LibraryManagementSystem.BinaryCodec.BOOKS, LibraryManagementSystem.BinaryCodec::readBook);
+        TestSupport.checkEquals(42L, readBooks.lsn, "books.dat LSN");
+        TestSupport.checkEquals(books.size(), readBooks.items.size(), "books read back");
+        for (int i = 0; i < Math.min(books.size(), readBooks.items.size()); i++) {
+            LibraryManagementSystem.Book expected = books.get(i);
+            LibraryManagementSystem.Book actual = readBooks.items.get(i);
+            TestSupport.checkEquals(describe(expected), describe(actual), "book " + i);
+            TestSupport.check(Arrays.equals(expected.getBarcodes(), actual.getBarcodes()), "book " + i + " barcodes");
+        }
+
+        String membersFile = dir.resolve("members.dat").toString();
+        List<LibraryManagementSystem.Member> members = List.of(
+                new LibraryManagementSystem.Member("M-1", "Member", "m@example.org", "555"),
+                new LibraryManagementSystem.Member("M-2", "Zo\u00EB", "", ""));
+        LibraryManagementSystem.BinaryCodec.writeFile(membersFile, LibraryManagementSystem.BinaryCodec.MEMBERS, 7, 0, members,
+                LibraryManagementSystem.BinaryCodec::writeMember);
+        List<LibraryManagementSystem.Member> readMembers = LibraryManagementSystem.BinaryCodec.readFile(
+                membersFile, LibraryManagementSystem.BinaryCodec.MEMBERS, LibraryManagementSystem.BinaryCodec::readMember).items;
+        TestSupport.checkEquals(members.size(), readMembers.size(), "members read back");
+        for (int i = 0; i < Math.min(members.size(), readMembers.size()); i++) {
+            LibraryManagementSystem.Member expected = members.get(i);
+            LibraryManagementSystem.Member actual = readMembers.get(i);
+            TestSupport.checkEquals(expected.getId() + "|" + expected.getName() + "|" + expected.getEmail() + "|" + expected.getContact(),
+                    actual.getId() + "|" + actual.getName() + "|" + actual.getEmail() + "|" + actual.getContact(), "member " + i);
+        }
+
+        String issuesFile = dir.resolve("issues.dat").toString();
+        Date issued = new Date(1_717_171_717_171L);
+        Date due = new Date(issued.getTime() + 14 * 86_400_000L);
+        List<LibraryManagementSystem.IssueRecord> issues = List.of(
+                new LibraryManagementSystem.IssueRecord(Long.MAX_VALUE, "B-1", "M-1", issued, due, null, 123456789L),
+                new LibraryManagementSystem.IssueRecord(1, "B-2", "M-2", issued, due, new Date(due.getTime() + 1), 0));
+        LibraryManagementSystem.BinaryCodec.writeFile(issuesFile, LibraryManagementSystem.BinaryCodec.ISSUES, 9, 1234, issues,
+                LibraryManagementSystem.BinaryCodec::writeIssue);
+        LibraryManagementSystem.BinaryCodec.Loaded<LibraryManagementSystem.IssueRecord> readIssues = LibraryManagementSystem.BinaryCodec.readFile(
+                issuesFile, LibraryManagementSystem.BinaryCodec.ISSUES, LibraryManagementSystem.BinaryCodec::readIssue);
+        TestSupport.checkEquals(1234L, readIssues.archived, "issues.dat archived count");
+        TestSupport.checkEquals(issues.size(), readIssues.items.size(), "loans read back");
+        for (int i = 0; i < Math.min(issues.size(), readIssues.items.size()); i++) {
+            TestSupport.checkEquals(describe(issues.get(i)), describe(readIssues.items.get(i)), "loan " + i);
+        }
+
+        String holdsFile = dir.resolve("holds.dat").toString();
+        LibraryManagementSystem.Hold ready = new LibraryManagementSystem.Hold(6, "B-1", "M-2", issued, due);
+        ready.setBarcode(987654321L);
+        List<LibraryManagementSystem.Hold> holds = List.of(new LibraryManagementSystem.Hold(5, "B-1", "M-1", issued, null), ready);
+        LibraryManagementSystem.BinaryCodec.writeFile(holdsFile, LibraryManagementSystem.BinaryCodec.HOLDS, 9, 0, holds,
+                LibraryManagementSystem.BinaryCodec::writeHold);
+        List<LibraryManagementSystem.Hold> readHolds = LibraryManagementSystem.BinaryCodec.readFile(
+                holdsFile, LibraryManagementSystem.BinaryCodec.HOLDS, LibraryManagementSystem.BinaryCodec::readHold).items;
+        TestSupport.checkEquals(holds.size(), readHolds.size(), "holds read back");
+        for (int i = 0; i < Math.min(holds.size(), readHolds.size()); i++) {
+            TestSupport.checkEquals(describe(holds.get(i)), describe(readHolds.get(i)), "hold " + i);
+        }
+
+        try {
+            LibraryManagementSystem.BinaryCodec.readFile(membersFile, LibraryManagementSystem.BinaryCodec.BOOKS,
+                    LibraryManagementSystem.BinaryCodec::readBook);
+            TestSupport.check(false, "members.dat was read as a books file");
+        } catch (IOException e) {
+            // Refused as it should be
+        }
+    }
+
+    private static void fallBack(Path dir) throws IOException {
+        String file = dir.resolve("fallback.dat").toString();
+        List<LibraryManagementSystem.Member> older = List.of(new LibraryManagementSystem.Member("M-1", "Older", "", ""));
+        List<LibraryManagementSystem.Member> newer = List.of(new LibraryManagementSystem.Member("M-1", "Newer", "", ""),
+                new LibraryManagementSystem.Member("M-2", "Newer", "", ""));
+        LibraryManagementSystem.BinaryCodec.writeFile(file, LibraryManagementSystem.BinaryCodec.MEMBERS, 10, 0, older,
+                LibraryManagementSystem.BinaryCodec::writeMember);
+        LibraryManagementSystem.BinaryCodec.writeFile(file, LibraryManagementSystem.BinaryCodec.MEMBERS, 20, 0, newer,
+                LibraryManagementSystem.BinaryCodec::writeMember);
+        TestSupport.check(Files.exists(Paths.get(file + ".prev")), "the first write was not kept as the previous copy");
+
+        LibraryManagementSystem.BinaryCodec.Loaded<LibraryManagementSystem.Member> latest = LibraryManagementSystem.BinaryCodec.readLatest(
+                file, LibraryManagementSystem.BinaryCodec.MEMBERS, LibraryManagementSystem.BinaryCodec::readMember);
+        TestSupport.checkEquals(20L, latest.lsn, "LSN read from an undamaged file");
+        TestSupport.check(!latest.recovered, "an undamaged file was reported as recovered");
+
+        byte[] data = Files.readAllBytes(Paths.get(file));
+        data[data.length / 2] ^= 0x01; // One flipped bit in the middle of the records
+        Files.write(Paths.get(file), data);
+        try {
+            LibraryManagementSystem.BinaryCodec.readFile(file, LibraryManagementSystem.BinaryCodec.MEMBERS,
+                    LibraryManagementSystem.BinaryCodec::readMember);
+            TestSupport.check(false, "a file with a flipped bit passed its checksum");
+        } catch (IOException e) {
+            TestSupport.check(e.getMessage().contains("checksum"), "unexpected error for a flipped bit: " + e.getMessage());
+        }
+        LibraryManagementSystem.BinaryCodec.Loaded<LibraryManagementSystem.Member> recovered = LibraryManagementSystem.BinaryCodec.readLatest(
+                file, LibraryManagementSystem.BinaryCodec.MEMBERS, LibraryManagementSystem.BinaryCodec::readMember);
+        TestSupport.checkEquals(10L, recovered.lsn, "LSN after falling back on the previous copy");
+        TestSupport.check(recovered.recovered, "falling back on the previous copy was not reported");
+        TestSupport.checkEquals("Older", recovered.items.isEmpty() ? null : recovered.items.get(0).getName(), "member read from the previous copy");
+        TestSupport.check(Files.exists(Paths.get(file + ".damaged")), "the damaged file was not set aside");
+        TestSupport.check(!Files.exists(Paths.get(file)), "the damaged file was left in place");
+
+        LibraryManagementSystem.BinaryCodec.Loaded<LibraryManagementSystem.Member> missing = LibraryManagementSystem.BinaryCodec.readLatest(
+                file, LibraryManagementSystem.BinaryCodec.MEMBERS, LibraryManagementSystem.BinaryCodec::readMember);
+        TestSupport.check(missing.recovered && missing.lsn == 10, "a missing file did not fall back on the previous copy");
+    }
+
+    private static String describe(LibraryManagementSystem.Book book) {
+        return book.getId() + "|" + book.getTitle() + "|" + book.getAuthor() + "|" + book.getPublisher() + "|" + book.getQuantity();
+    }
+
+    private static String describe(LibraryManagementSystem.IssueRecord record) {
+        return record.getIssueId() + "|" + record.getBookId() + "|" + record.getMemberId() + "|" + record.getIssueDate().getTime()
+                + "|" + record.getDueDate().getTime() + "|" + (record.isReturned() ? record.getReturnDate().getTime() : "open")
+                + "|" + record.getBarcode();
+    }
+
+    private static String describe(LibraryManagementSystem.Hold hold) {
+        return hold.getHoldId() + "|" + hold.getBookId() + "|" + hold.getMemberId() + "|" + hold.getPlacedDate().getTime()
+                + "|" + (hold.getExpiryDate() == null ? "waiting" : hold.getExpiryDate().getTime()) + "|" + hold.getStatus()
+                + "|" + hold.getBarcode();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,108 @@
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks the hold queues in {@link LibraryManagementSystem.HoldRegistry} against a plain list of the
+ * holds waiting for a book, while members join, cancel from anywhere in the queue, and are served
+ * from the front:
+ * <ul>
+ * <li>the next hold to be served is always the one placed earliest (first come, first served)</li>
+ * <li>every waiting hold's position is its place in the list, and ready holds have position 0</li>
+ * <li>the waiting and ready counts match, through the queue's rebuilds as it grows and shrinks</li>
+ * </ul>
+ * It uses its own registry, so the library's holds are never touched.
+ *
+ * Run with {@code java HoldQueueTest [operations]} (default 20,000).
+ */
+public class HoldQueueTest {
+    private static final String BOOK = "B-1";
+
+    public static void main(String[] args) {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        Random random = new Random(11);
+        LibraryManagementSystem.HoldRegistry holds = new LibraryManagementSystem.HoldRegistry();
+        List<LibraryManagementSystem.Hold> expected = new ArrayList<>(); // Waiting, in the order placed
+        List<LibraryManagementSystem.Hold> ready = new ArrayList<>();
+        long nextId = 1;
+        int wrongFront = 0;
+        int wrongPositions = 0;
+        int served = 0;
+        int cancelled = 0;
+        for (int i = 0; i < operations; i++) {
+            int choice = random.nextInt(10);
+            // Mostly joins early on, so the queue grows to a couple of thousand before it drains
+            if (choice < (i < operations / 2 ? 6 : 3) || expected.isEmpty()) {
+                LibraryManagementSystem.Hold hold = new LibraryManagementSystem.Hold(nextId++, BOOK, "M-" + i, new Date(), null);
+                holds.add(hold);
+                expected.add(hold);
+            } else if (choice < 8) {
+                LibraryManagementSystem.Hold hold = expected.remove(random.nextInt(expected.size()));
+                holds.end(hold, LibraryManagementSystem.Hold.Status.CANCELLED);
+                cancelled++;
+            } else {
+                LibraryManagementSystem.Hold first = expected.remove(0);
+                if (holds.nextWaiting(BOOK) != first) {
+                    wrongFront++;
+                }
+                holds.setReady(first, new Date(System.currentTimeMillis() + 86_400_000L), 1000 + i);
+                ready.add(first);
+                served++;
+                if (ready.size() > 3) {
+                    holds.end(ready.remove(0), LibraryManagementSystem.Hold.Status.COLLECTED);
+                }
+            }
+            if (i % 101 == 0 || i == operations - 1) {
+                wrongPositions += checkPositions(holds, expected, ready);
+            }
+        }
+        System.out.printf("%,d operations: %,d holds placed, %,d served, %,d cancelled, %,d still waiting%n",
+                operations, nextId - 1, served, cancelled, expected.size());
+        TestSupport.check(served > 0 && cancelled > 0, "the run never served or never cancelled a hold");
+        TestSupport.checkEquals(0, wrongFront, "times the hold served was not the one placed earliest");
+        TestSupport.checkEquals(0, wrongPositions, "wrong positions or counts");
+
+        // Drain what is left from the front; it must come out in the order it was placed
+        int outOfOrder = 0;
+        while (!expected.isEmpty()) {
+            LibraryManagementSystem.Hold front = holds.nextWaiting(BOOK);
+            if (front != expected.remove(0)) {
+                outOfOrder++;
+            }
+            holds.end(front, LibraryManagementSystem.Hold.Status.EXPIRED);
+        }
+        TestSupport.checkEquals(0, outOfOrder, "holds drained out of order");
+        TestSupport.checkEquals(null, holds.nextWaiting(BOOK), "next hold once the queue is empty");
+        TestSupport.checkEquals(0, holds.waitingCount(BOOK), "waiting count once the queue is empty");
+        TestSupport.finish("HoldQueueTest");
+    }
+
+    /**
+     * Returns the number of holds whose position is wrong, plus one for each wrong count.
+     */
+    private static int checkPositions(LibraryManagementSystem.HoldRegistry holds, List<LibraryManagementSystem.Hold> expected,
+            List<LibraryManagementSystem.Hold> ready) {
+        int wrong = 0;
+        for (int i = 0; i < expected.size(); i++) {
+            if (holds.position(expected.get(i)) != i + 1) {
+                wrong++;
+            }
+        }
+        for (LibraryManagementSystem.Hold hold : ready) {
+            if (holds.position(hold) != 0) {
+                wrong++;
+            }
+        }
+        if (holds.waitingCount(BOOK) != expected.size()) {
+            wrong++;
+        }
+        if (holds.readyCount(BOOK) != ready.size()) {
+            wrong++;
+        }
+        if (holds.size() != expected.size() + ready.size()) {
+            wrong++;
+        }
+        return wrong;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,109 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks {@link LibraryManagementSystem.IssueIdGenerator}:
+ * <ul>
+ * <li>IDs from one thread strictly increase, even when far more are drawn than the 4,096 a
+ * millisecond's sequence holds</li>
+ * <li>when the sequence is full, the next ID borrows the next millisecond with sequence 0, and
+ * keeps the node number</li>
+ * <li>after {@code advancePast} an ID from the future, e.g. from a run whose clock was ahead,
+ * every new ID is higher than it</li>
+ * <li>IDs drawn from many threads at once are all different</li>
+ * </ul>
+ *
+ * Run with {@code java IssueIdGeneratorTest [ids per thread]} (default 200,000).
+ */
+public class IssueIdGeneratorTest {
+    // The layout, from the high bits down: millis since EPOCH, then 10 node bits, then 12 sequence bits
+    private static final int SEQUENCE_BITS = 12;
+    private static final int NODE_SHIFT = SEQUENCE_BITS;
+    private static final int MILLIS_SHIFT = 10 + SEQUENCE_BITS;
+    private static final int NODE = 5;
+
+    public static void main(String[] args) throws Exception {
+        int perThread = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+
+        LibraryManagementSystem.IssueIdGenerator ids = new LibraryManagementSystem.IssueIdGenerator(NODE);
+        long previous = ids.next();
+        int outOfOrder = 0;
+        int wrongNode = 0;
+        for (int i = 0; i < perThread; i++) {
+            long id = ids.next();
+            if (id <= previous) {
+                outOfOrder++;
+            }
+            if ((id >>> NODE_SHIFT & 0x3FF) != NODE) {
+                wrongNode++;
+            }
+            previous = id;
+        }
+        TestSupport.checkEquals(0, outOfOrder, "IDs no higher than the one before");
+        TestSupport.checkEquals(0, wrongNode, "IDs without their node number");
+
+        // A full sequence in a millisecond well ahead of the clock
+        long millis = System.currentTimeMillis() - LibraryManagementSystem.IssueIdGenerator.EPOCH + 60_000;
+        long full = (millis << MILLIS_SHIFT) | ((long) NODE << NODE_SHIFT) | ((1L << SEQUENCE_BITS) - 1);
+        ids.advancePast(full);
+        long next = ids.next();
+        TestSupport.checkEquals(((millis + 1) << MILLIS_SHIFT) | ((long) NODE << NODE_SHIFT), next,
+                "ID after a full sequence (millis, node, sequence " + (next >>> MILLIS_SHIFT) + ", "
+                        + (next >>> NODE_SHIFT & 0x3FF) + ", " + (next & ((1L << SEQUENCE_BITS) - 1)) + ")");
+        TestSupport.check(ids.next() > next, "IDs stopped increasing after borrowing a millisecond");
+
+        // An ID from another node, ahead of the clock: ours must still come after it
+        LibraryManagementSystem.IssueIdGenerator other = new LibraryManagementSystem.IssueIdGenerator(NODE + 1);
+        long ahead = ((millis + 10) << MILLIS_SHIFT) | ((long) (NODE + 1) << NODE_SHIFT) | 17;
+        other.advancePast(ahead);
+        TestSupport.check(other.next() > ahead, "an ID came out no higher than one passed to advancePast");
+
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        LibraryManagementSystem.IssueIdGenerator shared = new LibraryManagementSystem.IssueIdGenerator(NODE);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<long[]>> drawn = new ArrayList<>();
+        try {
+            for (int t = 0; t < threads; t++) {
+                drawn.add(pool.submit(() -> {
+                    long[] mine = new long[perThread];
+                    for (int i = 0; i < mine.length; i++) {
+                        mine[i] = shared.next();
+                    }
+                    return mine;
+                }));
+            }
+            Set<Long> seen = new HashSet<>();
+            int duplicates = 0;
+            int unordered = 0;
+            for (Future<long[]> future : drawn) {
+                long[] mine = future.get();
+                for (int i = 0; i < mine.length; i++) {
+                    if (!seen.add(mine[i])) {
+                        duplicates++;
+                    }
+                    if (i > 0 && mine[i] <= mine[i - 1]) {
+                        unordered++;
+                    }
+                }
+            }
+            System.out.printf("%,d IDs from %d threads%n", seen.size() + duplicates, threads);
+            TestSupport.checkEquals(0, duplicates, "IDs handed out more than once across threads");
+            TestSupport.checkEquals(0, unordered, "IDs no higher than the one before on the same thread");
+        } finally {
+            pool.shutdownNow();
+        }
+
+        try {
+            new LibraryManagementSystem.IssueIdGenerator(LibraryManagementSystem.IssueIdGenerator.MAX_NODE + 1);
+            TestSupport.check(false, "a node number too big for its bits was accepted");
+        } catch (IllegalArgumentException e) {
+            // Refused as it should be
+        }
+        TestSupport.finish("IssueIdGeneratorTest");
+    }
+}
\ No newline at end of file
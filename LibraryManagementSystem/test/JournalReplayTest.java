@@ -0,0 +1,148 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Checks that {@link LibraryManagementSystem.Journal} survives a damaged tail:
+ * <ul>
+ * <li>every entry written comes back on reopening, in order, with increasing LSNs, including a batch</li>
+ * <li>when the last entry is torn (the file ends part-way through it), every entry before it is
+ * replayed, the torn bytes are cut off, and entries appended afterwards are replayed after them</li>
+ * <li>when an entry in the middle fails its checksum, replay stops there and the rest is cut off</li>
+ * </ul>
+ * It works on journals in a temporary folder, so the library's own files are never touched.
+ */
+public class JournalReplayTest {
+
+    /**
+     * Writes each entry the replayer receives as one line, e.g. "member M-1", and keeps the LSNs.
+     */
+    private static final class Recorder implements LibraryManagementSystem.Journal.Replayer {
+        final List<String> entries = new ArrayList<>();
+        final List<Long> lsns = new ArrayList<>();
+
+        private void add(long lsn, String entry) {
+            lsns.add(lsn);
+            entries.add(entry);
+        }
+
+        public void bookPut(long lsn, String id, String title, String author, String publisher, long[] barcodes) {
+            add(lsn, "book " + id + " " + barcodes.length);
+        }
+        public void bookDeleted(long lsn, String id) { add(lsn, "book-deleted " + id); }
+        public void memberPut(long lsn, String id, String name, String email, String contact) { add(lsn, "member " + id); }
+        public void memberDeleted(long lsn, String id) { add(lsn, "member-deleted " + id); }
+        public void issued(long lsn, long issueId, String bookId, String memberId, long issueMillis, long dueMillis, long barcode) {
+            add(lsn, "issued " + issueId + " " + bookId + " " + memberId);
+        }
+        public void returned(long lsn, long issueId, String bookId, long returnMillis) { add(lsn, "returned " + issueId); }
+        public void holdPlaced(long lsn, long holdId, String bookId, String memberId, long placedMillis) { add(lsn, "hold " + holdId); }
+        public void holdReady(long lsn, long holdId, long expiryMillis, long barcode) { add(lsn, "hold-ready " + holdId); }
+        public void holdEnded(long lsn, long holdId, LibraryManagementSystem.Hold.Status status) { add(lsn, "hold-ended " + holdId); }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("lms-journal");
+        try {
+            tornTail(dir.resolve("torn.journal"));
+            corruptMiddle(dir.resolve("corrupt.journal"));
+        } finally {
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(dir);
+        }
+        TestSupport.finish("JournalReplayTest");
+    }
+
+    private static void tornTail(Path file) throws IOException {
+        List<String> written = writeSample(file);
+        Recorder intact = reopen(file);
+        TestSupport.checkEquals(written, intact.entries, "entries replayed from an undamaged journal");
+        checkIncreasing(intact.lsns, "undamaged journal");
+
+        long fullSize = Files.size(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(fullSize - 3); // Power cut while the last entry was being written
+        }
+        Recorder torn = reopen(file);
+        TestSupport.checkEquals(written.subList(0, written.size() - 1), torn.entries, "entries replayed before a torn last entry");
+        long goodSize = Files.size(file);
+        TestSupport.check(goodSize < fullSize - 3, "the torn entry was not cut off (" + goodSize + " bytes left)");
+
+        LibraryManagementSystem.Journal journal = LibraryManagementSystem.Journal.open(file.toString(), 0, new Recorder(), false);
+        journal.memberDeleted("M-2");
+        journal.close();
+        Recorder resumed = reopen(file);
+        List<String> expected = new ArrayList<>(written.subList(0, written.size() - 1));
+        expected.add("member-deleted M-2");
+        TestSupport.checkEquals(expected, resumed.entries, "entries replayed after appending past a torn tail");
+        checkIncreasing(resumed.lsns, "journal appended to after a torn tail");
+    }
+
+    private static void corruptMiddle(Path file) throws IOException {
+        List<String> written = writeSample(file);
+        // Each entry is [length][CRC32][payload]; step over the first two and flip a byte of the third's payload
+        long offset = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            for (int entry = 0; entry < 2; entry++) {
+                length.clear();
+                channel.read(length, offset);
+                offset += 8 + length.getInt(0);
+            }
+            ByteBuffer oneByte = ByteBuffer.allocate(1);
+            channel.read(oneByte, offset + 12);
+            oneByte.put(0, (byte) (oneByte.get(0) ^ 0x40)).rewind();
+            channel.write(oneByte, offset + 12);
+        }
+        Recorder replayed = reopen(file);
+        TestSupport.checkEquals(written.subList(0, 2), replayed.entries, "entries replayed before a corrupt entry");
+        TestSupport.checkEquals(offset, Files.size(file), "journal length after cutting off a corrupt entry");
+    }
+
+    /**
+     * Writes one entry of most kinds, plus a batch, and returns what the replayer should see, in order.
+     */
+    private static List<String> writeSample(Path file) throws IOException {
+        LibraryManagementSystem.Journal journal = LibraryManagementSystem.Journal.open(file.toString(), 0, new Recorder(), false);
+        Date now = new Date();
+        journal.bookPut(new LibraryManagementSystem.Book("B-1", "Title", "Author", "Publisher", 2));
+        journal.memberPut(new LibraryManagementSystem.Member("M-1", "Member", "m@example.org", "555"));
+        journal.memberPut(new LibraryManagementSystem.Member("M-2", "Other", "o@example.org", "556"));
+        journal.issued(new LibraryManagementSystem.IssueRecord(101, "B-1", "M-1", now, now, null));
+        journal.beginBatch();
+        journal.issued(new LibraryManagementSystem.IssueRecord(102, "B-1", "M-2", now, now, null));
+        journal.bookDeleted("B-9");
+        journal.endBatch();
+        journal.returned(new LibraryManagementSystem.IssueRecord(101, "B-1", "M-1", now, now, now));
+        journal.close();
+        return List.of("book B-1 2", "member M-1", "member M-2", "issued 101 B-1 M-1",
+                "issued 102 B-1 M-2", "book-deleted B-9", "returned 101");
+    }
+
+    private static Recorder reopen(Path file) throws IOException {
+        Recorder recorder = new Recorder();
+        LibraryManagementSystem.Journal.open(file.toString(), 0, recorder, false).close();
+        return recorder;
+    }
+
+    /**
+     * Checks that LSNs never go down; the entries of a batch share one.
+     */
+    private static void checkIncreasing(List<Long> lsns, String label) {
+        for (int i = 1; i < lsns.size(); i++) {
+            TestSupport.check(lsns.get(i) >= lsns.get(i - 1), label + ": LSN " + lsns.get(i) + " follows " + lsns.get(i - 1));
+        }
+        TestSupport.check(!lsns.isEmpty() && lsns.get(0) > 0, label + ": first LSN is not positive");
+    }
+}
\ No newline at end of file
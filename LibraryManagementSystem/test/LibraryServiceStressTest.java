@@ -0,0 +1,198 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Hammers {@link LibraryManagementSystem.LibraryService} from many threads at once and checks that its
+ * invariants hold:
+ * <ul>
+ * <li>while worker threads issue and return copies of a few hot titles and another thread keeps resizing
+ * them, a checker thread repeatedly stops all changes and verifies that no title has more copies issued
+ * than it holds, that each title's issued count equals its open loans, and that those add up to the
+ * registry's open count</li>
+ * <li>the same holds once the workers stop</li>
+ * <li>when every thread returns the same loan at the same moment, exactly one of them succeeds</li>
+ * </ul>
+ * It runs on the in-memory stores, with the loan history in a temporary file and no journal open, so
+ * the library's own files are never touched.
+ *
+ * Run with {@code java LibraryServiceStressTest [threads] [seconds]} (default: twice the processors,
+ * at least 8 threads, for 3 seconds).
+ */
+public class LibraryServiceStressTest {
+    private static final int HOT_TITLES = 5;
+    private static final int COPIES = 3;
+    private static final int RACE_ROUNDS = 2000;
+
+    private static final LibraryManagementSystem.LibraryService service = TestSupport.libraryField("service");
+    private static final LibraryManagementSystem.IssueRepository issueRecords = TestSupport.libraryField("issueRecords");
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Math.max(8, 2 * Runtime.getRuntime().availableProcessors());
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        System.out.printf("%d threads for %d s%n", threads, seconds);
+        Path dir = Files.createTempDirectory("lms-stress");
+        Path history = dir.resolve("history.dat");
+        ExecutorService pool = Executors.newFixedThreadPool(threads + 2);
+        try {
+            issueRecords.openArchive(history.toString());
+            issueRecords.load(Collections.emptyList(), 0);
+            for (int i = 0; i < threads; i++) {
+                service.addMember(new LibraryManagementSystem.Member("STRESS-" + i, "Stress member " + i, "", ""));
+            }
+            hammer(pool, threads, seconds);
+            raceReturns(pool, threads);
+        } finally {
+            pool.shutdownNow();
+            Files.deleteIfExists(history);
+            Files.deleteIfExists(dir);
+        }
+        TestSupport.finish("LibraryServiceStressTest");
+    }
+
+    /**
+     * Issues, returns and resizes hot titles from every thread until time is up, checking the counts
+     * all along.
+     */
+    private static void hammer(ExecutorService pool, int threads, int seconds) throws Exception {
+        List<LibraryManagementSystem.Book> titles = new ArrayList<>();
+        for (int i = 0; i < HOT_TITLES; i++) {
+            LibraryManagementSystem.Book book = new LibraryManagementSystem.Book("HOT-" + i, "Hot title " + i, "Author", "Publisher", COPIES);
+            service.addBook(book);
+            titles.add(book);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        LongAdder issued = new LongAdder();
+        LongAdder returned = new LongAdder();
+        LongAdder refused = new LongAdder();
+        LongAdder resized = new LongAdder();
+        LongAdder checks = new LongAdder();
+        List<String> violations = Collections.synchronizedList(new ArrayList<>());
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String memberId = "STRESS-" + t;
+            tasks.add(pool.submit(() -> {
+                Random random = new Random();
+                ArrayDeque<LibraryManagementSystem.IssueRecord> held = new ArrayDeque<>();
+                while (System.nanoTime() < deadline) {
+                    if (held.isEmpty() || random.nextBoolean()) {
+                        try {
+                            held.add(service.issue(titles.get(random.nextInt(titles.size())).getId(), memberId));
+                            issued.increment();
+                        } catch (LibraryManagementSystem.LibraryException e) {
+                            refused.increment(); // No copies left
+                        }
+                    } else {
+                        service.returnLoan(held.poll().getIssueId()); // Our own loan, so this must succeed
+                        returned.increment();
+                    }
+                }
+                return null; // Loans still held stay out, for the final count
+            }));
+        }
+        tasks.add(pool.submit(() -> {
+            Random random = new Random();
+            while (System.nanoTime() < deadline) {
+                LibraryManagementSystem.Book book = titles.get(random.nextInt(titles.size()));
+                try {
+                    service.updateBook(book, book.getTitle(), book.getAuthor(), book.getPublisher(), 1 + random.nextInt(COPIES * 2));
+                    resized.increment();
+                } catch (LibraryManagementSystem.LibraryException e) {
+                    // More copies out than the new quantity; refused as it should be
+                }
+            }
+            return null;
+        }));
+        tasks.add(pool.submit(() -> {
+            while (System.nanoTime() < deadline) {
+                Lock quiet = service.changesBlocked();
+                quiet.lock();
+                try {
+                    checkCounts(titles, violations);
+                } finally {
+                    quiet.unlock();
+                }
+                checks.increment();
+                Thread.yield(); // Let the workers make some changes before stopping them again
+            }
+            return null;
+        }));
+        for (Future<?> task : tasks) {
+            task.get();
+        }
+        System.out.printf("%,d issued, %,d returned, %,d refused for lack of copies, %,d resizes, %,d checks while running%n",
+                issued.sum(), returned.sum(), refused.sum(), resized.sum(), checks.sum());
+        TestSupport.check(checks.sum() > 0, "the counts were never checked while the workers ran");
+        TestSupport.check(violations.isEmpty(), violations.size() + " violation(s) while running, first: "
+                + (violations.isEmpty() ? "" : violations.get(0)));
+        List<String> after = new ArrayList<>();
+        checkCounts(titles, after);
+        after.forEach(violation -> TestSupport.check(false, violation + " after the workers stopped"));
+    }
+
+    /**
+     * Adds a description of every broken count to {@code violations}. Must run while no change is in
+     * progress.
+     */
+    private static void checkCounts(List<LibraryManagementSystem.Book> titles, List<String> violations) {
+        int openLoans = 0;
+        for (LibraryManagementSystem.Book book : titles) {
+            int open = issueRecords.openCountForBook(book.getId());
+            openLoans += open;
+            if (book.getIssued() > book.getQuantity() || book.getIssued() != open) {
+                violations.add(book.getId() + " has " + book.getQuantity() + " copies, " + book.getIssued()
+                        + " issued and " + open + " open loans");
+            }
+        }
+        if (openLoans != issueRecords.openCount()) {
+            violations.add("the hot titles have " + openLoans + " open loans but the registry has " + issueRecords.openCount());
+        }
+    }
+
+    /**
+     * Issues a loan, then has every thread return it at once, {@value #RACE_ROUNDS} times.
+     */
+    private static void raceReturns(ExecutorService pool, int threads) throws Exception {
+        LibraryManagementSystem.Book book = new LibraryManagementSystem.Book("RACE", "Raced title", "Author", "Publisher", 1);
+        service.addBook(book);
+        int badRounds = 0;
+        for (int round = 0; round < RACE_ROUNDS; round++) {
+            long issueId = service.issue(book.getId(), "STRESS-0").getIssueId();
+            CyclicBarrier start = new CyclicBarrier(threads);
+            List<Future<Boolean>> attempts = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                attempts.add(pool.submit(() -> {
+                    start.await();
+                    try {
+                        service.returnLoan(issueId);
+                        return true;
+                    } catch (LibraryManagementSystem.LibraryException e) {
+                        return false; // Someone else got there first
+                    }
+                }));
+            }
+            int succeeded = 0;
+            for (Future<Boolean> attempt : attempts) {
+                if (attempt.get()) {
+                    succeeded++;
+                }
+            }
+            if (succeeded != 1 || book.getIssued() != 0) {
+                badRounds++;
+            }
+        }
+        System.out.printf("%,d concurrent returns of one loan by %d threads%n", RACE_ROUNDS, threads);
+        TestSupport.checkEquals(0, badRounds, "rounds where other than exactly one return succeeded");
+    }
+}
\ No newline at end of file
@@ -0,0 +1,104 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks {@link LibraryManagementSystem.LongHashMap}, the map behind the open-loan indexes, against a
+ * {@link HashMap} doing the same puts and removes:
+ * <ul>
+ * <li>with few distinct keys, so the table stays small and long probe runs form, every key put is
+ * still found after any removal (removing shifts later entries of the run back, and must not strand
+ * one behind an empty slot) and every key removed is gone</li>
+ * <li>the same through many resizes, with keys like issue IDs whose low bits are all alike</li>
+ * <li>0 and negative numbers work as keys, and clear() empties the map</li>
+ * </ul>
+ *
+ * Run with {@code java LongHashMapTest [operations]} (default 200,000 per round).
+ */
+public class LongHashMapTest {
+
+    public static void main(String[] args) {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        Random random = new Random(7);
+        // Keys drawn from a few dozen values: the table never grows past 64 slots, so runs collide and wrap
+        List<Long> crowded = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            crowded.add(random.nextLong());
+        }
+        crowded.add(0L);
+        crowded.add(-1L);
+        crowded.add(Long.MIN_VALUE);
+        churn("crowded keys", crowded, operations, random);
+
+        // Issue-ID-like keys: one node, same millisecond stride, only the sequence bits differ
+        List<Long> issueIds = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            issueIds.add(((long) (i / 64) << 22) | (i % 64));
+        }
+        churn("issue ID keys", issueIds, operations, random);
+
+        LibraryManagementSystem.LongHashMap<String> map = new LibraryManagementSystem.LongHashMap<>();
+        for (long key = -100; key < 100; key++) {
+            map.put(key, "v" + key);
+        }
+        map.clear();
+        TestSupport.checkEquals(0, map.size(), "size after clear");
+        TestSupport.checkEquals(null, map.get(0), "key 0 after clear");
+        map.put(0, "zero");
+        TestSupport.checkEquals("zero", map.get(0), "key 0 put after clear");
+        TestSupport.finish("LongHashMapTest");
+    }
+
+    /**
+     * Puts and removes random keys from the pool, 60/40, checking the whole map against the
+     * reference every so often and at the end.
+     */
+    private static void churn(String label, List<Long> pool, int operations, Random random) {
+        LibraryManagementSystem.LongHashMap<Long> map = new LibraryManagementSystem.LongHashMap<>();
+        HashMap<Long, Long> expected = new HashMap<>();
+        int mismatches = 0;
+        for (int i = 0; i < operations; i++) {
+            long key = pool.get(random.nextInt(pool.size()));
+            if (random.nextInt(10) < 6) {
+                Long value = (long) i;
+                if (!same(expected.put(key, value), map.put(key, value))) {
+                    mismatches++;
+                }
+            } else if (!same(expected.remove(key), map.remove(key))) {
+                mismatches++;
+            }
+            if (i % 997 == 0 || i == operations - 1) {
+                mismatches += compare(map, expected, pool);
+            }
+        }
+        System.out.printf("%s: %,d operations over %,d keys, %,d left in the map%n", label, operations, pool.size(), expected.size());
+        TestSupport.checkEquals(0, mismatches, label + ": operations or lookups that disagreed with HashMap");
+
+        long[] seen = {0};
+        map.forEachValue(value -> seen[0]++);
+        TestSupport.checkEquals((long) expected.size(), seen[0], label + ": values visited by forEachValue");
+        for (Long key : new ArrayList<>(expected.keySet())) {
+            TestSupport.checkEquals(expected.remove(key), map.remove(key), label + ": removing " + key);
+        }
+        TestSupport.checkEquals(0, map.size(), label + ": size after removing every key");
+    }
+
+    /**
+     * Returns the number of pool keys the map gets wrong, counting a wrong size as one more.
+     */
+    private static int compare(LibraryManagementSystem.LongHashMap<Long> map, Map<Long, Long> expected, List<Long> pool) {
+        int wrong = map.size() == expected.size() ? 0 : 1;
+        for (Long key : pool) {
+            if (!same(expected.get(key), map.get(key))) {
+                wrong++;
+            }
+        }
+        return wrong;
+    }
+
+    private static boolean same(Long a, Long b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
\ No newline at end of file
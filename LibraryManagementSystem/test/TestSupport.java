@@ -0,0 +1,54 @@
+import java.lang.reflect.Field;
+
+/**
+ * Shared helpers for the test classes in this folder. The tests use no framework: each one is a class
+ * with a {@code main} method that runs its checks, prints what failed, and exits with status 1 if
+ * anything did. Compile them together with src/LibraryManagementSystem.java and run them by name.
+ */
+final class TestSupport {
+    private static int failures;
+
+    private TestSupport() {}
+
+    /**
+     * Returns one of the library's private static stores or services (e.g. "service" or
+     * "issueRecords"), so tests drive the same instances the application does.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T libraryField(String name) {
+        try {
+            Field field = LibraryManagementSystem.class.getDeclaredField(name);
+            field.setAccessible(true);
+            return (T) field.get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("LibraryManagementSystem has no field " + name, e);
+        }
+    }
+
+    /**
+     * Records a failure, with its message, unless the condition holds.
+     */
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            failures++;
+            System.out.println("FAIL: " + message);
+        }
+    }
+
+    static void checkEquals(Object expected, Object actual, String message) {
+        check(expected == null ? actual == null : expected.equals(actual),
+                message + ": expected " + expected + " but was " + actual);
+    }
+
+    /**
+     * Prints the outcome and exits: status 0 if every check passed, 1 otherwise.
+     */
+    static void finish(String testName) {
+        if (failures > 0) {
+            System.out.println(testName + ": " + failures + " check(s) failed.");
+            System.exit(1);
+        }
+        System.out.println(testName + ": all checks passed.");
+        System.exit(0);
+    }
+}
\ No newline at end of file